@@ -0,0 +1,142 @@
+package com.example.distributetest.idempotency.aspect;
+
+import com.example.distributetest.dto.PaymentRequest;
+import com.example.distributetest.dto.PaymentResponse;
+import com.example.distributetest.idempotency.annotation.Idempotent;
+import com.example.distributetest.idempotency.service.InMemoryIdempotencyService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.lang.reflect.Method;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call overhead of {@link IdempotencyAspect} around a trivial handler, plus the cost of deriving
+ * a key from {@link Idempotent#keyExpression()} with the compiled resolver versus parsing per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdempotencyAspectBenchmark {
+
+    private static final String EXPRESSION = "#request.customerId + ':' + #request.amount";
+
+    private final PaymentRequest paymentRequest = new PaymentRequest(50000.0, "KRW", "customer-001");
+    private final SpelExpressionParser interpretedParser = new SpelExpressionParser();
+    private Handler target;
+    private Handler proxy;
+    private IdempotencyKeyResolver resolver;
+    private Method expressionMethod;
+    private KeyedRequest request;
+    private MockHttpServletResponse response;
+
+    @Setup
+    public void setUp() throws Exception {
+        resolver = new IdempotencyKeyResolver();
+        target = new Handler();
+        AspectJProxyFactory factory = new AspectJProxyFactory(target);
+        factory.setProxyTargetClass(true);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        factory.addAspect(new IdempotencyAspect(
+                new InMemoryIdempotencyService(1_000_000, 256L << 20, meterRegistry), resolver, meterRegistry));
+        proxy = factory.getProxy();
+        expressionMethod = Handler.class.getMethod("createByExpression", PaymentRequest.class);
+
+        request = new KeyedRequest();
+        response = new MockHttpServletResponse();
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request, response));
+
+        request.key = "hit-key";
+        proxy.create(paymentRequest);
+    }
+
+    @Benchmark
+    public Object baseline() {
+        return target.create(paymentRequest);
+    }
+
+    @Benchmark
+    public Object aspectHit() {
+        resetResponse();
+        request.key = "hit-key";
+        return proxy.create(paymentRequest);
+    }
+
+    @Benchmark
+    public Object aspectMiss() {
+        resetResponse();
+        request.key = "miss-" + request.sequence++;
+        return proxy.create(paymentRequest);
+    }
+
+    @Benchmark
+    public Object aspectNoKey() {
+        request.key = null;
+        return proxy.create(paymentRequest);
+    }
+
+    @Benchmark
+    public String compiledKeyExpression() {
+        return resolver.resolve(expressionMethod, new Object[]{paymentRequest});
+    }
+
+    @Benchmark
+    public Object interpretedKeyExpression() {
+        StandardEvaluationContext context = new StandardEvaluationContext();
+        context.setVariable("request", paymentRequest);
+        return interpretedParser.parseExpression(EXPRESSION).getValue(context);
+    }
+
+    private void resetResponse() {
+        response.setCommitted(false);
+        response.reset();
+    }
+
+    public static class Handler {
+
+        @Idempotent(ttl = 60)
+        public ResponseEntity<PaymentResponse> create(PaymentRequest request) {
+            return ResponseEntity.ok(response(request));
+        }
+
+        @Idempotent(ttl = 60, keyExpression = EXPRESSION)
+        public ResponseEntity<PaymentResponse> createByExpression(PaymentRequest request) {
+            return ResponseEntity.ok(response(request));
+        }
+
+        private static PaymentResponse response(PaymentRequest request) {
+            return PaymentResponse.builder()
+                    .transactionId("txn-benchmark")
+                    .amount(request.getAmount())
+                    .status("SUCCESS")
+                    .timestamp(LocalDateTime.of(2025, 1, 15, 10, 30))
+                    .message("Payment processed successfully")
+                    .build();
+        }
+    }
+
+    private static class KeyedRequest extends MockHttpServletRequest {
+        String key;
+        long sequence;
+
+        @Override
+        public String getHeader(String name) {
+            return "Idempotency-Key".equals(name) ? key : super.getHeader(name);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.codec.VersionedIdempotencyRecordCodec;
+import com.example.distributetest.redis.InProcessRedis;
+import com.example.distributetest.redis.RedisShards;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The same request-shaped workload against each store, in operations per second from eight threads:
+ * lookups of completed keys, and the reserve-then-save cycle of a first request.
+ * <p>
+ * The Redis store talks to an {@link InProcessRedis} on loopback. The JDBC store needs a PostgreSQL, by
+ * default the one from docker compose; point it elsewhere with {@code -Dbenchmark.jdbc.url},
+ * {@code -Dbenchmark.jdbc.username} and {@code -Dbenchmark.jdbc.password}. Keys are prefixed per run, so
+ * repeated runs against the same database do not see each other's keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class IdempotencyStoreThroughputBenchmark {
+
+    private static final int PRELOADED_KEYS = 10_000;
+    private static final Duration LEASE = Duration.ofSeconds(30);
+    private static final byte[] BODY = ("{\"transactionId\":\"txn-benchmark\",\"amount\":50000.0,"
+            + "\"status\":\"SUCCESS\",\"message\":\"Payment processed successfully\"}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Param({"memory", "redis", "jdbc"})
+    public String store;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final String run = Long.toString(System.nanoTime(), 36) + ":";
+    private IdempotencyService service;
+    private AutoCloseable resources = () -> {
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        service = switch (store) {
+            case "memory" -> new InMemoryIdempotencyService(1_000_000, 256L << 20, new SimpleMeterRegistry());
+            case "redis" -> redisStore();
+            case "jdbc" -> jdbcStore();
+            default -> throw new IllegalArgumentException("Unknown store: " + store);
+        };
+        for (int i = 0; i < PRELOADED_KEYS; i++) {
+            service.save(run + "hit-" + i, BODY, 200, "application/json", 60);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        resources.close();
+    }
+
+    @Benchmark
+    public Optional<?> getHit() {
+        return service.get(run + "hit-" + ThreadLocalRandom.current().nextInt(PRELOADED_KEYS));
+    }
+
+    @Benchmark
+    public Object getOrReserveHit() {
+        return service.getOrReserve(run + "hit-" + ThreadLocalRandom.current().nextInt(PRELOADED_KEYS), LEASE);
+    }
+
+    @Benchmark
+    public void reserveAndSave() {
+        String key = run + "new-" + sequence.incrementAndGet();
+        service.getOrReserve(key, LEASE);
+        service.save(key, BODY, 200, "application/json", 60);
+    }
+
+    private IdempotencyService redisStore() throws IOException {
+        InProcessRedis redis = InProcessRedis.start();
+        LettuceConnectionFactory connectionFactory =
+                new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redis.port()));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        RedisMessageListenerContainer listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+        resources = () -> {
+            listenerContainer.destroy();
+            connectionFactory.destroy();
+            redis.close();
+        };
+        return new RedisIdempotencyService(RedisShards.single(connectionFactory).router(RedisSerializer.byteArray()),
+                listenerContainer, VersionedIdempotencyRecordCodec.of("binary", 1024), new SimpleMeterRegistry());
+    }
+
+    private IdempotencyService jdbcStore() {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(System.getProperty("benchmark.jdbc.url", "jdbc:postgresql://localhost:5432/safeops"));
+        dataSource.setUsername(System.getProperty("benchmark.jdbc.username", "safeops"));
+        dataSource.setPassword(System.getProperty("benchmark.jdbc.password", "safeops123"));
+        dataSource.setMaximumPoolSize(16);
+        JdbcIdempotencyService jdbc = new JdbcIdempotencyService(new JdbcTemplate(dataSource), Duration.ofHours(1),
+                Duration.ofHours(2), new SimpleMeterRegistry());
+        resources = () -> {
+            jdbc.close();
+            dataSource.close();
+        };
+        return jdbc;
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.distributetest.idempotency.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link InMemoryIdempotencyService} under contention: lookups of completed keys, reservations of new
+ * keys and saves, each from eight threads sharing one store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class InMemoryIdempotencyServiceBenchmark {
+
+    private static final int PRELOADED_KEYS = 100_000;
+    private static final Duration LEASE = Duration.ofSeconds(30);
+    private static final byte[] BODY = ("{\"transactionId\":\"txn-benchmark\",\"amount\":50000.0,"
+            + "\"status\":\"SUCCESS\",\"message\":\"Payment processed successfully\"}").getBytes(StandardCharsets.UTF_8);
+
+    private final AtomicLong sequence = new AtomicLong();
+    private InMemoryIdempotencyService service;
+
+    @Setup
+    public void setUp() {
+        service = new InMemoryIdempotencyService(1_000_000, 256L << 20, new SimpleMeterRegistry());
+        for (int i = 0; i < PRELOADED_KEYS; i++) {
+            service.save("hit-" + i, BODY, 200, "application/json", 60);
+        }
+    }
+
+    @Benchmark
+    public Optional<?> getHit() {
+        return service.get("hit-" + ThreadLocalRandom.current().nextInt(PRELOADED_KEYS));
+    }
+
+    @Benchmark
+    public Optional<?> getMiss() {
+        return service.get("miss-" + ThreadLocalRandom.current().nextInt(PRELOADED_KEYS));
+    }
+
+    @Benchmark
+    public Object getOrReserveNewKey() {
+        return service.getOrReserve("new-" + sequence.incrementAndGet(), LEASE);
+    }
+
+    @Benchmark
+    public void save() {
+        service.save("saved-" + sequence.incrementAndGet(), BODY, 200, "application/json", 60);
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.codec.VersionedIdempotencyRecordCodec;
+import com.example.distributetest.redis.InProcessRedis;
+import com.example.distributetest.redis.RedisShards;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link RedisIdempotencyService} over a real Lettuce connection to an {@link InProcessRedis} on loopback,
+ * so the numbers include codec, client and RESP round trip costs but no network or server variance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class RedisIdempotencyServiceBenchmark {
+
+    private static final int PRELOADED_KEYS = 10_000;
+    private static final Duration LEASE = Duration.ofSeconds(30);
+    private static final byte[] BODY = ("{\"transactionId\":\"txn-benchmark\",\"amount\":50000.0,"
+            + "\"status\":\"SUCCESS\",\"message\":\"Payment processed successfully\"}").getBytes(StandardCharsets.UTF_8);
+
+    @Param({"binary", "json"})
+    public String codec;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private InProcessRedis redis;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisMessageListenerContainer listenerContainer;
+    private RedisIdempotencyService service;
+
+    @Setup
+    public void setUp() throws IOException {
+        redis = InProcessRedis.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redis.port()));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+        service = new RedisIdempotencyService(RedisShards.single(connectionFactory).router(RedisSerializer.byteArray()),
+                listenerContainer, VersionedIdempotencyRecordCodec.of(codec, 1024), new SimpleMeterRegistry());
+        for (int i = 0; i < PRELOADED_KEYS; i++) {
+            service.save("hit-" + i, BODY, 200, "application/json", 60);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        listenerContainer.destroy();
+        connectionFactory.destroy();
+        redis.close();
+    }
+
+    @Benchmark
+    public Optional<?> getHit() {
+        return service.get("hit-" + ThreadLocalRandom.current().nextInt(PRELOADED_KEYS));
+    }
+
+    @Benchmark
+    public Object getOrReserveHit() {
+        return service.getOrReserve("hit-" + ThreadLocalRandom.current().nextInt(PRELOADED_KEYS), LEASE);
+    }
+
+    @Benchmark
+    public Object getOrReserveNewKey() {
+        return service.getOrReserve("new-" + sequence.incrementAndGet(), LEASE);
+    }
+
+    @Benchmark
+    public void save() {
+        service.save("saved-" + sequence.incrementAndGet(), BODY, 200, "application/json", 60);
+    }
+}
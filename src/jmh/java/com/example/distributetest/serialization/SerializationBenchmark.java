@@ -0,0 +1,132 @@
+package com.example.distributetest.serialization;
+
+import com.example.distributetest.codec.JsonCodec;
+import com.example.distributetest.dto.PaymentResponse;
+import com.example.distributetest.idempotency.codec.BinaryIdempotencyRecordCodec;
+import com.example.distributetest.idempotency.codec.JsonIdempotencyRecordCodec;
+import com.example.distributetest.idempotency.codec.SmileIdempotencyRecordCodec;
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JSON paths a payment request goes through: PaymentService writing and reading the payment record,
+ * IdempotencyAspect serializing the response body, and the idempotency record codecs. The {@code mapper*}
+ * benchmarks are the per-class {@code ObjectMapper} setup the app used before {@link JsonCodec}, kept as the
+ * baseline for the shared codec's pre-built readers and writers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializationBenchmark {
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final JsonCodec codec = JsonCodec.shared();
+    private final JsonIdempotencyRecordCodec jsonCodec = new JsonIdempotencyRecordCodec();
+    private final SmileIdempotencyRecordCodec smileCodec = new SmileIdempotencyRecordCodec();
+    private final BinaryIdempotencyRecordCodec binaryCodec = new BinaryIdempotencyRecordCodec(1024);
+
+    private PaymentResponse payment;
+    private String paymentJson;
+    private IdempotencyKey record;
+    private byte[] jsonRecord;
+    private byte[] smileRecord;
+    private byte[] binaryRecord;
+
+    @Setup
+    public void setUp() throws IOException {
+        payment = PaymentResponse.builder()
+                .transactionId("0b6f1f0e-6a43-4b8e-9f0e-2f4c1d8a9b7c")
+                .customerId("customer-42")
+                .amount(50000.0)
+                .status("SUCCESS")
+                .timestamp(LocalDateTime.of(2025, 1, 15, 10, 30))
+                .message("Payment processed successfully")
+                .build();
+        paymentJson = mapper.writeValueAsString(payment);
+        record = IdempotencyKey.builder()
+                .key("payment-123456")
+                .body(mapper.writeValueAsBytes(payment))
+                .contentType("application/json")
+                .statusCode(200)
+                .status(IdempotencyStatus.COMPLETED)
+                .createdAt(LocalDateTime.of(2025, 1, 15, 10, 30))
+                .expiresAt(LocalDateTime.of(2025, 1, 15, 11, 30))
+                .build();
+        jsonRecord = jsonCodec.encode(record);
+        smileRecord = smileCodec.encode(record);
+        binaryRecord = binaryCodec.encode(record);
+    }
+
+    @Benchmark
+    public String mapperPaymentRecordWrite() throws IOException {
+        return mapper.writeValueAsString(payment);
+    }
+
+    @Benchmark
+    public PaymentResponse mapperPaymentRecordRead() throws IOException {
+        return mapper.readValue(paymentJson, PaymentResponse.class);
+    }
+
+    @Benchmark
+    public byte[] mapperResponseBodyWrite() throws IOException {
+        return mapper.writeValueAsBytes(payment);
+    }
+
+    @Benchmark
+    public String paymentRecordWrite() throws IOException {
+        return codec.paymentWriter().writeValueAsString(payment);
+    }
+
+    @Benchmark
+    public PaymentResponse paymentRecordRead() throws IOException {
+        return codec.paymentReader().readValue(paymentJson);
+    }
+
+    @Benchmark
+    public byte[] responseBodyWrite() throws IOException {
+        return codec.writeValueAsBytes(payment);
+    }
+
+    @Benchmark
+    public byte[] jsonRecordEncode() {
+        return jsonCodec.encode(record);
+    }
+
+    @Benchmark
+    public IdempotencyKey jsonRecordDecode() throws IOException {
+        return jsonCodec.decode(jsonRecord);
+    }
+
+    @Benchmark
+    public byte[] smileRecordEncode() {
+        return smileCodec.encode(record);
+    }
+
+    @Benchmark
+    public IdempotencyKey smileRecordDecode() throws IOException {
+        return smileCodec.decode(smileRecord);
+    }
+
+    @Benchmark
+    public byte[] binaryRecordEncode() {
+        return binaryCodec.encode(record);
+    }
+
+    @Benchmark
+    public IdempotencyKey binaryRecordDecode() throws IOException {
+        return binaryCodec.decode(binaryRecord);
+    }
+}
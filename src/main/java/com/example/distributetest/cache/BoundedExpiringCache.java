@@ -0,0 +1,275 @@
+package com.example.distributetest.cache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Concurrent cache bounded by entry count and weighted size.
+ * <p>
+ * Expiry is driven by a hashed timing wheel with one-second ticks that is advanced on writes,
+ * so each entry is expired in amortized O(1) and reads never scan the map. Eviction uses a
+ * CLOCK queue with small per-entry frequency counters: frequently read entries get another
+ * lap instead of being evicted. Pinned entries are never evicted, only expired, so the cache can
+ * run over its bounds while they dominate it.
+ */
+public class BoundedExpiringCache<K, V> {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 4096;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int MAX_FREQUENCY = 15;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Node<K, V>>[] wheel;
+    private final ConcurrentLinkedQueue<Node<K, V>> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger clockSize = new AtomicInteger();
+    private final AtomicLong weightedSize = new AtomicLong();
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+
+    private final long maxEntries;
+    private final long maxWeight;
+    private final ToIntFunction<V> weigher;
+    private final Predicate<V> pinned;
+    private final LongSupplier clockMillis;
+    private volatile long lastTick;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public BoundedExpiringCache(long maxEntries, long maxWeight, ToIntFunction<V> weigher) {
+        this(maxEntries, maxWeight, weigher, System::currentTimeMillis);
+    }
+
+    public BoundedExpiringCache(long maxEntries, long maxWeight, ToIntFunction<V> weigher, LongSupplier clockMillis) {
+        this(maxEntries, maxWeight, weigher, value -> false, clockMillis);
+    }
+
+    @SuppressWarnings("unchecked")
+    public BoundedExpiringCache(long maxEntries, long maxWeight, ToIntFunction<V> weigher, Predicate<V> pinned,
+                                LongSupplier clockMillis) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.pinned = pinned;
+        this.clockMillis = clockMillis;
+        this.wheel = new ConcurrentLinkedQueue[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.lastTick = clockMillis.getAsLong() / TICK_MILLIS;
+    }
+
+    public V get(K key) {
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        if (node.isExpired(clockMillis.getAsLong())) {
+            if (map.remove(key, node)) {
+                retire(node);
+                expirations.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        node.touch();
+        hits.increment();
+        return node.value;
+    }
+
+    public void put(K key, V value, Duration ttl) {
+        Node<K, V> node = newNode(key, value, ttl);
+        Node<K, V> previous = map.put(key, node);
+        if (previous != null) {
+            retire(previous);
+        }
+        link(node);
+    }
+
+    /**
+     * Inserts the value unless a live entry is already mapped. An expired entry counts as absent.
+     */
+    public boolean putIfAbsent(K key, V value, Duration ttl) {
+        Node<K, V> node = newNode(key, value, ttl);
+        Node<K, V> existing = map.putIfAbsent(key, node);
+        if (existing == null) {
+            link(node);
+            return true;
+        }
+        if (existing.isExpired(clockMillis.getAsLong()) && map.replace(key, existing, node)) {
+            retire(existing);
+            expirations.increment();
+            link(node);
+            return true;
+        }
+        return false;
+    }
+
+    public void remove(K key) {
+        Node<K, V> node = map.remove(key);
+        if (node != null) {
+            retire(node);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(map.size(), weightedSize.get(), hits.sum(), misses.sum(),
+                evictions.sum(), expirations.sum());
+    }
+
+    private Node<K, V> newNode(K key, V value, Duration ttl) {
+        return new Node<>(key, value, weigher.applyAsInt(value), clockMillis.getAsLong() + ttl.toMillis());
+    }
+
+    private void link(Node<K, V> node) {
+        weightedSize.addAndGet(node.weight);
+        schedule(node);
+        clock.add(node);
+        clockSize.incrementAndGet();
+        maintain();
+    }
+
+    private void retire(Node<K, V> node) {
+        node.dead = true;
+        weightedSize.addAndGet(-node.weight);
+    }
+
+    private void schedule(Node<K, V> node) {
+        long tick = Math.max((node.expiresAt + TICK_MILLIS - 1) / TICK_MILLIS, lastTick + 1);
+        wheel[(int) (tick & WHEEL_MASK)].add(node);
+    }
+
+    /**
+     * Writers take turns doing housekeeping; a writer that finds it already running simply moves on.
+     */
+    private void maintain() {
+        if (!maintenanceLock.tryLock()) {
+            return;
+        }
+        try {
+            advanceWheel(clockMillis.getAsLong());
+            evictIfNeeded();
+            compactClock();
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    private void advanceWheel(long now) {
+        long nowTick = now / TICK_MILLIS;
+        if (nowTick <= lastTick) {
+            return;
+        }
+        long from = Math.max(lastTick + 1, nowTick - WHEEL_MASK);
+        lastTick = nowTick;
+        for (long tick = from; tick <= nowTick; tick++) {
+            drainBucket(wheel[(int) (tick & WHEEL_MASK)], now);
+        }
+    }
+
+    private void drainBucket(ConcurrentLinkedQueue<Node<K, V>> bucket, long now) {
+        List<Node<K, V>> due = new ArrayList<>();
+        Node<K, V> node;
+        while ((node = bucket.poll()) != null) {
+            due.add(node);
+        }
+        for (Node<K, V> candidate : due) {
+            if (candidate.dead) {
+                continue;
+            }
+            if (candidate.isExpired(now)) {
+                if (map.remove(candidate.key, candidate)) {
+                    retire(candidate);
+                    expirations.increment();
+                }
+            } else {
+                // Deadline is one or more wheel revolutions away
+                schedule(candidate);
+            }
+        }
+    }
+
+    private void evictIfNeeded() {
+        int pinnedSeen = 0;
+        while (map.size() > maxEntries || weightedSize.get() > maxWeight) {
+            Node<K, V> node = clock.poll();
+            if (node == null) {
+                return;
+            }
+            clockSize.decrementAndGet();
+            if (node.dead) {
+                continue;
+            }
+            if (pinned.test(node.value)) {
+                clock.add(node);
+                // A full lap of pinned entries: nothing left that may be evicted
+                if (clockSize.incrementAndGet() <= ++pinnedSeen) {
+                    return;
+                }
+                continue;
+            }
+            if (node.frequency > 0) {
+                node.frequency >>= 1;
+                clock.add(node);
+                clockSize.incrementAndGet();
+                continue;
+            }
+            if (map.remove(node.key, node)) {
+                retire(node);
+                evictions.increment();
+            }
+        }
+    }
+
+    private void compactClock() {
+        // Replaced and expired nodes linger in the clock queue; sweep once they dominate it
+        if (clockSize.get() > 2 * map.size() + 1024) {
+            clock.removeIf(node -> node.dead);
+            clockSize.set(clock.size());
+        }
+    }
+
+    public record Stats(long size, long weightedSize, long hits, long misses, long evictions, long expirations) {
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        final long expiresAt;
+        volatile int frequency;
+        volatile boolean dead;
+
+        Node(K key, V value, int weight, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+
+        void touch() {
+            // Racy increment is fine: the counter is only a hint for eviction
+            int current = frequency;
+            if (current < MAX_FREQUENCY) {
+                frequency = current + 1;
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.distributetest.circuitbreaker.config;
 
+import com.example.distributetest.service.RefundRejectedException;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig.SlidingWindowType;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
 import io.github.resilience4j.timelimiter.TimeLimiterConfig;
@@ -27,6 +28,7 @@ public class CircuitBreakerConfig {
                 .permittedNumberOfCallsInHalfOpenState(3)
                 .automaticTransitionFromOpenToHalfOpenEnabled(true)
                 .recordExceptions(Exception.class)
+                .ignoreExceptions(RefundRejectedException.class)
                 .build();
 
         CircuitBreakerRegistry registry = CircuitBreakerRegistry.of(config);
@@ -1,11 +1,24 @@
 package com.example.distributetest.config;
 
+import com.example.distributetest.redis.RedisShardRouter;
+import com.example.distributetest.redis.RedisShards;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 @Configuration
 public class RedisConfig {
 
@@ -20,4 +33,79 @@ public class RedisConfig {
         template.afterPropertiesSet();
         return template;
     }
+
+    /**
+     * Where payment and idempotency keys live. Without {@code redis.sharding.nodes} everything stays on the
+     * Boot-configured connection (a single node, or a cluster when {@code spring.data.redis.cluster} is set);
+     * with it, keys are spread over those standalone nodes, each with its own connection pool.
+     * <p>
+     * {@code redis.sharding.previous-nodes} names the ring being moved away from: keys that changed owner are
+     * still read from there until {@code redis.sharding.rebalance-window} has passed.
+     */
+    @Bean
+    public RedisShards redisShards(RedisConnectionFactory connectionFactory,
+                                   @Value("${redis.sharding.nodes:}") List<String> nodes,
+                                   @Value("${redis.sharding.previous-nodes:}") List<String> previousNodes,
+                                   @Value("${redis.sharding.rebalance-window:72h}") Duration rebalanceWindow,
+                                   @Value("${spring.data.redis.password:}") String password,
+                                   @Value("${spring.data.redis.timeout:3000ms}") Duration timeout,
+                                   @Value("${redis.sharding.pool.max-active:8}") int maxActive,
+                                   @Value("${redis.sharding.pool.max-idle:8}") int maxIdle,
+                                   @Value("${redis.sharding.pool.min-idle:0}") int minIdle) {
+        if (nodes.isEmpty()) {
+            return RedisShards.single(connectionFactory);
+        }
+        GenericObjectPoolConfig<?> pool = new GenericObjectPoolConfig<>();
+        pool.setMaxTotal(maxActive);
+        pool.setMaxIdle(maxIdle);
+        pool.setMinIdle(minIdle);
+        // Nodes in both rings share one factory, so keys that stay on them need no fallback read
+        Map<String, RedisConnectionFactory> factories = new LinkedHashMap<>();
+        Map<String, RedisConnectionFactory> current = ring(nodes, factories, password, timeout, pool);
+        if (previousNodes.isEmpty()) {
+            return RedisShards.ring(connectionFactory, current);
+        }
+        RedisShards shards = RedisShards.ring(connectionFactory,
+                ring(previousNodes, factories, password, timeout, pool));
+        shards.rebalance(current, rebalanceWindow);
+        return shards;
+    }
+
+    @Bean
+    public RedisShardRouter<String> paymentRedisRouter(RedisShards redisShards) {
+        return redisShards.router(RedisSerializer.string());
+    }
+
+    private static Map<String, RedisConnectionFactory> ring(List<String> nodes,
+                                                           Map<String, RedisConnectionFactory> factories,
+                                                           String password, Duration timeout,
+                                                           GenericObjectPoolConfig<?> pool) {
+        Map<String, RedisConnectionFactory> ring = new LinkedHashMap<>();
+        for (String node : nodes) {
+            ring.put(node.trim(), factories.computeIfAbsent(node.trim(),
+                    name -> shardConnectionFactory(name, password, timeout, pool)));
+        }
+        return ring;
+    }
+
+    private static LettuceConnectionFactory shardConnectionFactory(String node, String password, Duration timeout,
+                                                                   GenericObjectPoolConfig<?> pool) {
+        int separator = node.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Redis shard node must be host:port, got " + node);
+        }
+        RedisStandaloneConfiguration standalone = new RedisStandaloneConfiguration(
+                node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)));
+        if (!password.isEmpty()) {
+            standalone.setPassword(password);
+        }
+        LettucePoolingClientConfiguration client = LettucePoolingClientConfiguration.builder()
+                .poolConfig(pool)
+                .commandTimeout(timeout)
+                .build();
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(standalone, client);
+        factory.afterPropertiesSet();
+        factory.start();
+        return factory;
+    }
 }
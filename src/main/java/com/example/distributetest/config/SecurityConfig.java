@@ -1,5 +1,6 @@
 package com.example.distributetest.config;
 
+import com.example.distributetest.codec.JsonCodec;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -56,8 +57,12 @@ public class SecurityConfig {
         return new BCryptPasswordEncoder();
     }
 
+    /**
+     * A copy of the shared codec's mapper, so injected users get the same modules without being able to
+     * reconfigure the shared one.
+     */
     @Bean
     public ObjectMapper objectMapper() {
-        return new ObjectMapper();
+        return JsonCodec.shared().mapper().copy();
     }
 }
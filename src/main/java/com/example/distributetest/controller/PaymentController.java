@@ -6,13 +6,16 @@ import com.example.distributetest.dto.RefundRequest;
 import com.example.distributetest.dto.RefundResponse;
 import com.example.distributetest.idempotency.annotation.Idempotent;
 import com.example.distributetest.service.PaymentService;
+import com.example.distributetest.service.RefundRejectedException;
 import io.github.resilience4j.circuitbreaker.annotation.CircuitBreaker;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.net.URI;
 import java.time.LocalDateTime;
 import java.util.UUID;
 
@@ -24,11 +27,21 @@ public class PaymentController {
 
     private final PaymentService paymentService;
 
+    @Value("${payment.async.enabled:false}")
+    private boolean asyncAcceptance;
+
     @PostMapping
     @Idempotent(ttl = 60)
     @CircuitBreaker(name = "payment", fallbackMethod = "paymentFallback")
     public ResponseEntity<PaymentResponse> createPayment(@RequestBody PaymentRequest request) {
         log.info("Processing payment: {}", request);
+        if (asyncAcceptance) {
+            // The outcome is polled from GET /api/payments/{transactionId}
+            PaymentResponse accepted = paymentService.acceptPayment(request);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/payments/" + accepted.getTransactionId()))
+                    .body(accepted);
+        }
         PaymentResponse response = paymentService.createPayment(request);
         return ResponseEntity.ok(response);
     }
@@ -56,6 +69,28 @@ public class PaymentController {
         return ResponseEntity.ok(response);
     }
 
+    /**
+     * Refunds the ledger refused never reached the gateway; they are answered as client errors, not as pending.
+     */
+    public ResponseEntity<RefundResponse> refundFallback(RefundRequest request, RefundRejectedException ex) {
+        log.warn("Refund rejected for request: {}, reason: {}", request, ex.getMessage());
+
+        RefundResponse response = RefundResponse.builder()
+                .originalTransactionId(request.getTransactionId())
+                .amount(request.getAmount())
+                .status("REJECTED")
+                .timestamp(LocalDateTime.now())
+                .message(ex.getMessage())
+                .build();
+
+        HttpStatus status = switch (ex.getReason()) {
+            case INVALID_REQUEST -> HttpStatus.BAD_REQUEST;
+            case PAYMENT_NOT_FOUND -> HttpStatus.NOT_FOUND;
+            case NOT_REFUNDABLE, EXCEEDS_REMAINING -> HttpStatus.CONFLICT;
+        };
+        return ResponseEntity.status(status).body(response);
+    }
+
     public ResponseEntity<RefundResponse> refundFallback(RefundRequest request, Exception ex) {
         log.warn("Refund fallback triggered for request: {}, reason: {}", request, ex.getMessage());
 
@@ -1,12 +1,27 @@
 package com.example.distributetest.controller;
 
+import com.example.distributetest.codec.JsonCodec;
+import com.example.distributetest.dto.PaymentLookupRequest;
+import com.example.distributetest.dto.PaymentLookupResult;
+import com.example.distributetest.dto.PaymentPage;
 import com.example.distributetest.dto.PaymentResponse;
 import com.example.distributetest.dto.RefundResponse;
 import com.example.distributetest.service.PaymentService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Consumer;
 
 @RestController
 @Slf4j
@@ -14,7 +29,30 @@ import org.springframework.web.bind.annotation.*;
 @RequestMapping("/api/payments")
 public class PaymentQueryController {
 
+    private static final int MAX_PAGE_SIZE = 200;
+
     private final PaymentService paymentService;
+    private final JsonCodec codec = JsonCodec.shared();
+
+    @Value("${payment.lookup.max-ids:5000}")
+    private int maxLookupIds;
+
+    /**
+     * Pages through a customer's payments from the last 24 hours, oldest first.
+     */
+    @GetMapping
+    public ResponseEntity<PaymentPage> listPayments(@RequestParam String customerId,
+                                                    @RequestParam(required = false) String after,
+                                                    @RequestParam(defaultValue = "50") int limit) {
+        log.info("Listing payments for customer: {} (after: {})", customerId, after);
+        try {
+            int pageSize = Math.clamp(limit, 1, MAX_PAGE_SIZE);
+            return ResponseEntity.ok(paymentService.listPayments(customerId, after, pageSize));
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected payment listing: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+    }
 
     @GetMapping("/{transactionId}")
     public ResponseEntity<PaymentResponse> getPayment(@PathVariable String transactionId) {
@@ -37,4 +75,58 @@ public class PaymentQueryController {
         }
         return ResponseEntity.notFound().build();
     }
+
+    /**
+     * Streams one NDJSON line per requested id, payments first and each list in request order.
+     * Ids that do not exist are reported with {@code "found": false}.
+     */
+    @PostMapping(value = "/lookup", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> lookup(@RequestBody PaymentLookupRequest request) {
+        List<String> transactionIds = request.getTransactionIds() != null ? request.getTransactionIds() : List.of();
+        List<String> refundIds = request.getRefundIds() != null ? request.getRefundIds() : List.of();
+        if (transactionIds.size() + refundIds.size() > maxLookupIds) {
+            log.warn("Rejected lookup of {} ids (limit {})", transactionIds.size() + refundIds.size(), maxLookupIds);
+            return ResponseEntity.badRequest().build();
+        }
+        log.info("Looking up {} payments and {} refunds", transactionIds.size(), refundIds.size());
+
+        StreamingResponseBody body = out -> paymentService.lookup(transactionIds, refundIds, ndjson(out));
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * Streams every payment and refund still in Redis whose timestamp falls in {@code [from, to)} as NDJSON, in
+     * no particular order. {@code to} defaults to now.
+     */
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> export(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        LocalDateTime until = to != null ? to : LocalDateTime.now();
+        if (!from.isBefore(until)) {
+            log.warn("Rejected export of empty range {} - {}", from, until);
+            return ResponseEntity.badRequest().build();
+        }
+        log.info("Exporting payments and refunds from {} to {}", from, until);
+
+        StreamingResponseBody body = out -> paymentService.export(from, until, ndjson(out));
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * Writes each chunk as NDJSON lines and flushes, so the service only moves on once the client has room.
+     */
+    private Consumer<List<PaymentLookupResult>> ndjson(OutputStream out) {
+        return chunk -> {
+            try {
+                for (PaymentLookupResult result : chunk) {
+                    out.write(codec.writeValueAsBytes(result));
+                    out.write('\n');
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
 }
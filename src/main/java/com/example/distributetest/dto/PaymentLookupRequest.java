@@ -0,0 +1,15 @@
+package com.example.distributetest.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PaymentLookupRequest {
+    private List<String> transactionIds;
+    private List<String> refundIds;
+}
@@ -0,0 +1,23 @@
+package com.example.distributetest.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One line of a bulk lookup: the requested id and its record, or {@code found=false} when it does not exist.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PaymentLookupResult {
+    private String type;
+    private String id;
+    private boolean found;
+    private PaymentResponse payment;
+    private RefundResponse refund;
+}
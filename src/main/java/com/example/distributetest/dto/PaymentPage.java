@@ -0,0 +1,21 @@
+package com.example.distributetest.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One page of a customer's payments, oldest first. {@code nextCursor} is passed back as {@code after}
+ * to fetch the next page and is null on the last one.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class PaymentPage {
+    private List<PaymentResponse> payments;
+    private String nextCursor;
+}
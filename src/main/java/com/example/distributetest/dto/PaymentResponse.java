@@ -1,11 +1,13 @@
 package com.example.distributetest.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 @Data
 @NoArgsConstructor
@@ -13,8 +15,14 @@ import java.time.LocalDateTime;
 @Builder
 public class PaymentResponse {
     private String transactionId;
+    private String customerId;
     private Double amount;
     private String status;
     private LocalDateTime timestamp;
     private String message;
+    // Filled from the refund ledger when the payment is looked up by id; never stored with the record
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<String> refundIds;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Double refundableAmount;
 }
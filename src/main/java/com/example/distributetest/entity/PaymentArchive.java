@@ -0,0 +1,43 @@
+package com.example.distributetest.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Long-term copy of a payment record, written behind Redis by the payment archiver.
+ */
+@Entity
+@Table(name = "payment_archive",
+        indexes = @Index(name = "idx_payment_archive_customer", columnList = "customer_id, created_at"))
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PaymentArchive {
+
+    @Id
+    @Column(name = "transaction_id")
+    private String transactionId;
+
+    @Column(name = "customer_id")
+    private String customerId;
+
+    private Double amount;
+
+    @Column(nullable = false)
+    private String status;
+
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+
+    @Column(length = 1000)
+    private String message;
+
+    @Column(name = "archived_at", nullable = false)
+    private LocalDateTime archivedAt;
+}
@@ -0,0 +1,43 @@
+package com.example.distributetest.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Long-term copy of a refund record, written behind Redis by the payment archiver.
+ */
+@Entity
+@Table(name = "refund_archive",
+        indexes = @Index(name = "idx_refund_archive_transaction", columnList = "original_transaction_id"))
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RefundArchive {
+
+    @Id
+    @Column(name = "refund_id")
+    private String refundId;
+
+    @Column(name = "original_transaction_id")
+    private String originalTransactionId;
+
+    private Double amount;
+
+    @Column(nullable = false)
+    private String status;
+
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+
+    @Column(length = 1000)
+    private String message;
+
+    @Column(name = "archived_at", nullable = false)
+    private LocalDateTime archivedAt;
+}
@@ -9,5 +9,10 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Idempotent {
     long ttl() default 60;
+
+    /**
+     * SpEL expression over the method arguments used when the request has no Idempotency-Key header,
+     * e.g. {@code #request.customerId + ':' + #request.amount}. Arguments are also available as #p0, #p1, ...
+     */
     String keyExpression() default "";
 }
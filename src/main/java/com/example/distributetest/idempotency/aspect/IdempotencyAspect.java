@@ -1,23 +1,39 @@
 package com.example.distributetest.idempotency.aspect;
 
+import com.example.distributetest.codec.JsonCodec;
 import com.example.distributetest.idempotency.annotation.Idempotent;
 import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
+import com.example.distributetest.idempotency.service.IdempotencyCommit;
 import com.example.distributetest.idempotency.service.IdempotencyService;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
 
 @Aspect
 @Component
@@ -26,78 +42,298 @@ import java.util.Optional;
 public class IdempotencyAspect {
 
     private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final Duration IN_PROGRESS_LEASE = Duration.ofSeconds(30);
+    private static final Duration DUPLICATE_WAIT_TIMEOUT = Duration.ofSeconds(5);
     private final IdempotencyService idempotencyService;
-    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final IdempotencyKeyResolver keyResolver;
+    private final MeterRegistry meterRegistry;
+    private final JsonCodec codec = JsonCodec.shared();
 
     @Around("@annotation(idempotent)")
     public Object handleIdempotency(ProceedingJoinPoint joinPoint, Idempotent idempotent) throws Throwable {
+        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
+        Tags tags = Tags.of("method", signature.getDeclaringType().getSimpleName() + "." + signature.getName(),
+                "store", idempotencyService.storeName());
+
         HttpServletRequest request = getCurrentRequest();
         if (request == null) {
             log.warn("No HTTP request found in context, proceeding without idempotency check");
+            countOutcome(tags, "no_key");
             return joinPoint.proceed();
         }
 
-        String idempotencyKey = extractIdempotencyKey(request, idempotent);
+        String idempotencyKey = extractIdempotencyKey(request, idempotent, joinPoint);
         if (idempotencyKey == null || idempotencyKey.isEmpty()) {
             log.warn("No idempotency key found, proceeding without idempotency check");
+            countOutcome(tags, "no_key");
             return joinPoint.proceed();
         }
 
-        Optional<IdempotencyKey> existingKey = idempotencyService.get(idempotencyKey);
-        if (existingKey.isPresent()) {
-            log.info("Idempotency key found: {}, returning cached response", idempotencyKey);
-            return buildResponseFromCache(existingKey.get());
+        Class<?> returnType = signature.getReturnType();
+        // Lookup and reservation in one step; stores that support it do both in a single round trip
+        IdempotencyReservation reservation = idempotencyService.getOrReserve(idempotencyKey, IN_PROGRESS_LEASE);
+        if (!reservation.acquired()) {
+            IdempotencyKey existingKey = reservation.existing();
+            if (existingKey != null && existingKey.isCompleted()) {
+                log.info("Idempotency key found: {}, returning cached response", idempotencyKey);
+                countOutcome(tags, "hit");
+                return timedReplay(existingKey, returnType, tags);
+            }
+            log.info("Idempotency key in progress: {}, waiting for the first request", idempotencyKey);
+            if (isAsync(returnType)) {
+                // The servlet thread goes back to the pool; the key's completion or the timeout ends the response
+                return adaptToReturnType(idempotencyService
+                        .awaitCompletionAsync(idempotencyKey, DUPLICATE_WAIT_TIMEOUT)
+                        .thenApply(completedKey -> inFlightResponse(completedKey, tags)), returnType);
+            }
+            Optional<IdempotencyKey> completedKey =
+                    idempotencyService.awaitCompletion(idempotencyKey, DUPLICATE_WAIT_TIMEOUT);
+            if (completedKey.isPresent()) {
+                countOutcome(tags, "in_flight_hit");
+                return timedReplay(completedKey.get(), returnType, tags);
+            }
+            countOutcome(tags, "conflict");
+            return conflict();
         }
 
         log.info("Processing request with idempotency key: {}", idempotencyKey);
-        Object result = joinPoint.proceed();
+        countOutcome(tags, "miss");
+        // A handler that writes its records through the commit stores its response with them in one round trip
+        try (IdempotencyCommit commit = idempotencyService.openCommit(idempotencyKey, idempotent.ttl())) {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            Object result;
+            try {
+                result = joinPoint.proceed();
+            } catch (Throwable t) {
+                sample.stop(meterRegistry.timer("idempotency.proceed", tags.and("outcome", "error")));
+                if (commit.failed()) {
+                    // The records the handler was writing may be lost after the gateway charged; a retry must
+                    // not run again before the lease runs out
+                    log.error("Handler commit failed for key: {}, keeping the reservation until its lease expires",
+                            idempotencyKey);
+                    meterRegistry.counter("idempotency.save.failures", tags).increment();
+                } else {
+                    idempotencyService.delete(idempotencyKey);
+                }
+                throw t;
+            }
+            sample.stop(meterRegistry.timer("idempotency.proceed", tags.and("outcome", "success")));
 
-        if (result instanceof ResponseEntity<?> responseEntity) {
-            cacheResponse(idempotencyKey, responseEntity, idempotent.ttl());
+            if (result instanceof ResponseEntity<?> responseEntity
+                    && responseEntity.getHeaders().getContentType() == null
+                    && commit.committed(responseEntity.getStatusCode().value(), responseEntity.getBody())) {
+                log.debug("Response for idempotency key: {} was committed with the handler's records",
+                        idempotencyKey);
+                return result;
+            }
+            return cacheOnCompletion(idempotencyKey, result, idempotent.ttl(), request, tags);
+        }
+    }
+
+    private void countOutcome(Tags tags, String outcome) {
+        meterRegistry.counter("idempotency.requests", tags.and("outcome", outcome)).increment();
+    }
+
+    private Object timedReplay(IdempotencyKey cachedKey, Class<?> returnType, Tags tags) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return replay(cachedKey, returnType);
+        } finally {
+            sample.stop(meterRegistry.timer("idempotency.replay", tags));
+        }
+    }
+
+    private ResponseEntity<?> inFlightResponse(Optional<IdempotencyKey> completedKey, Tags tags) {
+        if (completedKey.isEmpty()) {
+            countOutcome(tags, "conflict");
+            return conflict();
         }
+        countOutcome(tags, "in_flight_hit");
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return storedResponse(completedKey.get());
+        } finally {
+            sample.stop(meterRegistry.timer("idempotency.replay", tags));
+        }
+    }
 
+    private static ResponseEntity<?> conflict() {
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .body("Request with the same idempotency key is still being processed");
+    }
+
+    /**
+     * Caches synchronous results right away and asynchronous ones when they complete.
+     * Anything that does not end in a ResponseEntity releases the reservation so a retry can run.
+     */
+    @SuppressWarnings("unchecked")
+    private Object cacheOnCompletion(String key, Object result, long ttl, HttpServletRequest request, Tags tags) {
+        if (result instanceof ResponseEntity<?> responseEntity) {
+            cacheResponse(key, responseEntity, ttl, tags);
+            return result;
+        }
+        if (result instanceof CompletionStage<?> stage) {
+            stage.whenComplete((value, error) -> completeAsync(key, value, error, ttl, tags));
+            return result;
+        }
+        if (result instanceof Callable<?> callable) {
+            return (Callable<Object>) () -> {
+                Object value;
+                try {
+                    value = callable.call();
+                } catch (Exception e) {
+                    completeAsync(key, null, e, ttl, tags);
+                    throw e;
+                }
+                completeAsync(key, value, null, ttl, tags);
+                return value;
+            };
+        }
+        if (result instanceof DeferredResult<?>) {
+            // Spring MVC owns the DeferredResult's handlers, so completion is observed by an interceptor
+            Consumer<Object> completion = value -> completeAsync(key, value, null, ttl, tags);
+            request.setAttribute(IdempotentDeferredResultInterceptor.COMPLETION_ATTRIBUTE, completion);
+            return result;
+        }
+        idempotencyService.delete(key);
         return result;
     }
 
+    private void completeAsync(String key, Object value, Throwable error, long ttl, Tags tags) {
+        if (error == null && value instanceof ResponseEntity<?> responseEntity) {
+            cacheResponse(key, responseEntity, ttl, tags);
+        } else {
+            idempotencyService.delete(key);
+        }
+    }
+
     private HttpServletRequest getCurrentRequest() {
         ServletRequestAttributes attributes = (ServletRequestAttributes) RequestContextHolder.getRequestAttributes();
         return attributes != null ? attributes.getRequest() : null;
     }
 
-    private String extractIdempotencyKey(HttpServletRequest request, Idempotent idempotent) {
+    private HttpServletResponse getCurrentResponse() {
+        ServletRequestAttributes attributes = (ServletRequestAttributes) RequestContextHolder.getRequestAttributes();
+        return attributes != null ? attributes.getResponse() : null;
+    }
+
+    private String extractIdempotencyKey(HttpServletRequest request, Idempotent idempotent,
+                                         ProceedingJoinPoint joinPoint) {
         String keyFromHeader = request.getHeader(IDEMPOTENCY_KEY_HEADER);
         if (keyFromHeader != null && !keyFromHeader.isEmpty()) {
             return keyFromHeader;
         }
 
         if (!idempotent.keyExpression().isEmpty()) {
-            return idempotent.keyExpression();
+            MethodSignature signature = (MethodSignature) joinPoint.getSignature();
+            return keyResolver.resolve(signature.getMethod(), joinPoint.getArgs());
         }
 
         return null;
     }
 
-    private void cacheResponse(String key, ResponseEntity<?> response, long ttl) {
+    private void cacheResponse(String key, ResponseEntity<?> response, long ttl, Tags tags) {
+        byte[] body;
         try {
-            String responseBody = objectMapper.writeValueAsString(response.getBody());
-            int statusCode = response.getStatusCode().value();
-            idempotencyService.save(key, responseBody, statusCode, ttl);
-            log.debug("Cached response for idempotency key: {}", key);
-        } catch (Exception e) {
+            body = codec.writeValueAsBytes(response.getBody());
+        } catch (JsonProcessingException e) {
+            // The handler's side effects already happened; the reservation is kept until its lease runs out
+            // so an immediate retry is turned away instead of repeating them
             log.error("Failed to cache response for key: {}", key, e);
+            meterRegistry.counter("idempotency.serialization.failures", tags).increment();
+            return;
         }
+        int statusCode = response.getStatusCode().value();
+        MediaType contentType = response.getHeaders().getContentType();
+        String contentTypeValue = contentType != null ? contentType.toString() : MediaType.APPLICATION_JSON_VALUE;
+        try {
+            idempotencyService.save(key, body, statusCode, contentTypeValue, ttl);
+        } catch (RuntimeException e) {
+            // Same as above: releasing the key now would let a retry charge again
+            log.error("Failed to save response for key: {}, keeping the reservation until its lease expires",
+                    key, e);
+            meterRegistry.counter("idempotency.save.failures", tags).increment();
+            throw e;
+        }
+        log.debug("Cached response for idempotency key: {}", key);
     }
 
-    private Object buildResponseFromCache(IdempotencyKey cachedKey) {
+    /**
+     * Replays the stored bytes as-is. For synchronous handlers with a reachable servlet response they are
+     * written straight to its output stream and null is returned, which Spring MVC treats as an already
+     * handled response. Otherwise they are returned as a ResponseEntity of raw bytes, already completed
+     * in the handler's async type, and written unchanged by the byte array converter.
+     */
+    private Object replay(IdempotencyKey cachedKey, Class<?> returnType) {
+        HttpServletResponse response = getCurrentResponse();
+        if (response == null || isAsync(returnType)) {
+            return adaptToReturnType(storedResponse(cachedKey), returnType);
+        }
+
+        String contentType = contentType(cachedKey);
+        byte[] body = cachedKey.getBody() != null ? cachedKey.getBody() : new byte[0];
+
         try {
-            Object body = objectMapper.readValue(cachedKey.getResponse(), Object.class);
-            return ResponseEntity
-                    .status(HttpStatus.valueOf(cachedKey.getStatusCode()))
-                    .body(body);
-        } catch (Exception e) {
-            log.error("Failed to deserialize cached response for key: {}", cachedKey.getKey(), e);
+            response.setStatus(cachedKey.getStatusCode());
+            response.setContentType(contentType);
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+            response.flushBuffer();
+            return null;
+        } catch (IOException e) {
+            log.error("Failed to write cached response for key: {}", cachedKey.getKey(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Error retrieving cached response");
         }
     }
+
+    private static ResponseEntity<byte[]> storedResponse(IdempotencyKey cachedKey) {
+        return ResponseEntity.status(cachedKey.getStatusCode())
+                .contentType(MediaType.parseMediaType(contentType(cachedKey)))
+                .body(cachedKey.getBody() != null ? cachedKey.getBody() : new byte[0]);
+    }
+
+    private static String contentType(IdempotencyKey cachedKey) {
+        return cachedKey.getContentType() != null ? cachedKey.getContentType() : MediaType.APPLICATION_JSON_VALUE;
+    }
+
+    private static boolean isAsync(Class<?> returnType) {
+        return CompletionStage.class.isAssignableFrom(returnType)
+                || DeferredResult.class.isAssignableFrom(returnType)
+                || Callable.class.isAssignableFrom(returnType);
+    }
+
+    private static Object adaptToReturnType(ResponseEntity<?> response, Class<?> returnType) {
+        return isAsync(returnType) ? adaptToReturnType(CompletableFuture.completedFuture(response), returnType)
+                : response;
+    }
+
+    /**
+     * Hands a response that is not ready yet back in the handler's async type. A Callable cannot be completed
+     * from outside, so it waits for the response on Spring MVC's async executor instead of the servlet thread.
+     */
+    private static Object adaptToReturnType(CompletableFuture<? extends ResponseEntity<?>> response,
+                                            Class<?> returnType) {
+        if (DeferredResult.class.isAssignableFrom(returnType)) {
+            DeferredResult<Object> deferredResult = new DeferredResult<>();
+            response.whenComplete((value, error) -> {
+                if (error != null) {
+                    deferredResult.setErrorResult(error instanceof CompletionException ? error.getCause() : error);
+                } else {
+                    deferredResult.setResult(value);
+                }
+            });
+            return deferredResult;
+        }
+        if (Callable.class.isAssignableFrom(returnType)) {
+            return (Callable<Object>) () -> {
+                try {
+                    return response.join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof Exception cause ? cause : e;
+                }
+            };
+        }
+        return response;
+    }
 }
@@ -0,0 +1,76 @@
+package com.example.distributetest.idempotency.aspect;
+
+import com.example.distributetest.idempotency.annotation.Idempotent;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Evaluates {@link Idempotent#keyExpression()} as SpEL over the method arguments.
+ * <p>
+ * Expressions are parsed once per method while beans are initialized, so a bad expression fails startup.
+ * They run in {@link SpelCompilerMode#IMMEDIATE}: SpEL needs one interpreted evaluation to learn the
+ * argument types, after which every call runs the generated bytecode. Argument names are resolved once
+ * per method; the per-request cost is binding the arguments and invoking the compiled expression.
+ */
+@Component
+public class IdempotencyKeyResolver implements BeanPostProcessor {
+
+    private final SpelExpressionParser parser = new SpelExpressionParser(
+            new SpelParserConfiguration(SpelCompilerMode.IMMEDIATE, IdempotencyKeyResolver.class.getClassLoader()));
+    private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
+    private final ConcurrentHashMap<Method, KeyExpression> expressions = new ConcurrentHashMap<>();
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        Class<?> targetClass = AopUtils.getTargetClass(bean);
+        ReflectionUtils.doWithMethods(targetClass,
+                method -> expressions.computeIfAbsent(method, this::parse),
+                method -> hasKeyExpression(method));
+        return bean;
+    }
+
+    /**
+     * Returns the derived key, namespaced by declaring class and method so that two endpoints using
+     * the same expression do not share keys, or null if the expression evaluates to null.
+     */
+    public String resolve(Method method, Object[] args) {
+        KeyExpression keyExpression = expressions.computeIfAbsent(method, this::parse);
+        StandardEvaluationContext context = new StandardEvaluationContext();
+        for (int i = 0; i < args.length; i++) {
+            context.setVariable("p" + i, args[i]);
+            if (keyExpression.parameterNames() != null) {
+                context.setVariable(keyExpression.parameterNames()[i], args[i]);
+            }
+        }
+        Object value = keyExpression.expression().getValue(context);
+        return value != null ? keyExpression.namespace() + value : null;
+    }
+
+    private KeyExpression parse(Method method) {
+        Idempotent idempotent = method.getAnnotation(Idempotent.class);
+        return new KeyExpression(
+                parser.parseExpression(idempotent.keyExpression()),
+                parameterNameDiscoverer.getParameterNames(method),
+                method.getDeclaringClass().getSimpleName() + "." + method.getName() + ":");
+    }
+
+    private static boolean hasKeyExpression(Method method) {
+        Idempotent idempotent = method.getAnnotation(Idempotent.class);
+        return idempotent != null && !idempotent.keyExpression().isEmpty();
+    }
+
+    private record KeyExpression(Expression expression, String[] parameterNames, String namespace) {
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.distributetest.idempotency.aspect;
+
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+
+import java.util.function.Consumer;
+
+/**
+ * Hands the outcome of an @Idempotent handler's DeferredResult back to {@link IdempotencyAspect}.
+ * The aspect leaves a completion callback in a request attribute; this runs it once, either with the
+ * concurrent result or, if the request ended without one (client gone, container timeout), with null.
+ */
+public class IdempotentDeferredResultInterceptor implements DeferredResultProcessingInterceptor {
+
+    static final String COMPLETION_ATTRIBUTE = IdempotentDeferredResultInterceptor.class.getName() + ".completion";
+
+    @Override
+    public <T> void postProcess(NativeWebRequest request, DeferredResult<T> deferredResult, Object concurrentResult) {
+        complete(request, concurrentResult);
+    }
+
+    @Override
+    public <T> void afterCompletion(NativeWebRequest request, DeferredResult<T> deferredResult) {
+        complete(request, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete(NativeWebRequest request, Object result) {
+        Object completion = request.getAttribute(COMPLETION_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (completion instanceof Consumer<?> callback) {
+            request.removeAttribute(COMPLETION_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            ((Consumer<Object>) callback).accept(result);
+        }
+    }
+}
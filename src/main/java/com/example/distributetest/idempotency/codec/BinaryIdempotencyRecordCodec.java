@@ -0,0 +1,222 @@
+package com.example.distributetest.idempotency.codec;
+
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact record layout:
+ * <pre>
+ * version:u8 flags:u8 status:u8 statusCode:u16 createdAt:i64 expiresAt:i64
+ * keyLength:u16 key contentTypeLength:u16 contentType bodyLength:i32 body
+ * </pre>
+ * Timestamps are epoch millis, strings are UTF-8 and the body is stored as raw bytes,
+ * deflated when it is larger than the compression threshold and compression actually helps.
+ * A string length of 0xFFFF marks null, so keys and content types are limited to {@value #MAX_SHORT_BYTES} bytes.
+ */
+public class BinaryIdempotencyRecordCodec implements IdempotencyRecordCodec {
+
+    public static final byte FORMAT_VERSION = 1;
+
+    private static final int FLAG_DEFLATED = 1;
+    private static final int NULL_LENGTH = -1;
+    private static final int MAX_SHORT_BYTES = 0xFFFE;
+    private static final long NULL_TIMESTAMP = Long.MIN_VALUE;
+    private static final int HEADER_BYTES = 1 + 1 + 1 + 2 + 8 + 8;
+    private static final int EXPIRES_AT_OFFSET = 1 + 1 + 1 + 2 + 8;
+    private static final IdempotencyStatus[] STATUSES = IdempotencyStatus.values();
+
+    private final int compressionThreshold;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    public BinaryIdempotencyRecordCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public byte[] encode(IdempotencyKey record) {
+        byte[] key = utf8(record.getKey());
+        byte[] contentType = utf8(record.getContentType());
+        byte[] body = record.getBody();
+        int flags = 0;
+        int rawBodyLength = body != null ? body.length : NULL_LENGTH;
+
+        if (body != null && body.length > compressionThreshold) {
+            byte[] deflated = deflate(body);
+            if (deflated.length < body.length) {
+                body = deflated;
+                flags |= FLAG_DEFLATED;
+            }
+        }
+
+        int size = HEADER_BYTES + 2 + lengthOf(key) + 2 + lengthOf(contentType) + 4 + lengthOf(body)
+                + ((flags & FLAG_DEFLATED) != 0 ? 4 : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(FORMAT_VERSION);
+        buffer.put((byte) flags);
+        buffer.put((byte) (record.getStatus() != null ? record.getStatus().ordinal() : IdempotencyStatus.COMPLETED.ordinal()));
+        buffer.putShort((short) record.getStatusCode());
+        buffer.putLong(toEpochMillis(record.getCreatedAt()));
+        buffer.putLong(toEpochMillis(record.getExpiresAt()));
+        putShortBytes(buffer, "key", key);
+        putShortBytes(buffer, "content type", contentType);
+        if (body == null) {
+            buffer.putInt(NULL_LENGTH);
+        } else {
+            buffer.putInt(body.length);
+            buffer.put(body);
+            if ((flags & FLAG_DEFLATED) != 0) {
+                buffer.putInt(rawBodyLength);
+            }
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public IdempotencyKey decode(byte[] bytes) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            byte version = buffer.get();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported idempotency record version: " + version);
+            }
+            int flags = buffer.get();
+            IdempotencyStatus status = STATUSES[buffer.get()];
+            int statusCode = Short.toUnsignedInt(buffer.getShort());
+            LocalDateTime createdAt = fromEpochMillis(buffer.getLong());
+            LocalDateTime expiresAt = fromEpochMillis(buffer.getLong());
+            String key = getShortString(buffer);
+            String contentType = getShortString(buffer);
+
+            byte[] body = null;
+            int bodyLength = buffer.getInt();
+            if (bodyLength != NULL_LENGTH) {
+                body = new byte[bodyLength];
+                buffer.get(body);
+                if ((flags & FLAG_DEFLATED) != 0) {
+                    body = inflate(body, buffer.getInt());
+                }
+            }
+
+            return IdempotencyKey.builder()
+                    .key(key)
+                    .body(body)
+                    .contentType(contentType)
+                    .statusCode(statusCode)
+                    .status(status)
+                    .createdAt(createdAt)
+                    .expiresAt(expiresAt)
+                    .build();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated idempotency record", e);
+        }
+    }
+
+    /**
+     * Reads only the key and expiry without touching the body, for index rebuilds.
+     */
+    public static Header readHeader(byte[] bytes) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.get(0) != FORMAT_VERSION) {
+                throw new IOException("Unsupported idempotency record version: " + buffer.get(0));
+            }
+            long expiresAt = buffer.getLong(EXPIRES_AT_OFFSET);
+            buffer.position(HEADER_BYTES);
+            return new Header(getShortString(buffer), expiresAt);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated idempotency record", e);
+        }
+    }
+
+    public record Header(String key, long expiresAtMillis) {
+    }
+
+    private long toEpochMillis(LocalDateTime dateTime) {
+        return dateTime != null ? dateTime.atZone(zone).toInstant().toEpochMilli() : NULL_TIMESTAMP;
+    }
+
+    private LocalDateTime fromEpochMillis(long epochMillis) {
+        return epochMillis != NULL_TIMESTAMP ? LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), zone) : null;
+    }
+
+    private static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int lengthOf(byte[] bytes) {
+        return bytes != null ? bytes.length : 0;
+    }
+
+    private static void putShortBytes(ByteBuffer buffer, String field, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putShort((short) NULL_LENGTH);
+            return;
+        }
+        if (bytes.length > MAX_SHORT_BYTES) {
+            throw new IllegalArgumentException("Idempotency record " + field + " is " + bytes.length
+                    + " bytes, at most " + MAX_SHORT_BYTES + " fit the binary format");
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getShortString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[Short.toUnsignedInt(length)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                out.write(chunk, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] input, int originalLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            byte[] output = new byte[originalLength];
+            int offset = 0;
+            while (offset < originalLength && !inflater.finished()) {
+                int count = inflater.inflate(output, offset, originalLength - offset);
+                if (count == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated compressed idempotency body");
+                }
+                offset += count;
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed idempotency body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.example.distributetest.idempotency.codec;
+
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+
+import java.io.IOException;
+
+public interface IdempotencyRecordCodec {
+    byte[] encode(IdempotencyKey record);
+    IdempotencyKey decode(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,30 @@
+package com.example.distributetest.idempotency.codec;
+
+import com.example.distributetest.codec.JsonCodec;
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The original JSON document layout. Kept so entries written before the binary format stay readable.
+ */
+public class JsonIdempotencyRecordCodec implements IdempotencyRecordCodec {
+
+    private final JsonCodec codec = JsonCodec.shared();
+
+    @Override
+    public byte[] encode(IdempotencyKey record) {
+        try {
+            return codec.idempotencyKeyWriter().writeValueAsBytes(record);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public IdempotencyKey decode(byte[] bytes) throws IOException {
+        return codec.idempotencyKeyReader().readValue(bytes);
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.distributetest.idempotency.codec;
+
+import com.example.distributetest.codec.JsonCodec;
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The JSON document layout in Smile, Jackson's binary JSON: same fields, shorter names and raw body bytes.
+ * Documents start with the {@code :)} header, which tells them apart from the other formats.
+ */
+public class SmileIdempotencyRecordCodec implements IdempotencyRecordCodec {
+
+    static final byte HEADER_FIRST_BYTE = ':';
+
+    private final JsonCodec codec = JsonCodec.shared();
+
+    @Override
+    public byte[] encode(IdempotencyKey record) {
+        try {
+            return codec.idempotencyKeySmileWriter().writeValueAsBytes(record);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public IdempotencyKey decode(byte[] bytes) throws IOException {
+        return codec.idempotencyKeySmileReader().readValue(bytes);
+    }
+}
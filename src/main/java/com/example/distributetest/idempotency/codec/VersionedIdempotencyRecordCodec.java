@@ -0,0 +1,59 @@
+package com.example.distributetest.idempotency.codec;
+
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+
+import java.io.IOException;
+
+/**
+ * Writes with the configured codec and reads either format, so a rollout or rollback
+ * can switch formats without invalidating keys already stored.
+ * JSON documents always start with '{', Smile documents with ':' and binary records with their version byte.
+ */
+public class VersionedIdempotencyRecordCodec implements IdempotencyRecordCodec {
+
+    private final IdempotencyRecordCodec writer;
+    private final BinaryIdempotencyRecordCodec binaryCodec;
+    private final JsonIdempotencyRecordCodec jsonCodec;
+    private final SmileIdempotencyRecordCodec smileCodec;
+
+    public VersionedIdempotencyRecordCodec(IdempotencyRecordCodec writer,
+                                           BinaryIdempotencyRecordCodec binaryCodec,
+                                           JsonIdempotencyRecordCodec jsonCodec,
+                                           SmileIdempotencyRecordCodec smileCodec) {
+        this.writer = writer;
+        this.binaryCodec = binaryCodec;
+        this.jsonCodec = jsonCodec;
+        this.smileCodec = smileCodec;
+    }
+
+    public static VersionedIdempotencyRecordCodec of(String format, int compressionThreshold) {
+        BinaryIdempotencyRecordCodec binaryCodec = new BinaryIdempotencyRecordCodec(compressionThreshold);
+        JsonIdempotencyRecordCodec jsonCodec = new JsonIdempotencyRecordCodec();
+        SmileIdempotencyRecordCodec smileCodec = new SmileIdempotencyRecordCodec();
+        IdempotencyRecordCodec writer = switch (format.toLowerCase()) {
+            case "json" -> jsonCodec;
+            case "smile" -> smileCodec;
+            default -> binaryCodec;
+        };
+        return new VersionedIdempotencyRecordCodec(writer, binaryCodec, jsonCodec, smileCodec);
+    }
+
+    @Override
+    public byte[] encode(IdempotencyKey record) {
+        return writer.encode(record);
+    }
+
+    @Override
+    public IdempotencyKey decode(byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            throw new IOException("Empty idempotency record");
+        }
+        if (bytes[0] == '{') {
+            return jsonCodec.decode(bytes);
+        }
+        if (bytes[0] == SmileIdempotencyRecordCodec.HEADER_FIRST_BYTE) {
+            return smileCodec.decode(bytes);
+        }
+        return binaryCodec.decode(bytes);
+    }
+}
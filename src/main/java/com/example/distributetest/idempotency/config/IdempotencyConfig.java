@@ -1,11 +1,26 @@
 package com.example.distributetest.idempotency.config;
 
+import com.example.distributetest.idempotency.codec.IdempotencyRecordCodec;
+import com.example.distributetest.idempotency.codec.VersionedIdempotencyRecordCodec;
+import com.example.distributetest.idempotency.filter.TimeBucketedBloomFilter;
+import com.example.distributetest.idempotency.service.BloomFilteredIdempotencyService;
 import com.example.distributetest.idempotency.service.IdempotencyService;
 import com.example.distributetest.idempotency.service.InMemoryIdempotencyService;
+import com.example.distributetest.idempotency.service.JdbcIdempotencyService;
+import com.example.distributetest.idempotency.service.MappedFileIdempotencyService;
 import com.example.distributetest.idempotency.service.RedisIdempotencyService;
+import com.example.distributetest.idempotency.service.TieredIdempotencyService;
+import com.example.distributetest.redis.RedisShardRouter;
+import com.example.distributetest.redis.RedisShards;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
@@ -13,39 +28,153 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 
 @Configuration
 public class IdempotencyConfig {
 
     private static final Logger log = LoggerFactory.getLogger(IdempotencyConfig.class);
+    private static final String REDIS_BACKED_STORAGE =
+            "'${idempotency.storage:}' == 'redis' or '${idempotency.storage:}' == 'tiered'";
 
     @Bean
-    @ConditionalOnProperty(name = "idempotency.storage", havingValue = "redis", matchIfMissing = false)
-    public RedisTemplate<String, String> idempotencyRedisTemplate(RedisConnectionFactory connectionFactory) {
-        RedisTemplate<String, String> template = new RedisTemplate<>();
-        template.setConnectionFactory(connectionFactory);
-        template.setKeySerializer(new StringRedisSerializer());
-        template.setValueSerializer(new StringRedisSerializer());
-        template.setHashKeySerializer(new StringRedisSerializer());
-        template.setHashValueSerializer(new StringRedisSerializer());
-        template.afterPropertiesSet();
-        log.info("Redis template configured for idempotency");
-        return template;
+    @ConditionalOnExpression(REDIS_BACKED_STORAGE)
+    public RedisShardRouter<byte[]> idempotencyRedisRouter(RedisShards redisShards) {
+        log.info("Redis router configured for idempotency");
+        return redisShards.router(RedisSerializer.byteArray());
+    }
+
+    @Bean
+    @ConditionalOnExpression(REDIS_BACKED_STORAGE)
+    public RedisMessageListenerContainer idempotencyListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
+    @Bean
+    @ConditionalOnExpression(REDIS_BACKED_STORAGE)
+    public IdempotencyRecordCodec idempotencyRecordCodec(
+            @Value("${idempotency.redis.codec:binary}") String format,
+            @Value("${idempotency.redis.compression-threshold:1024}") int compressionThreshold) {
+        log.info("Idempotency records written as {} (compression above {} bytes)", format, compressionThreshold);
+        return VersionedIdempotencyRecordCodec.of(format, compressionThreshold);
     }
 
     @Bean
-    @Primary
     @ConditionalOnProperty(name = "idempotency.storage", havingValue = "redis", matchIfMissing = false)
-    public IdempotencyService redisIdempotencyService(RedisTemplate<String, String> redisTemplate) {
+    public IdempotencyService redisIdempotencyService(RedisShardRouter<byte[]> idempotencyRedisRouter,
+                                                      RedisMessageListenerContainer idempotencyListenerContainer,
+                                                      IdempotencyRecordCodec idempotencyRecordCodec,
+                                                      MeterRegistry meterRegistry) {
         log.info("Using Redis-based idempotency service");
-        return new RedisIdempotencyService(redisTemplate);
+        return new RedisIdempotencyService(idempotencyRedisRouter, idempotencyListenerContainer,
+                idempotencyRecordCodec, meterRegistry);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "idempotency.storage", havingValue = "tiered")
+    public IdempotencyService tieredIdempotencyService(
+            RedisTemplate<String, String> redisTemplate,
+            RedisShardRouter<byte[]> idempotencyRedisRouter,
+            RedisMessageListenerContainer idempotencyListenerContainer,
+            IdempotencyRecordCodec idempotencyRecordCodec,
+            MeterRegistry meterRegistry,
+            @Value("${idempotency.tiered.max-entries:100000}") long maxEntries,
+            @Value("${idempotency.tiered.max-bytes:67108864}") long maxBytes,
+            @Value("${idempotency.tiered.local-ttl:60s}") Duration localTtl) {
+        log.info("Using tiered idempotency service (local near-cache: {} entries, TTL: {})", maxEntries, localTtl);
+        RedisIdempotencyService remote = new RedisIdempotencyService(idempotencyRedisRouter,
+                idempotencyListenerContainer, idempotencyRecordCodec, meterRegistry);
+        TieredIdempotencyService tiered = new TieredIdempotencyService(remote, redisTemplate,
+                idempotencyListenerContainer, maxEntries, maxBytes, localTtl);
+        Gauge.builder("idempotency.store.entries", tiered, service -> service.stats().size())
+                .description("Idempotency keys held in the local near-cache")
+                .tag("store", "tiered")
+                .register(meterRegistry);
+        FunctionCounter.builder("idempotency.nearcache.hits", tiered, service -> service.stats().hits())
+                .register(meterRegistry);
+        FunctionCounter.builder("idempotency.nearcache.misses", tiered, service -> service.stats().misses())
+                .register(meterRegistry);
+        return tiered;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "idempotency.storage", havingValue = "file")
+    public IdempotencyService mappedFileIdempotencyService(
+            @Value("${idempotency.file.directory:./data/idempotency}") String directory,
+            @Value("${idempotency.file.segment-bytes:67108864}") int segmentBytes,
+            @Value("${idempotency.file.index-capacity:1048576}") int indexCapacity,
+            @Value("${idempotency.file.compaction-interval:1m}") Duration compactionInterval,
+            MeterRegistry meterRegistry) throws IOException {
+        log.info("Using memory-mapped file idempotency service at {}", directory);
+        return new MappedFileIdempotencyService(Path.of(directory), segmentBytes, indexCapacity, compactionInterval,
+                meterRegistry);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "idempotency.storage", havingValue = "jdbc")
+    public IdempotencyService jdbcIdempotencyService(
+            JdbcTemplate jdbcTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${idempotency.jdbc.partition-period:1h}") Duration partitionPeriod,
+            @Value("${idempotency.jdbc.max-ttl:2h}") Duration maxTtl) {
+        log.info("Using PostgreSQL idempotency service (partitions of {}, max TTL: {})", partitionPeriod, maxTtl);
+        return new JdbcIdempotencyService(jdbcTemplate, partitionPeriod, maxTtl, meterRegistry);
     }
 
     @Bean
     @ConditionalOnMissingBean(IdempotencyService.class)
-    public IdempotencyService inMemoryIdempotencyService() {
-        log.info("Using in-memory idempotency service");
-        return new InMemoryIdempotencyService();
+    public IdempotencyService inMemoryIdempotencyService(
+            @Value("${idempotency.memory.max-entries:1000000}") long maxEntries,
+            @Value("${idempotency.memory.max-bytes:268435456}") long maxBytes,
+            MeterRegistry meterRegistry) {
+        log.info("Using in-memory idempotency service (max entries: {}, max bytes: {})", maxEntries, maxBytes);
+        return new InMemoryIdempotencyService(maxEntries, maxBytes, meterRegistry);
+    }
+
+    /**
+     * Declared after the storage beans so it wraps whichever one is active.
+     */
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "idempotency.bloom.enabled", havingValue = "true")
+    public IdempotencyService bloomFilteredIdempotencyService(
+            IdempotencyService idempotencyService,
+            RedisTemplate<String, String> redisTemplate,
+            ObjectProvider<RedisMessageListenerContainer> idempotencyListenerContainer,
+            MeterRegistry meterRegistry,
+            @Value("${idempotency.bloom.generations:5}") int generations,
+            @Value("${idempotency.bloom.generation-period:30m}") Duration generationPeriod,
+            @Value("${idempotency.bloom.expected-insertions:1000000}") long expectedInsertions,
+            @Value("${idempotency.bloom.false-positive-rate:0.01}") double falsePositiveRate) {
+        log.info("Bloom filter in front of idempotency lookups ({} generations of {})", generations, generationPeriod);
+        TimeBucketedBloomFilter filter = new TimeBucketedBloomFilter(
+                generations, generationPeriod, expectedInsertions, falsePositiveRate);
+        // Inserts are only shared between nodes when the store is Redis-backed
+        RedisMessageListenerContainer listenerContainer = idempotencyListenerContainer.getIfAvailable();
+        BloomFilteredIdempotencyService filtered = new BloomFilteredIdempotencyService(idempotencyService, filter,
+                listenerContainer != null ? redisTemplate : null, listenerContainer);
+        FunctionCounter.builder("idempotency.bloom.negatives", filtered, service -> service.stats().filterNegatives())
+                .description("Lookups answered locally as never seen")
+                .register(meterRegistry);
+        FunctionCounter.builder("idempotency.bloom.false.positives", filtered, service -> service.stats().falsePositives())
+                .description("Filter positives that missed in the store")
+                .register(meterRegistry);
+        Gauge.builder("idempotency.bloom.false.positive.rate", filtered,
+                        service -> service.stats().observedFalsePositiveRate())
+                .tag("kind", "observed")
+                .register(meterRegistry);
+        Gauge.builder("idempotency.bloom.false.positive.rate", filtered,
+                        service -> service.stats().expectedFalsePositiveRate())
+                .tag("kind", "expected")
+                .register(meterRegistry);
+        return filtered;
     }
 }
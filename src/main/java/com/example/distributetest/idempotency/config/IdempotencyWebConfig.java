@@ -0,0 +1,15 @@
+package com.example.distributetest.idempotency.config;
+
+import com.example.distributetest.idempotency.aspect.IdempotentDeferredResultInterceptor;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class IdempotencyWebConfig implements WebMvcConfigurer {
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.registerDeferredResultInterceptors(new IdempotentDeferredResultInterceptor());
+    }
+}
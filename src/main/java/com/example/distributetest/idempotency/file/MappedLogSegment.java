@@ -0,0 +1,115 @@
+package com.example.distributetest.idempotency.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fixed-size, memory-mapped append-only log file. Each record is {length:i32, type:u8, payload}.
+ * The length is written after the payload, so a record torn by a crash reads as the end of the log.
+ * Not thread-safe; the owning store serializes writers and excludes readers while appending.
+ */
+public class MappedLogSegment implements Closeable {
+
+    public static final int RECORD_HEADER_BYTES = 5;
+
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int writePosition;
+    private long maxExpiresAtMillis = Long.MIN_VALUE;
+
+    private MappedLogSegment(int id, Path path, FileChannel channel, MappedByteBuffer buffer, int capacity) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    public static MappedLogSegment open(int id, Path path, int segmentBytes) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int capacity = (int) Math.max(segmentBytes, channel.size());
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        return new MappedLogSegment(id, path, channel, buffer, capacity);
+    }
+
+    /**
+     * Walks the records written so far and positions the segment for further appends.
+     */
+    public void scan(RecordVisitor visitor) throws IOException {
+        int position = 0;
+        while (position + RECORD_HEADER_BYTES <= capacity) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > capacity) {
+                break;
+            }
+            visitor.visit(position, buffer.get(position + 4), readPayload(position));
+            position += RECORD_HEADER_BYTES + length;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * Returns the record offset, or -1 if the segment has no room left.
+     */
+    public int append(byte type, byte[] payload) {
+        int offset = writePosition;
+        if (offset + RECORD_HEADER_BYTES + payload.length > capacity) {
+            return -1;
+        }
+        buffer.put(offset + 4, type);
+        buffer.put(offset + RECORD_HEADER_BYTES, payload);
+        buffer.putInt(offset, payload.length);
+        writePosition = offset + RECORD_HEADER_BYTES + payload.length;
+        return offset;
+    }
+
+    public byte[] readPayload(int offset) {
+        byte[] payload = new byte[buffer.getInt(offset)];
+        buffer.get(offset + RECORD_HEADER_BYTES, payload);
+        return payload;
+    }
+
+    public void recordExpiry(long expiresAtMillis) {
+        maxExpiresAtMillis = Math.max(maxExpiresAtMillis, expiresAtMillis);
+    }
+
+    public boolean isFullyExpired(long nowMillis) {
+        return maxExpiresAtMillis < nowMillis;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @FunctionalInterface
+    public interface RecordVisitor {
+        void visit(int offset, byte type, byte[] payload) throws IOException;
+    }
+}
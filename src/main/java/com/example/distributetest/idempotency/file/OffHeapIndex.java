@@ -0,0 +1,140 @@
+package com.example.distributetest.idempotency.file;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongPredicate;
+
+/**
+ * Open-addressing hash index from 64-bit key hash to log location, kept in a direct buffer so it
+ * does not add to the Java heap. Each slot is {hash:i64, location:i64}; location 0 marks an empty slot
+ * and -1 a deleted one. Hashes can collide, so callers confirm matches against the stored key.
+ * Not thread-safe; the owning store serializes writers.
+ */
+public class OffHeapIndex {
+
+    private static final int SLOT_BYTES = 16;
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = -1L;
+    private static final double MAX_LOAD = 0.7;
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+    private int used;
+
+    public OffHeapIndex(int initialCapacity) {
+        allocate(Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1);
+    }
+
+    public long find(long hash, LongPredicate isKey) {
+        int mask = capacity - 1;
+        for (int slot = (int) hash & mask, probes = 0; probes < capacity; slot = (slot + 1) & mask, probes++) {
+            long location = locationAt(slot);
+            if (location == EMPTY) {
+                return EMPTY;
+            }
+            if (location != TOMBSTONE && hashAt(slot) == hash && isKey.test(location)) {
+                return location;
+            }
+        }
+        return EMPTY;
+    }
+
+    public void put(long hash, long location, LongPredicate isKey) {
+        if (used + 1 > capacity * MAX_LOAD) {
+            resize(size + 1 > capacity * MAX_LOAD / 2 ? capacity << 1 : capacity);
+        }
+        int mask = capacity - 1;
+        int firstFree = -1;
+        for (int slot = (int) hash & mask, probes = 0; probes < capacity; slot = (slot + 1) & mask, probes++) {
+            long current = locationAt(slot);
+            if (current == EMPTY) {
+                if (firstFree < 0) {
+                    firstFree = slot;
+                    used++;
+                }
+                break;
+            }
+            if (current == TOMBSTONE) {
+                if (firstFree < 0) {
+                    firstFree = slot;
+                }
+            } else if (hashAt(slot) == hash && isKey.test(current)) {
+                write(slot, hash, location);
+                return;
+            }
+        }
+        write(firstFree, hash, location);
+        size++;
+    }
+
+    public boolean remove(long hash, LongPredicate isKey) {
+        int mask = capacity - 1;
+        for (int slot = (int) hash & mask, probes = 0; probes < capacity; slot = (slot + 1) & mask, probes++) {
+            long location = locationAt(slot);
+            if (location == EMPTY) {
+                return false;
+            }
+            if (location != TOMBSTONE && hashAt(slot) == hash && isKey.test(location)) {
+                write(slot, hash, TOMBSTONE);
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void removeIf(LongPredicate locationFilter) {
+        for (int slot = 0; slot < capacity; slot++) {
+            long location = locationAt(slot);
+            if (location != EMPTY && location != TOMBSTONE && locationFilter.test(location)) {
+                write(slot, hashAt(slot), TOMBSTONE);
+                size--;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize(int newCapacity) {
+        ByteBuffer old = slots;
+        int oldCapacity = capacity;
+        allocate(newCapacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            long location = old.getLong(i * SLOT_BYTES + 8);
+            if (location == EMPTY || location == TOMBSTONE) {
+                continue;
+            }
+            long hash = old.getLong(i * SLOT_BYTES);
+            int slot = (int) hash & mask;
+            while (locationAt(slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            write(slot, hash, location);
+            size++;
+            used++;
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        slots = ByteBuffer.allocateDirect(Math.multiplyExact(newCapacity, SLOT_BYTES));
+        capacity = newCapacity;
+        size = 0;
+        used = 0;
+    }
+
+    private long hashAt(int slot) {
+        return slots.getLong(slot * SLOT_BYTES);
+    }
+
+    private long locationAt(int slot) {
+        return slots.getLong(slot * SLOT_BYTES + 8);
+    }
+
+    private void write(int slot, long hash, long location) {
+        slots.putLong(slot * SLOT_BYTES, hash);
+        slots.putLong(slot * SLOT_BYTES + 8, location);
+    }
+}
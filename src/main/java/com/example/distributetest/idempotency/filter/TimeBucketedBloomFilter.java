@@ -0,0 +1,86 @@
+package com.example.distributetest.idempotency.filter;
+
+import com.example.distributetest.cache.KeyHash;
+
+import java.time.Duration;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Ring of Bloom filters, one per time bucket. Inserts go to the current bucket and lookups check all of them.
+ * When a bucket ages out the oldest filter is dropped, so keys leave the filter roughly when their TTL ends.
+ */
+public class TimeBucketedBloomFilter {
+
+    private final BloomFilter[] generations;
+    private final long bucketMillis;
+    private final long expectedInsertions;
+    private final double falsePositiveRate;
+    private final LongSupplier clockMillis;
+    private final ReentrantLock rotationLock = new ReentrantLock();
+    private volatile long currentBucket;
+    private volatile int head;
+
+    public TimeBucketedBloomFilter(int generationCount, Duration bucketPeriod,
+                                   long expectedInsertions, double falsePositiveRate) {
+        this(generationCount, bucketPeriod, expectedInsertions, falsePositiveRate, System::currentTimeMillis);
+    }
+
+    public TimeBucketedBloomFilter(int generationCount, Duration bucketPeriod, long expectedInsertions,
+                                   double falsePositiveRate, LongSupplier clockMillis) {
+        this.generations = new BloomFilter[generationCount];
+        this.bucketMillis = bucketPeriod.toMillis();
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveRate = falsePositiveRate;
+        this.clockMillis = clockMillis;
+        for (int i = 0; i < generationCount; i++) {
+            generations[i] = new BloomFilter(expectedInsertions, falsePositiveRate);
+        }
+        this.currentBucket = clockMillis.getAsLong() / bucketMillis;
+    }
+
+    public void put(String key) {
+        rotateIfNeeded();
+        generations[head].put(KeyHash.hash64(key));
+    }
+
+    public boolean mightContain(String key) {
+        rotateIfNeeded();
+        long hash = KeyHash.hash64(key);
+        for (BloomFilter generation : generations) {
+            if (generation.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Upper bound on the false-positive probability across all live generations.
+     */
+    public double expectedFalsePositiveRate() {
+        double allMiss = 1.0;
+        for (BloomFilter generation : generations) {
+            allMiss *= 1.0 - generation.expectedFalsePositiveRate();
+        }
+        return 1.0 - allMiss;
+    }
+
+    private void rotateIfNeeded() {
+        long bucket = clockMillis.getAsLong() / bucketMillis;
+        if (bucket <= currentBucket || !rotationLock.tryLock()) {
+            return;
+        }
+        try {
+            long elapsed = Math.min(bucket - currentBucket, generations.length);
+            for (long i = 0; i < elapsed; i++) {
+                int next = (head + 1) % generations.length;
+                generations[next] = new BloomFilter(expectedInsertions, falsePositiveRate);
+                head = next;
+            }
+            currentBucket = bucket;
+        } finally {
+            rotationLock.unlock();
+        }
+    }
+}
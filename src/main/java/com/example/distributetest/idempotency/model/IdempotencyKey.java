@@ -1,10 +1,13 @@
 package com.example.distributetest.idempotency.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonSetter;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 
 @Data
@@ -13,8 +16,26 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 public class IdempotencyKey {
     private String key;
-    private String response;
+    private byte[] body;
+    private String contentType;
     private int statusCode;
+    private IdempotencyStatus status;
     private LocalDateTime createdAt;
     private LocalDateTime expiresAt;
+
+    /**
+     * Entries written before reservations existed carry no status and are treated as completed.
+     */
+    @JsonIgnore
+    public boolean isCompleted() {
+        return status != IdempotencyStatus.IN_PROGRESS;
+    }
+
+    /**
+     * Reads entries written when the body was stored as an embedded JSON string.
+     */
+    @JsonSetter("response")
+    public void setLegacyResponse(String response) {
+        this.body = response != null ? response.getBytes(StandardCharsets.UTF_8) : null;
+    }
 }
@@ -0,0 +1,16 @@
+package com.example.distributetest.idempotency.model;
+
+/**
+ * Outcome of a combined lookup and reservation. When not acquired, {@code existing} holds the entry
+ * that blocked the reservation if the store could return it, or null if it is only known to exist.
+ */
+public record IdempotencyReservation(boolean acquired, IdempotencyKey existing) {
+
+    public static IdempotencyReservation granted() {
+        return new IdempotencyReservation(true, null);
+    }
+
+    public static IdempotencyReservation heldBy(IdempotencyKey existing) {
+        return new IdempotencyReservation(false, existing);
+    }
+}
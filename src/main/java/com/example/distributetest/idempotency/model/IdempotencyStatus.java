@@ -0,0 +1,6 @@
+package com.example.distributetest.idempotency.model;
+
+public enum IdempotencyStatus {
+    IN_PROGRESS,
+    COMPLETED
+}
@@ -0,0 +1,220 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.filter.TimeBucketedBloomFilter;
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers "never seen" locally for first-time keys so they skip the store lookup.
+ * <p>
+ * A filter miss only skips {@link #get}; {@link #reserve} still goes to the store, so a key the filter
+ * has not heard about yet (e.g. an insert published by a peer that has not arrived) is caught there
+ * and the duplicate parks on the first request as usual. Filter positives always consult the store.
+ * When the store already looks up and reserves in one round trip, a miss takes that call too: skipping the
+ * lookup would save nothing and lose the entry that blocked the reservation.
+ * <p>
+ * New keys are shared with peers off the request thread, batched into one publish every 50 ms; until a
+ * batch arrives a peer's miss is still caught by the store.
+ */
+public class BloomFilteredIdempotencyService implements IdempotencyService, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(BloomFilteredIdempotencyService.class);
+    private static final String INSERT_CHANNEL = "idempotency:bloom";
+    private static final Duration PUBLISH_INTERVAL = Duration.ofMillis(50);
+    private static final int MAX_KEYS_PER_PUBLISH = 1_000;
+    // Keys come from headers or SpEL over request fields, which cannot contain a line break
+    private static final char KEY_SEPARATOR = '\n';
+    private final IdempotencyService delegate;
+    private final TimeBucketedBloomFilter filter;
+    private final RedisTemplate<String, String> redisTemplate;
+    private final ConcurrentLinkedQueue<String> unpublished = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService publisher;
+
+    private final LongAdder filterNegatives = new LongAdder();
+    private final LongAdder filterPositives = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    public BloomFilteredIdempotencyService(IdempotencyService delegate, TimeBucketedBloomFilter filter,
+                                           RedisTemplate<String, String> redisTemplate,
+                                           RedisMessageListenerContainer listenerContainer) {
+        this.delegate = delegate;
+        this.filter = filter;
+        this.redisTemplate = redisTemplate;
+        if (listenerContainer != null) {
+            listenerContainer.addMessageListener(this::onPeerInsert, new ChannelTopic(INSERT_CHANNEL));
+        }
+        if (redisTemplate != null) {
+            this.publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "idempotency-bloom-publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long intervalMillis = PUBLISH_INTERVAL.toMillis();
+            publisher.scheduleWithFixedDelay(this::publishInserts, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.publisher = null;
+        }
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return filter.mightContain(key) && delegate.exists(key);
+    }
+
+    @Override
+    public Optional<IdempotencyKey> get(String key) {
+        if (!filter.mightContain(key)) {
+            filterNegatives.increment();
+            return Optional.empty();
+        }
+        filterPositives.increment();
+        Optional<IdempotencyKey> idempotencyKey = delegate.get(key);
+        if (idempotencyKey.isEmpty()) {
+            falsePositives.increment();
+        }
+        return idempotencyKey;
+    }
+
+    @Override
+    public boolean reserve(String key, Duration lease) {
+        boolean reserved = delegate.reserve(key, lease);
+        // Record the key either way: a failed reservation means it exists somewhere
+        insert(key);
+        return reserved;
+    }
+
+    @Override
+    public IdempotencyReservation getOrReserve(String key, Duration lease) {
+        if (filter.mightContain(key)) {
+            filterPositives.increment();
+            IdempotencyReservation reservation = delegate.getOrReserve(key, lease);
+            if (reservation.acquired()) {
+                falsePositives.increment();
+            }
+            return reservation;
+        }
+        filterNegatives.increment();
+        IdempotencyReservation reservation;
+        if (delegate.getOrReserveInOneRoundTrip()) {
+            reservation = delegate.getOrReserve(key, lease);
+        } else if (delegate.reserve(key, lease)) {
+            // Filter miss: the lookup half is skipped, the reservation still goes to the store
+            reservation = IdempotencyReservation.granted();
+        } else {
+            // Rare: the key exists although the filter has not heard of it, e.g. after a restart
+            reservation = IdempotencyReservation.heldBy(delegate.get(key).orElse(null));
+        }
+        // Record the key either way: a failed reservation means it exists somewhere
+        insert(key);
+        return reservation;
+    }
+
+    @Override
+    public boolean getOrReserveInOneRoundTrip() {
+        return delegate.getOrReserveInOneRoundTrip();
+    }
+
+    @Override
+    public Optional<IdempotencyKey> awaitCompletion(String key, Duration timeout) {
+        return delegate.awaitCompletion(key, timeout);
+    }
+
+    @Override
+    public CompletableFuture<Optional<IdempotencyKey>> awaitCompletionAsync(String key, Duration timeout) {
+        return delegate.awaitCompletionAsync(key, timeout);
+    }
+
+    @Override
+    public void save(String key, byte[] body, int statusCode, String contentType, long ttlMinutes) {
+        delegate.save(key, body, statusCode, contentType, ttlMinutes);
+    }
+
+    @Override
+    public void delete(String key) {
+        // Bloom filters cannot forget; the stale bit only costs one store lookup
+        delegate.delete(key);
+    }
+
+    @Override
+    public IdempotencyCommit openCommit(String key, long ttlMinutes) {
+        return delegate.openCommit(key, ttlMinutes);
+    }
+
+    @Override
+    public String storeName() {
+        return delegate.storeName();
+    }
+
+    public Stats stats() {
+        long positives = filterPositives.sum();
+        double observedFalsePositiveRate = positives == 0 ? 0.0 : (double) falsePositives.sum() / positives;
+        return new Stats(filterNegatives.sum(), positives, falsePositives.sum(),
+                observedFalsePositiveRate, filter.expectedFalsePositiveRate());
+    }
+
+    @Override
+    public void close() {
+        if (publisher != null) {
+            publisher.shutdown();
+            publishInserts();
+        }
+    }
+
+    private void insert(String key) {
+        filter.put(key);
+        if (publisher != null) {
+            unpublished.add(key);
+        }
+    }
+
+    private void publishInserts() {
+        while (!unpublished.isEmpty()) {
+            StringJoiner batch = new StringJoiner(String.valueOf(KEY_SEPARATOR));
+            int count = 0;
+            String key;
+            while (count < MAX_KEYS_PER_PUBLISH && (key = unpublished.poll()) != null) {
+                batch.add(key);
+                count++;
+            }
+            try {
+                redisTemplate.convertAndSend(INSERT_CHANNEL, batch.toString());
+            } catch (Exception e) {
+                // Peers that miss these keys still find them in the store, one lookup later
+                log.warn("Failed to publish {} bloom filter inserts", count, e);
+                return;
+            }
+        }
+    }
+
+    private void onPeerInsert(Message message, byte[] pattern) {
+        String keys = new String(message.getBody(), StandardCharsets.UTF_8);
+        int start = 0;
+        for (int end = keys.indexOf(KEY_SEPARATOR); end >= 0; end = keys.indexOf(KEY_SEPARATOR, start)) {
+            filter.put(keys.substring(start, end));
+            start = end + 1;
+        }
+        filter.put(keys.substring(start));
+    }
+
+    public record Stats(long filterNegatives, long filterPositives, long falsePositives,
+                        double observedFalsePositiveRate, double expectedFalsePositiveRate) {
+    }
+}
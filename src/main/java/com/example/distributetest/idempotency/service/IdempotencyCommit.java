@@ -0,0 +1,37 @@
+package com.example.distributetest.idempotency.service;
+
+/**
+ * Open while an @Idempotent handler runs, so the handler can store its response in the same write as its own
+ * records. See {@link IdempotencyService#openCommit}.
+ */
+public interface IdempotencyCommit extends AutoCloseable {
+
+    IdempotencyCommit NONE = new IdempotencyCommit() {
+        @Override
+        public boolean committed(int statusCode, Object body) {
+            return false;
+        }
+
+        @Override
+        public boolean failed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Whether the handler already stored this response, so saving it again can be skipped.
+     */
+    boolean committed(int statusCode, Object body);
+
+    /**
+     * Whether a write the handler made through this commit failed, leaving its records in doubt.
+     */
+    boolean failed();
+
+    @Override
+    void close();
+}
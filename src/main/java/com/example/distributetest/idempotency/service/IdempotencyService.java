@@ -1,12 +1,73 @@
 package com.example.distributetest.idempotency.service;
 
 import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
 
+import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public interface IdempotencyService {
     boolean exists(String key);
     Optional<IdempotencyKey> get(String key);
-    void save(String key, String response, int statusCode, long ttlMinutes);
+
+    /**
+     * Atomically claims the key with an IN_PROGRESS marker. Returns false if another request already holds it.
+     */
+    boolean reserve(String key, Duration lease);
+
+    /**
+     * Returns the existing entry, or reserves the key if there is none. Stores that can do both in one
+     * round trip override this; the default is a lookup followed by {@link #reserve}.
+     */
+    default IdempotencyReservation getOrReserve(String key, Duration lease) {
+        Optional<IdempotencyKey> existing = get(key);
+        if (existing.isPresent()) {
+            return IdempotencyReservation.heldBy(existing.get());
+        }
+        if (reserve(key, lease)) {
+            return IdempotencyReservation.granted();
+        }
+        return IdempotencyReservation.heldBy(get(key).orElse(null));
+    }
+
+    /**
+     * Whether {@link #getOrReserve} costs a single round trip to the store, so a caller gains nothing by
+     * skipping its lookup half.
+     */
+    default boolean getOrReserveInOneRoundTrip() {
+        return false;
+    }
+
+    /**
+     * Parks the caller until the request holding the key completes or the timeout elapses.
+     * Returns the completed entry, or empty if the reservation was released or is still in flight.
+     */
+    Optional<IdempotencyKey> awaitCompletion(String key, Duration timeout);
+
+    /**
+     * {@link #awaitCompletion} for handlers with an async return type, which must not hold the servlet thread
+     * while they wait. Stores that are woken by a completion signal complete the future from it; the default
+     * waits on a virtual thread.
+     */
+    default CompletableFuture<Optional<IdempotencyKey>> awaitCompletionAsync(String key, Duration timeout) {
+        return CompletableFuture.supplyAsync(() -> awaitCompletion(key, timeout), InFlightWaiters.VIRTUAL_THREADS);
+    }
+
+    void save(String key, byte[] body, int statusCode, String contentType, long ttlMinutes);
     void delete(String key);
+
+    /**
+     * Opens a commit on the current thread for the handler of {@code key}. Records the handler writes through
+     * {@link com.example.distributetest.redis.RedisCommitBatch#commit} then carry the key's response in the
+     * same MULTI/EXEC. Stores that cannot share a transaction with them return {@link IdempotencyCommit#NONE}.
+     */
+    default IdempotencyCommit openCommit(String key, long ttlMinutes) {
+        return IdempotencyCommit.NONE;
+    }
+
+    /**
+     * Name of the backing store as used by {@code idempotency.storage} and the {@code store} meter tag.
+     */
+    String storeName();
 }
@@ -0,0 +1,65 @@
+package com.example.distributetest.idempotency.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.function.Supplier;
+
+/**
+ * Store-level meters shared by the idempotency backends, tagged with the store type.
+ */
+public class IdempotencyStoreMetrics {
+
+    private final String store;
+    private final Timer getTimer;
+    private final Timer saveTimer;
+    private final DistributionSummary readBytes;
+    private final DistributionSummary writtenBytes;
+
+    public IdempotencyStoreMetrics(MeterRegistry registry, String store) {
+        this.store = store;
+        this.getTimer = Timer.builder("idempotency.store.get")
+                .description("Idempotency store lookup latency")
+                .tag("store", store)
+                .publishPercentileHistogram()
+                .register(registry);
+        this.saveTimer = Timer.builder("idempotency.store.save")
+                .description("Idempotency store write latency")
+                .tag("store", store)
+                .publishPercentileHistogram()
+                .register(registry);
+        this.readBytes = payloadSummary(registry, store, "read");
+        this.writtenBytes = payloadSummary(registry, store, "write");
+    }
+
+    public String store() {
+        return store;
+    }
+
+    public <T> T timeGet(Supplier<T> lookup) {
+        return getTimer.record(lookup);
+    }
+
+    public void timeSave(Runnable write) {
+        saveTimer.record(write);
+    }
+
+    public void recordRead(int bytes) {
+        readBytes.record(bytes);
+    }
+
+    public void recordWrite(int bytes) {
+        writtenBytes.record(bytes);
+    }
+
+    private static DistributionSummary payloadSummary(MeterRegistry registry, String store, String operation) {
+        return DistributionSummary.builder("idempotency.store.payload")
+                .description("Size of idempotency records moved to or from the store")
+                .baseUnit("bytes")
+                .tag("store", store)
+                .tag("operation", operation)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+}
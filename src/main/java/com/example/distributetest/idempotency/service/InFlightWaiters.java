@@ -0,0 +1,106 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Local parking spot for duplicate requests. All waiters on a key share one future,
+ * which is completed when the owning request saves or releases the key.
+ * <p>
+ * The entry counts the waiters parked on it and the last one to leave removes it, so keys whose owner
+ * never signals (it crashed and its lease ran out, or the completion raced the registration) do not
+ * stay in the map.
+ */
+class InFlightWaiters {
+
+    static final Executor VIRTUAL_THREADS = command -> Thread.ofVirtual().name("idempotency-waiter").start(command);
+
+    private final ConcurrentHashMap<String, Waiter> waiters = new ConcurrentHashMap<>();
+
+    Optional<IdempotencyKey> await(String key, Duration timeout, Supplier<Optional<IdempotencyKey>> lookup) {
+        Waiter waiter = register(key);
+        try {
+            // Re-check after registering so a completion that raced the registration is not missed
+            Optional<IdempotencyKey> current = lookup.get();
+            if (current.isEmpty() || current.get().isCompleted()) {
+                return current;
+            }
+
+            try {
+                waiter.signal.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Optional.empty();
+            } catch (TimeoutException | ExecutionException e) {
+                // Fall through to a final lookup
+            }
+            return lookup.get().filter(IdempotencyKey::isCompleted);
+        } finally {
+            leave(key, waiter);
+        }
+    }
+
+    /**
+     * Same as {@link #await} without holding the caller's thread: the future completes when the key is signalled
+     * or the timeout elapses, and the final lookup runs on a virtual thread rather than on the signalling one.
+     */
+    CompletableFuture<Optional<IdempotencyKey>> awaitAsync(String key, Duration timeout,
+                                                           Supplier<Optional<IdempotencyKey>> lookup) {
+        Waiter waiter = register(key);
+        Optional<IdempotencyKey> current;
+        try {
+            current = lookup.get();
+        } catch (RuntimeException e) {
+            leave(key, waiter);
+            throw e;
+        }
+        if (current.isEmpty() || current.get().isCompleted()) {
+            leave(key, waiter);
+            return CompletableFuture.completedFuture(current);
+        }
+        // A copy, so one waiter's timeout does not complete the future the others share
+        return waiter.signal.copy()
+                .completeOnTimeout(null, timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenApplyAsync(signalled -> lookup.get().filter(IdempotencyKey::isCompleted), VIRTUAL_THREADS)
+                .whenComplete((completed, error) -> leave(key, waiter));
+    }
+
+    private Waiter register(String key) {
+        return waiters.compute(key, (k, existing) -> {
+            Waiter parked = existing != null ? existing : new Waiter();
+            parked.count++;
+            return parked;
+        });
+    }
+
+    private void leave(String key, Waiter waiter) {
+        // A signal has already removed the entry; otherwise the last waiter out removes it
+        waiters.computeIfPresent(key, (k, current) -> current == waiter && --current.count == 0 ? null : current);
+    }
+
+    void signal(String key) {
+        Waiter waiter = waiters.remove(key);
+        if (waiter != null) {
+            waiter.signal.complete(null);
+        }
+    }
+
+    int size() {
+        return waiters.size();
+    }
+
+    private static final class Waiter {
+        private final CompletableFuture<Void> signal = new CompletableFuture<>();
+        // Only changed inside the map's compute functions, which run under the key's lock
+        private int count;
+    }
+}
@@ -1,62 +1,125 @@
 package com.example.distributetest.idempotency.service;
 
+import com.example.distributetest.cache.BoundedExpiringCache;
 import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 
 public class InMemoryIdempotencyService implements IdempotencyService {
 
     private static final Logger log = LoggerFactory.getLogger(InMemoryIdempotencyService.class);
-    private final ConcurrentHashMap<String, IdempotencyKey> store = new ConcurrentHashMap<>();
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+    private final BoundedExpiringCache<String, IdempotencyKey> store;
+    private final IdempotencyStoreMetrics metrics;
+    private final InFlightWaiters waiters = new InFlightWaiters();
+
+    public InMemoryIdempotencyService(long maxEntries, long maxBytes, MeterRegistry meterRegistry) {
+        // A reservation evicted under pressure would let a duplicate run the handler again, so it stays until
+        // its lease runs out or the response replaces it
+        this.store = new BoundedExpiringCache<>(maxEntries, maxBytes, InMemoryIdempotencyService::weigh,
+                key -> key.getStatus() == IdempotencyStatus.IN_PROGRESS, System::currentTimeMillis);
+        this.metrics = new IdempotencyStoreMetrics(meterRegistry, "memory");
+        registerCacheMeters(meterRegistry);
+    }
 
     @Override
     public boolean exists(String key) {
-        cleanupExpired();
-        IdempotencyKey idempotencyKey = store.get(key);
-        if (idempotencyKey != null && idempotencyKey.getExpiresAt().isBefore(LocalDateTime.now())) {
-            store.remove(key);
-            return false;
-        }
-        return idempotencyKey != null;
+        return store.get(key) != null;
     }
 
     @Override
     public Optional<IdempotencyKey> get(String key) {
-        cleanupExpired();
-        IdempotencyKey idempotencyKey = store.get(key);
-        if (idempotencyKey != null && idempotencyKey.getExpiresAt().isBefore(LocalDateTime.now())) {
-            store.remove(key);
-            return Optional.empty();
-        }
-        return Optional.ofNullable(idempotencyKey);
+        return metrics.timeGet(() -> Optional.ofNullable(store.get(key)));
+    }
+
+    @Override
+    public boolean reserve(String key, Duration lease) {
+        LocalDateTime now = LocalDateTime.now();
+        IdempotencyKey reservation = IdempotencyKey.builder()
+                .key(key)
+                .status(IdempotencyStatus.IN_PROGRESS)
+                .createdAt(now)
+                .expiresAt(now.plus(lease))
+                .build();
+
+        boolean reserved = store.putIfAbsent(key, reservation, lease);
+        log.debug("Reservation of idempotency key: {} {}", key, reserved ? "acquired" : "rejected");
+        return reserved;
+    }
+
+    @Override
+    public Optional<IdempotencyKey> awaitCompletion(String key, Duration timeout) {
+        return waiters.await(key, timeout, () -> get(key));
+    }
+
+    @Override
+    public CompletableFuture<Optional<IdempotencyKey>> awaitCompletionAsync(String key, Duration timeout) {
+        return waiters.awaitAsync(key, timeout, () -> get(key));
     }
 
     @Override
-    public void save(String key, String response, int statusCode, long ttlMinutes) {
+    public void save(String key, byte[] body, int statusCode, String contentType, long ttlMinutes) {
         LocalDateTime now = LocalDateTime.now();
         IdempotencyKey idempotencyKey = IdempotencyKey.builder()
                 .key(key)
-                .response(response)
+                .body(body)
+                .contentType(contentType)
                 .statusCode(statusCode)
+                .status(IdempotencyStatus.COMPLETED)
                 .createdAt(now)
                 .expiresAt(now.plusMinutes(ttlMinutes))
                 .build();
-        store.put(key, idempotencyKey);
+        metrics.timeSave(() -> store.put(key, idempotencyKey, Duration.ofMinutes(ttlMinutes)));
+        metrics.recordWrite(body != null ? body.length : 0);
+        waiters.signal(key);
         log.debug("Saved idempotency key: {} with TTL: {} minutes", key, ttlMinutes);
     }
 
     @Override
     public void delete(String key) {
         store.remove(key);
+        waiters.signal(key);
         log.debug("Deleted idempotency key: {}", key);
     }
 
-    private void cleanupExpired() {
-        LocalDateTime now = LocalDateTime.now();
-        store.entrySet().removeIf(entry -> entry.getValue().getExpiresAt().isBefore(now));
+    @Override
+    public String storeName() {
+        return metrics.store();
+    }
+
+    public BoundedExpiringCache.Stats stats() {
+        return store.stats();
+    }
+
+    private void registerCacheMeters(MeterRegistry meterRegistry) {
+        Gauge.builder("idempotency.store.entries", store, cache -> cache.stats().size())
+                .description("Idempotency keys held in memory")
+                .tag("store", "memory")
+                .register(meterRegistry);
+        Gauge.builder("idempotency.store.weighted.size", store, cache -> cache.stats().weightedSize())
+                .description("Estimated bytes held by in-memory idempotency keys")
+                .baseUnit("bytes")
+                .tag("store", "memory")
+                .register(meterRegistry);
+        FunctionCounter.builder("idempotency.store.evictions", store, cache -> cache.stats().evictions())
+                .tag("store", "memory")
+                .register(meterRegistry);
+        FunctionCounter.builder("idempotency.store.expirations", store, cache -> cache.stats().expirations())
+                .tag("store", "memory")
+                .register(meterRegistry);
+    }
+
+    static int weigh(IdempotencyKey idempotencyKey) {
+        int bodyLength = idempotencyKey.getBody() != null ? idempotencyKey.getBody().length : 0;
+        return ENTRY_OVERHEAD_BYTES + 2 * idempotencyKey.getKey().length() + bodyLength;
     }
 }
@@ -0,0 +1,263 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * PostgreSQL store for deployments without Redis. Keys live in a table range-partitioned by creation bucket
+ * ({@code partition-period} wide); once every key in a bucket is past {@code max-ttl} its partition is dropped
+ * whole, so expiry never deletes row by row. Lookups and reservations go through the (key, bucket) primary
+ * key of the buckets that can still hold live keys.
+ * <p>
+ * A key is unique within its bucket by the primary key and across buckets by the reservation statement,
+ * which only inserts when no live row exists. Two requests that race across a bucket boundary within the
+ * same few milliseconds are the one case the database does not serialize.
+ * <p>
+ * Waiters are signalled locally and otherwise poll, since nothing is pushed between nodes.
+ */
+public class JdbcIdempotencyService implements IdempotencyService, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(JdbcIdempotencyService.class);
+    private static final String TABLE = "idempotency_keys";
+    private static final Pattern PARTITION_NAME = Pattern.compile(TABLE + "_p(\\d+)");
+    private static final int PARTITIONS_AHEAD = 2;
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(100);
+    private static final String COLUMNS = "key, body, content_type, status_code, status, created_at, expires_at";
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+            + " key varchar(512) NOT NULL,"
+            + " bucket bigint NOT NULL,"
+            + " status varchar(16) NOT NULL,"
+            + " status_code integer NOT NULL DEFAULT 0,"
+            + " content_type varchar(255),"
+            + " body bytea,"
+            + " created_at timestamp NOT NULL,"
+            + " expires_at timestamp NOT NULL,"
+            + " PRIMARY KEY (key, bucket)"
+            + ") PARTITION BY RANGE (bucket)";
+    private static final String LIST_PARTITIONS = "SELECT child.relname FROM pg_inherits"
+            + " JOIN pg_class child ON child.oid = pg_inherits.inhrelid"
+            + " JOIN pg_class parent ON parent.oid = pg_inherits.inhparent"
+            + " WHERE parent.relname = '" + TABLE + "'";
+    private static final String SELECT_LIVE = "SELECT " + COLUMNS + " FROM " + TABLE
+            + " WHERE key = ? AND bucket >= ? AND expires_at > ? ORDER BY bucket DESC LIMIT 1";
+    // Returns the live entry, or the reserved key with acquired = true, or no row when a concurrent request
+    // inserted a live entry after this statement's snapshot. An expired row in the current bucket is replaced.
+    private static final String GET_OR_RESERVE = "WITH existing AS (" + SELECT_LIVE + "),"
+            + " reserved AS ("
+            + "   INSERT INTO " + TABLE + " (key, bucket, status, created_at, expires_at)"
+            + "   SELECT ?, ?, 'IN_PROGRESS', ?, ? WHERE NOT EXISTS (SELECT 1 FROM existing)"
+            + "   ON CONFLICT (key, bucket) DO UPDATE SET status = EXCLUDED.status, status_code = 0,"
+            + "     content_type = NULL, body = NULL, created_at = EXCLUDED.created_at,"
+            + "     expires_at = EXCLUDED.expires_at"
+            + "   WHERE " + TABLE + ".expires_at <= EXCLUDED.created_at"
+            + "   RETURNING key)"
+            + " SELECT " + COLUMNS + ", false AS acquired FROM existing"
+            + " UNION ALL"
+            + " SELECT key, NULL::bytea, NULL::varchar, 0, NULL::varchar, NULL::timestamp, NULL::timestamp, true"
+            + " FROM reserved";
+    // Completes the live reservation in place, or writes a new entry into the current bucket
+    private static final String SAVE = "WITH completed AS ("
+            + "   UPDATE " + TABLE + " SET status = 'COMPLETED', body = ?, content_type = ?, status_code = ?,"
+            + "     expires_at = ?"
+            + "   WHERE key = ? AND bucket >= ? AND expires_at > ?"
+            + "   RETURNING key)"
+            + " INSERT INTO " + TABLE
+            + " (key, bucket, status, status_code, content_type, body, created_at, expires_at)"
+            + " SELECT ?, ?, 'COMPLETED', ?, ?, ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM completed)"
+            + " ON CONFLICT (key, bucket) DO UPDATE SET status = EXCLUDED.status,"
+            + "   status_code = EXCLUDED.status_code, content_type = EXCLUDED.content_type, body = EXCLUDED.body,"
+            + "   created_at = EXCLUDED.created_at, expires_at = EXCLUDED.expires_at";
+    private static final String DELETE = "DELETE FROM " + TABLE + " WHERE key = ? AND bucket >= ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final long periodMillis;
+    private final Duration maxTtl;
+    private final IdempotencyStoreMetrics metrics;
+    private final InFlightWaiters waiters = new InFlightWaiters();
+    private final ScheduledExecutorService maintenance;
+
+    public JdbcIdempotencyService(JdbcTemplate jdbcTemplate, Duration partitionPeriod, Duration maxTtl,
+                                  MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.periodMillis = partitionPeriod.toMillis();
+        this.maxTtl = maxTtl;
+        this.metrics = new IdempotencyStoreMetrics(meterRegistry, "jdbc");
+
+        jdbcTemplate.execute(CREATE_TABLE);
+        maintainPartitions();
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-partitions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = Math.max(periodMillis / 4, 1000);
+        maintenance.scheduleWithFixedDelay(this::maintainPartitions, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return get(key).isPresent();
+    }
+
+    @Override
+    public Optional<IdempotencyKey> get(String key) {
+        return metrics.timeGet(() -> {
+            LocalDateTime now = LocalDateTime.now();
+            List<IdempotencyKey> rows = jdbcTemplate.query(SELECT_LIVE, JdbcIdempotencyService::mapRow,
+                    key, oldestLiveBucket(now), Timestamp.valueOf(now));
+            rows.forEach(row -> metrics.recordRead(row.getBody() != null ? row.getBody().length : 0));
+            return rows.stream().findFirst();
+        });
+    }
+
+    @Override
+    public boolean reserve(String key, Duration lease) {
+        return getOrReserve(key, lease).acquired();
+    }
+
+    @Override
+    public IdempotencyReservation getOrReserve(String key, Duration lease) {
+        LocalDateTime now = LocalDateTime.now();
+        Timestamp createdAt = Timestamp.valueOf(now);
+        List<IdempotencyReservation> rows = jdbcTemplate.query(GET_OR_RESERVE,
+                (rs, rowNum) -> rs.getBoolean("acquired")
+                        ? IdempotencyReservation.granted()
+                        : IdempotencyReservation.heldBy(mapRow(rs, rowNum)),
+                key, oldestLiveBucket(now), createdAt,
+                key, bucketOf(now), createdAt, Timestamp.valueOf(now.plus(lease)));
+        IdempotencyReservation reservation = rows.isEmpty() ? IdempotencyReservation.heldBy(null) : rows.get(0);
+        log.debug("Reservation of idempotency key: {} {}", key, reservation.acquired() ? "acquired" : "rejected");
+        return reservation;
+    }
+
+    @Override
+    public boolean getOrReserveInOneRoundTrip() {
+        return true;
+    }
+
+    @Override
+    public Optional<IdempotencyKey> awaitCompletion(String key, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            Duration slice = Duration.ofNanos(Math.max(0, Math.min(remaining, POLL_INTERVAL.toNanos())));
+            Optional<IdempotencyKey> completed = waiters.await(key, slice, () -> get(key));
+            if (completed.isPresent() || remaining <= slice.toNanos() || Thread.currentThread().isInterrupted()) {
+                return completed;
+            }
+            // Still in flight on another node, or released: only the former is worth waiting for
+            Optional<IdempotencyKey> current = get(key);
+            if (current.isEmpty() || current.get().isCompleted()) {
+                return current;
+            }
+        }
+    }
+
+    @Override
+    public void save(String key, byte[] body, int statusCode, String contentType, long ttlMinutes) {
+        Duration ttl = Duration.ofMinutes(ttlMinutes);
+        if (ttl.compareTo(maxTtl) > 0) {
+            // Longer-lived rows would be dropped with their partition early anyway
+            log.warn("Idempotency TTL of {} minutes exceeds idempotency.jdbc.max-ttl ({}), capping", ttlMinutes,
+                    maxTtl);
+            ttl = maxTtl;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        Timestamp nowTimestamp = Timestamp.valueOf(now);
+        Timestamp expiresAt = Timestamp.valueOf(now.plus(ttl));
+        metrics.timeSave(() -> jdbcTemplate.update(SAVE,
+                body, contentType, statusCode, expiresAt, key, oldestLiveBucket(now), nowTimestamp,
+                key, bucketOf(now), statusCode, contentType, body, nowTimestamp, expiresAt));
+        metrics.recordWrite(body != null ? body.length : 0);
+        waiters.signal(key);
+        log.debug("Saved idempotency key: {} with TTL: {} minutes", key, ttlMinutes);
+    }
+
+    @Override
+    public void delete(String key) {
+        jdbcTemplate.update(DELETE, key, oldestLiveBucket(LocalDateTime.now()));
+        waiters.signal(key);
+        log.debug("Deleted idempotency key: {}", key);
+    }
+
+    @Override
+    public String storeName() {
+        return metrics.store();
+    }
+
+    @Override
+    public void close() {
+        maintenance.shutdownNow();
+    }
+
+    /**
+     * Creates the partitions for the current and next buckets and drops those that can only hold expired keys.
+     */
+    void maintainPartitions() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            long current = bucketOf(now);
+            for (long bucket = current; bucket <= current + PARTITIONS_AHEAD; bucket++) {
+                jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + TABLE + "_p" + bucket + " PARTITION OF " + TABLE
+                        + " FOR VALUES FROM (" + bucket + ") TO (" + (bucket + 1) + ")");
+            }
+            long oldest = oldestLiveBucket(now);
+            for (String partition : jdbcTemplate.queryForList(LIST_PARTITIONS, String.class)) {
+                Matcher matcher = PARTITION_NAME.matcher(partition);
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) < oldest) {
+                    jdbcTemplate.execute("DROP TABLE IF EXISTS " + partition);
+                    log.info("Dropped expired idempotency partition {}", partition);
+                }
+            }
+        } catch (DataAccessException e) {
+            // Another node may be maintaining the same partitions; the next run catches up
+            log.warn("Idempotency partition maintenance failed", e);
+        }
+    }
+
+    private long bucketOf(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() / periodMillis;
+    }
+
+    /**
+     * Keys created in older buckets expired at least one period ago: save caps TTLs at max-ttl, and the
+     * extra bucket covers the reservation lease before it.
+     */
+    private long oldestLiveBucket(LocalDateTime now) {
+        return bucketOf(now.minus(maxTtl)) - 1;
+    }
+
+    private static IdempotencyKey mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return IdempotencyKey.builder()
+                .key(rs.getString("key"))
+                .body(rs.getBytes("body"))
+                .contentType(rs.getString("content_type"))
+                .statusCode(rs.getInt("status_code"))
+                .status(IdempotencyStatus.valueOf(rs.getString("status")))
+                .createdAt(rs.getTimestamp("created_at").toLocalDateTime())
+                .expiresAt(rs.getTimestamp("expires_at").toLocalDateTime())
+                .build();
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.cache.KeyHash;
+import com.example.distributetest.idempotency.codec.BinaryIdempotencyRecordCodec;
+import com.example.distributetest.idempotency.file.MappedLogSegment;
+import com.example.distributetest.idempotency.file.OffHeapIndex;
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Single-node durable store: records are appended to memory-mapped log segments and located through
+ * an off-heap hash index, so neither the records nor the index live on the Java heap.
+ * <p>
+ * The index is rebuilt by replaying the segments on startup. Segments are dropped oldest-first once
+ * every record in them has expired, which keeps delete markers from outliving the records they hide.
+ */
+public class MappedFileIdempotencyService implements IdempotencyService, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedFileIdempotencyService.class);
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final BinaryIdempotencyRecordCodec codec;
+    private final OffHeapIndex index;
+    private final TreeMap<Integer, MappedLogSegment> segments = new TreeMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final InFlightWaiters waiters = new InFlightWaiters();
+    private final IdempotencyStoreMetrics metrics;
+    private final ScheduledExecutorService compactor;
+    private MappedLogSegment active;
+
+    public MappedFileIdempotencyService(Path directory, int segmentBytes, int indexCapacity,
+                                        Duration compactionInterval, MeterRegistry meterRegistry) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.metrics = new IdempotencyStoreMetrics(meterRegistry, "file");
+        // Bodies are already stored off-heap, so compressing them buys little and costs CPU on every read
+        this.codec = new BinaryIdempotencyRecordCodec(Integer.MAX_VALUE);
+        this.index = new OffHeapIndex(indexCapacity);
+
+        Files.createDirectories(directory);
+        long started = System.nanoTime();
+        rebuild();
+        log.info("Rebuilt idempotency index from {} segment(s) in {} ms ({} keys)", segments.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), index.size());
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = compactionInterval.toMillis();
+        compactor.scheduleWithFixedDelay(this::compact, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return get(key).isPresent();
+    }
+
+    @Override
+    public Optional<IdempotencyKey> get(String key) {
+        Optional<IdempotencyKey> idempotencyKey = metrics.timeGet(() -> {
+            lock.readLock().lock();
+            try {
+                return Optional.ofNullable(findLive(key));
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+        idempotencyKey.ifPresent(found -> metrics.recordRead(found.getBody() != null ? found.getBody().length : 0));
+        return idempotencyKey;
+    }
+
+    @Override
+    public boolean reserve(String key, Duration lease) {
+        LocalDateTime now = LocalDateTime.now();
+        IdempotencyKey reservation = IdempotencyKey.builder()
+                .key(key)
+                .status(IdempotencyStatus.IN_PROGRESS)
+                .createdAt(now)
+                .expiresAt(now.plus(lease))
+                .build();
+
+        lock.writeLock().lock();
+        try {
+            if (findLive(key) != null) {
+                return false;
+            }
+            append(key, reservation);
+            log.debug("Reserved idempotency key: {} for {}", key, lease);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<IdempotencyKey> awaitCompletion(String key, Duration timeout) {
+        return waiters.await(key, timeout, () -> get(key));
+    }
+
+    @Override
+    public CompletableFuture<Optional<IdempotencyKey>> awaitCompletionAsync(String key, Duration timeout) {
+        return waiters.awaitAsync(key, timeout, () -> get(key));
+    }
+
+    @Override
+    public void save(String key, byte[] body, int statusCode, String contentType, long ttlMinutes) {
+        LocalDateTime now = LocalDateTime.now();
+        IdempotencyKey idempotencyKey = IdempotencyKey.builder()
+                .key(key)
+                .body(body)
+                .contentType(contentType)
+                .statusCode(statusCode)
+                .status(IdempotencyStatus.COMPLETED)
+                .createdAt(now)
+                .expiresAt(now.plusMinutes(ttlMinutes))
+                .build();
+
+        metrics.timeSave(() -> {
+            lock.writeLock().lock();
+            try {
+                append(key, idempotencyKey);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+        metrics.recordWrite(body != null ? body.length : 0);
+        waiters.signal(key);
+        log.debug("Saved idempotency key: {} with TTL: {} minutes", key, ttlMinutes);
+    }
+
+    @Override
+    public void delete(String key) {
+        lock.writeLock().lock();
+        try {
+            if (index.remove(KeyHash.hash64(key), location -> key.equals(keyAt(location)))) {
+                appendRecord(DELETE, key.getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        waiters.signal(key);
+        log.debug("Deleted idempotency key: {}", key);
+    }
+
+    @Override
+    public String storeName() {
+        return metrics.store();
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            for (MappedLogSegment segment : segments.values()) {
+                segment.flush();
+                segment.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close idempotency log segments", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private IdempotencyKey findLive(String key) {
+        long location = index.find(KeyHash.hash64(key), candidate -> key.equals(keyAt(candidate)));
+        if (location == 0) {
+            return null;
+        }
+        try {
+            IdempotencyKey idempotencyKey = codec.decode(read(location));
+            return idempotencyKey.getExpiresAt().isBefore(LocalDateTime.now()) ? null : idempotencyKey;
+        } catch (IOException e) {
+            log.error("Error decoding idempotency key: {}", key, e);
+            return null;
+        }
+    }
+
+    private void append(String key, IdempotencyKey record) {
+        byte[] payload = codec.encode(record);
+        long location = appendRecord(PUT, payload);
+        segmentOf(location).recordExpiry(toEpochMillis(record.getExpiresAt()));
+        index.put(KeyHash.hash64(key), location, candidate -> key.equals(keyAt(candidate)));
+    }
+
+    private long appendRecord(byte type, byte[] payload) {
+        int offset = active.append(type, payload);
+        if (offset < 0) {
+            roll();
+            offset = active.append(type, payload);
+            if (offset < 0) {
+                throw new IllegalArgumentException("Idempotency record of " + payload.length
+                        + " bytes does not fit in a segment of " + segmentBytes + " bytes");
+            }
+        }
+        return location(active.id(), offset);
+    }
+
+    private void roll() {
+        try {
+            active.flush();
+            int nextId = active.id() + 1;
+            active = MappedLogSegment.open(nextId, segmentPath(nextId), segmentBytes);
+            segments.put(nextId, active);
+            log.debug("Rolled idempotency log to segment {}", nextId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open new idempotency log segment", e);
+        }
+    }
+
+    private void rebuild() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> {
+                Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    ids.add(Integer.parseInt(matcher.group(1)));
+                }
+            });
+        }
+        ids.sort(null);
+
+        for (int id : ids) {
+            MappedLogSegment segment = MappedLogSegment.open(id, segmentPath(id), segmentBytes);
+            segments.put(id, segment);
+            segment.scan((offset, type, payload) -> {
+                if (type == PUT) {
+                    BinaryIdempotencyRecordCodec.Header header = BinaryIdempotencyRecordCodec.readHeader(payload);
+                    segment.recordExpiry(header.expiresAtMillis());
+                    String key = header.key();
+                    index.put(KeyHash.hash64(key), location(id, offset), candidate -> key.equals(keyAt(candidate)));
+                } else if (type == DELETE) {
+                    String key = new String(payload, StandardCharsets.UTF_8);
+                    index.remove(KeyHash.hash64(key), candidate -> key.equals(keyAt(candidate)));
+                }
+            });
+        }
+
+        if (segments.isEmpty()) {
+            segments.put(1, MappedLogSegment.open(1, segmentPath(1), segmentBytes));
+        }
+        active = segments.lastEntry().getValue();
+    }
+
+    private void compact() {
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            Iterator<MappedLogSegment> iterator = segments.values().iterator();
+            while (iterator.hasNext()) {
+                MappedLogSegment segment = iterator.next();
+                if (segment == active || !segment.isFullyExpired(now)) {
+                    break;
+                }
+                int id = segment.id();
+                index.removeIf(location -> segmentId(location) == id);
+                segment.delete();
+                iterator.remove();
+                log.debug("Dropped expired idempotency segment {}", id);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to drop expired idempotency segment", e);
+        } catch (RuntimeException e) {
+            log.error("Idempotency segment compaction failed", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private String keyAt(long location) {
+        try {
+            return BinaryIdempotencyRecordCodec.readHeader(read(location)).key();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] read(long location) {
+        return segmentOf(location).readPayload((int) location);
+    }
+
+    private MappedLogSegment segmentOf(long location) {
+        return segments.get(segmentId(location));
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("segment-%010d.log", id));
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | offset;
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static long toEpochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
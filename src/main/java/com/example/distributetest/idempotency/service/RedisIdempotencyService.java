@@ -1,73 +1,327 @@
 package com.example.distributetest.idempotency.service;
 
+import com.example.distributetest.codec.JsonCodec;
+import com.example.distributetest.idempotency.codec.IdempotencyRecordCodec;
 import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import com.example.distributetest.redis.RedisCommitBatch;
+import com.example.distributetest.redis.RedisShardRouter;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.http.MediaType;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
-@RequiredArgsConstructor
+/**
+ * Stores entries on the shard that owns {@code idempotency:<key>}. While the shard topology is being
+ * rebalanced, reads and reservations also consult the key's previous owner so that an entry written before
+ * the move still blocks duplicates.
+ */
 public class RedisIdempotencyService implements IdempotencyService {
 
     private static final Logger log = LoggerFactory.getLogger(RedisIdempotencyService.class);
     private static final String KEY_PREFIX = "idempotency:";
-    private final RedisTemplate<String, String> redisTemplate;
-    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private static final String COMPLETION_CHANNEL = "idempotency:completed";
+    private static final byte[] COMPLETION_CHANNEL_BYTES = COMPLETION_CHANNEL.getBytes(StandardCharsets.UTF_8);
+    // Returns the stored entry if there is one, otherwise writes the reservation with its lease and returns nil
+    private static final RedisScript<byte[]> GET_OR_RESERVE = new DefaultRedisScript<>(
+            "local existing = redis.call('GET', KEYS[1]) "
+                    + "if existing then return existing end "
+                    + "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) "
+                    + "return false",
+            byte[].class);
+    private final RedisShardRouter<byte[]> shards;
+    private final IdempotencyRecordCodec codec;
+    private final IdempotencyStoreMetrics metrics;
+    private final InFlightWaiters waiters = new InFlightWaiters();
+
+    public RedisIdempotencyService(RedisShardRouter<byte[]> shards,
+                                   RedisMessageListenerContainer listenerContainer,
+                                   IdempotencyRecordCodec codec,
+                                   MeterRegistry meterRegistry) {
+        this.shards = shards;
+        this.codec = codec;
+        this.metrics = new IdempotencyStoreMetrics(meterRegistry, "redis");
+        listenerContainer.addMessageListener(this::onCompletion, new ChannelTopic(COMPLETION_CHANNEL));
+    }
 
     @Override
     public boolean exists(String key) {
-        return Boolean.TRUE.equals(redisTemplate.hasKey(getFullKey(key)));
+        String fullKey = getFullKey(key);
+        if (Boolean.TRUE.equals(shards.forKey(fullKey).hasKey(fullKey))) {
+            return true;
+        }
+        RedisTemplate<String, byte[]> previous = shards.previousForKey(fullKey);
+        return previous != null && Boolean.TRUE.equals(previous.hasKey(fullKey));
     }
 
     @Override
     public Optional<IdempotencyKey> get(String key) {
+        return metrics.timeGet(() -> load(key));
+    }
+
+    private Optional<IdempotencyKey> load(String key) {
+        String fullKey = getFullKey(key);
+        byte[] value = shards.forKey(fullKey).opsForValue().get(fullKey);
+        if (value == null) {
+            value = readPrevious(fullKey);
+        }
+        return value != null ? decode(key, value) : Optional.empty();
+    }
+
+    private byte[] readPrevious(String fullKey) {
+        RedisTemplate<String, byte[]> previous = shards.previousForKey(fullKey);
+        return previous != null ? previous.opsForValue().get(fullKey) : null;
+    }
+
+    private Optional<IdempotencyKey> decode(String key, byte[] value) {
+        metrics.recordRead(value.length);
         try {
-            String value = redisTemplate.opsForValue().get(getFullKey(key));
-            if (value == null) {
-                return Optional.empty();
-            }
-            IdempotencyKey idempotencyKey = objectMapper.readValue(value, IdempotencyKey.class);
-            return Optional.of(idempotencyKey);
-        } catch (JsonProcessingException e) {
+            return Optional.of(codec.decode(value));
+        } catch (IOException e) {
             log.error("Error deserializing idempotency key: {}", key, e);
             return Optional.empty();
         }
     }
 
     @Override
-    public void save(String key, String response, int statusCode, long ttlMinutes) {
-        try {
-            LocalDateTime now = LocalDateTime.now();
-            IdempotencyKey idempotencyKey = IdempotencyKey.builder()
-                    .key(key)
-                    .response(response)
-                    .statusCode(statusCode)
-                    .createdAt(now)
-                    .expiresAt(now.plusMinutes(ttlMinutes))
-                    .build();
-
-            String value = objectMapper.writeValueAsString(idempotencyKey);
-            redisTemplate.opsForValue().set(getFullKey(key), value, ttlMinutes, TimeUnit.MINUTES);
+    public boolean reserve(String key, Duration lease) {
+        String fullKey = getFullKey(key);
+        if (readPrevious(fullKey) != null) {
+            return false;
+        }
+        // SET NX PX: the reservation and its lease are applied atomically
+        boolean reserved = Boolean.TRUE.equals(shards.forKey(fullKey).opsForValue()
+                .setIfAbsent(fullKey, codec.encode(reservation(key, lease)), lease));
+        log.debug("Reservation of idempotency key: {} {}", key, reserved ? "acquired" : "rejected");
+        return reserved;
+    }
+
+    @Override
+    public IdempotencyReservation getOrReserve(String key, Duration lease) {
+        String fullKey = getFullKey(key);
+        byte[] existing = metrics.timeGet(() -> {
+            byte[] moved = readPrevious(fullKey);
+            return moved != null ? moved : shards.forKey(fullKey).execute(GET_OR_RESERVE, List.of(fullKey),
+                    codec.encode(reservation(key, lease)),
+                    Long.toString(lease.toMillis()).getBytes(StandardCharsets.UTF_8));
+        });
+        if (existing == null) {
+            log.debug("Reservation of idempotency key: {} acquired", key);
+            return IdempotencyReservation.granted();
+        }
+        return IdempotencyReservation.heldBy(decode(key, existing).orElse(null));
+    }
+
+    @Override
+    public boolean getOrReserveInOneRoundTrip() {
+        return true;
+    }
+
+    private static IdempotencyKey reservation(String key, Duration lease) {
+        LocalDateTime now = LocalDateTime.now();
+        return IdempotencyKey.builder()
+                .key(key)
+                .status(IdempotencyStatus.IN_PROGRESS)
+                .createdAt(now)
+                .expiresAt(now.plus(lease))
+                .build();
+    }
+
+    @Override
+    public Optional<IdempotencyKey> awaitCompletion(String key, Duration timeout) {
+        return waiters.await(key, timeout, () -> get(key));
+    }
+
+    @Override
+    public CompletableFuture<Optional<IdempotencyKey>> awaitCompletionAsync(String key, Duration timeout) {
+        return waiters.awaitAsync(key, timeout, () -> get(key));
+    }
+
+    @Override
+    public void save(String key, byte[] body, int statusCode, String contentType, long ttlMinutes) {
+        IdempotencyKey idempotencyKey = completed(key, body, statusCode, contentType, ttlMinutes);
+        String fullKey = getFullKey(key);
+        RedisTemplate<String, byte[]> owner = shards.forKey(fullKey);
+        Duration ttl = Duration.ofMinutes(ttlMinutes);
+        if (!shards.transactional()) {
+            metrics.timeSave(() -> {
+                byte[] value = codec.encode(idempotencyKey);
+                metrics.recordWrite(value.length);
+                owner.opsForValue().set(fullKey, value, ttl);
+            });
+            publishCompletion(key);
             log.debug("Saved idempotency key: {} with TTL: {} minutes", key, ttlMinutes);
-        } catch (JsonProcessingException e) {
-            log.error("Error serializing idempotency key: {}", key, e);
+            return;
+        }
+
+        metrics.timeSave(() -> {
+            byte[] value = codec.encode(idempotencyKey);
+            metrics.recordWrite(value.length);
+            owner.executePipelined((RedisCallback<Object>) connection -> {
+                connection.multi();
+                writeCompleted(connection, owner, key, value, ttl);
+                connection.exec();
+                return null;
+            });
+        });
+        afterCompleted(owner, key);
+        log.debug("Saved idempotency key: {} with TTL: {} minutes", key, ttlMinutes);
+    }
+
+    /**
+     * On a store with MULTI/EXEC, lets the handler write its response together with its records as soon as
+     * it has both; {@link #save} is then skipped for that response.
+     */
+    @Override
+    public IdempotencyCommit openCommit(String key, long ttlMinutes) {
+        if (!shards.transactional()) {
+            return IdempotencyCommit.NONE;
+        }
+        RedisCommitBatch batch = RedisCommitBatch.open(new ResponseCompletion(key, ttlMinutes));
+        return new IdempotencyCommit() {
+            @Override
+            public boolean committed(int statusCode, Object body) {
+                return batch.committed(statusCode, body);
+            }
+
+            @Override
+            public boolean failed() {
+                return batch.failed();
+            }
+
+            @Override
+            public void close() {
+                batch.close();
+            }
+        };
+    }
+
+    private static IdempotencyKey completed(String key, byte[] body, int statusCode, String contentType,
+                                            long ttlMinutes) {
+        LocalDateTime now = LocalDateTime.now();
+        return IdempotencyKey.builder()
+                .key(key)
+                .body(body)
+                .contentType(contentType)
+                .statusCode(statusCode)
+                .status(IdempotencyStatus.COMPLETED)
+                .createdAt(now)
+                .expiresAt(now.plusMinutes(ttlMinutes))
+                .build();
+    }
+
+    private void writeCompleted(RedisConnection connection, RedisTemplate<String, byte[]> owner, String key,
+                                byte[] value, Duration ttl) {
+        connection.stringCommands().set(getFullKey(key).getBytes(StandardCharsets.UTF_8), value,
+                Expiration.from(ttl), RedisStringCommands.SetOption.upsert());
+        // Pub/sub lives on the primary connection; the publish only joins the transaction when that is the owner
+        if (owner == shards.primary()) {
+            connection.publish(COMPLETION_CHANNEL_BYTES, key.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void afterCompleted(RedisTemplate<String, byte[]> owner, String key) {
+        if (owner == shards.primary()) {
+            waiters.signal(key);
+        } else {
+            publishCompletion(key);
         }
     }
 
     @Override
     public void delete(String key) {
-        redisTemplate.delete(getFullKey(key));
+        String fullKey = getFullKey(key);
+        shards.forKey(fullKey).delete(fullKey);
+        RedisTemplate<String, byte[]> previous = shards.previousForKey(fullKey);
+        if (previous != null) {
+            previous.delete(fullKey);
+        }
+        publishCompletion(key);
         log.debug("Deleted idempotency key: {}", key);
     }
 
+    @Override
+    public String storeName() {
+        return metrics.store();
+    }
+
+    private void publishCompletion(String key) {
+        // Local waiters are woken directly; the publish reaches duplicates parked on other nodes
+        waiters.signal(key);
+        shards.primary().convertAndSend(COMPLETION_CHANNEL, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void onCompletion(Message message, byte[] pattern) {
+        waiters.signal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
     private String getFullKey(String key) {
         return KEY_PREFIX + key;
     }
+
+    /**
+     * Stores the handler's response the way {@link #save} would, inside the handler's own MULTI/EXEC.
+     */
+    private final class ResponseCompletion implements RedisCommitBatch.Completion {
+
+        private final String key;
+        private final long ttlMinutes;
+        private final RedisTemplate<String, byte[]> owner;
+
+        private ResponseCompletion(String key, long ttlMinutes) {
+            this.key = key;
+            this.ttlMinutes = ttlMinutes;
+            this.owner = shards.forKey(getFullKey(key));
+        }
+
+        @Override
+        public RedisTemplate<String, ?> owner() {
+            return owner;
+        }
+
+        @Override
+        public byte[] encode(int statusCode, Object body) {
+            byte[] bytes;
+            try {
+                bytes = JsonCodec.shared().writeValueAsBytes(body);
+            } catch (JsonProcessingException e) {
+                return null;
+            }
+            byte[] value = codec.encode(completed(key, bytes, statusCode, MediaType.APPLICATION_JSON_VALUE,
+                    ttlMinutes));
+            metrics.recordWrite(value.length);
+            return value;
+        }
+
+        @Override
+        public void write(RedisConnection connection, byte[] entry) {
+            writeCompleted(connection, owner, key, entry, Duration.ofMinutes(ttlMinutes));
+        }
+
+        @Override
+        public void committed() {
+            afterCompleted(owner, key);
+            log.debug("Saved idempotency key: {} with the handler's records", key);
+        }
+    }
 }
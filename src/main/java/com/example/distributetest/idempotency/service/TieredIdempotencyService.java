@@ -0,0 +1,151 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.cache.BoundedExpiringCache;
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps recently completed keys in a local near-cache in front of Redis.
+ * In-flight reservations are never cached locally; they always go to Redis so that
+ * single-flight semantics hold across nodes. Deletes are broadcast so peers drop their copies.
+ */
+public class TieredIdempotencyService implements IdempotencyService {
+
+    private static final Logger log = LoggerFactory.getLogger(TieredIdempotencyService.class);
+    private static final String INVALIDATION_CHANNEL = "idempotency:invalidate";
+    private final IdempotencyService remote;
+    private final RedisTemplate<String, String> redisTemplate;
+    private final BoundedExpiringCache<String, IdempotencyKey> nearCache;
+    private final Duration maxLocalTtl;
+
+    public TieredIdempotencyService(IdempotencyService remote,
+                                    RedisTemplate<String, String> redisTemplate,
+                                    RedisMessageListenerContainer listenerContainer,
+                                    long maxEntries, long maxBytes, Duration maxLocalTtl) {
+        this.remote = remote;
+        this.redisTemplate = redisTemplate;
+        this.nearCache = new BoundedExpiringCache<>(maxEntries, maxBytes, InMemoryIdempotencyService::weigh);
+        this.maxLocalTtl = maxLocalTtl;
+        listenerContainer.addMessageListener(this::onInvalidation, new ChannelTopic(INVALIDATION_CHANNEL));
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return nearCache.get(key) != null || remote.exists(key);
+    }
+
+    @Override
+    public Optional<IdempotencyKey> get(String key) {
+        IdempotencyKey cached = nearCache.get(key);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<IdempotencyKey> idempotencyKey = remote.get(key);
+        idempotencyKey.ifPresent(this::cacheLocally);
+        return idempotencyKey;
+    }
+
+    @Override
+    public CompletableFuture<Optional<IdempotencyKey>> awaitCompletionAsync(String key, Duration timeout) {
+        return remote.awaitCompletionAsync(key, timeout).thenApply(idempotencyKey -> {
+            idempotencyKey.ifPresent(this::cacheLocally);
+            return idempotencyKey;
+        });
+    }
+
+    @Override
+    public boolean reserve(String key, Duration lease) {
+        return remote.reserve(key, lease);
+    }
+
+    @Override
+    public IdempotencyReservation getOrReserve(String key, Duration lease) {
+        IdempotencyKey cached = nearCache.get(key);
+        if (cached != null) {
+            return IdempotencyReservation.heldBy(cached);
+        }
+        IdempotencyReservation reservation = remote.getOrReserve(key, lease);
+        if (reservation.existing() != null) {
+            cacheLocally(reservation.existing());
+        }
+        return reservation;
+    }
+
+    @Override
+    public boolean getOrReserveInOneRoundTrip() {
+        return remote.getOrReserveInOneRoundTrip();
+    }
+
+    @Override
+    public Optional<IdempotencyKey> awaitCompletion(String key, Duration timeout) {
+        Optional<IdempotencyKey> idempotencyKey = remote.awaitCompletion(key, timeout);
+        idempotencyKey.ifPresent(this::cacheLocally);
+        return idempotencyKey;
+    }
+
+    @Override
+    public void save(String key, byte[] body, int statusCode, String contentType, long ttlMinutes) {
+        remote.save(key, body, statusCode, contentType, ttlMinutes);
+        LocalDateTime now = LocalDateTime.now();
+        cacheLocally(IdempotencyKey.builder()
+                .key(key)
+                .body(body)
+                .contentType(contentType)
+                .statusCode(statusCode)
+                .status(IdempotencyStatus.COMPLETED)
+                .createdAt(now)
+                .expiresAt(now.plusMinutes(ttlMinutes))
+                .build());
+    }
+
+    @Override
+    public void delete(String key) {
+        nearCache.remove(key);
+        remote.delete(key);
+        redisTemplate.convertAndSend(INVALIDATION_CHANNEL, key);
+        log.debug("Invalidated idempotency key on all nodes: {}", key);
+    }
+
+    @Override
+    public IdempotencyCommit openCommit(String key, long ttlMinutes) {
+        return remote.openCommit(key, ttlMinutes);
+    }
+
+    @Override
+    public String storeName() {
+        return "tiered";
+    }
+
+    public BoundedExpiringCache.Stats stats() {
+        return nearCache.stats();
+    }
+
+    private void cacheLocally(IdempotencyKey idempotencyKey) {
+        if (!idempotencyKey.isCompleted() || idempotencyKey.getExpiresAt() == null) {
+            return;
+        }
+        Duration remaining = Duration.between(LocalDateTime.now(), idempotencyKey.getExpiresAt());
+        if (remaining.isNegative() || remaining.isZero()) {
+            return;
+        }
+        Duration ttl = remaining.compareTo(maxLocalTtl) < 0 ? remaining : maxLocalTtl;
+        nearCache.put(idempotencyKey.getKey(), idempotencyKey, ttl);
+    }
+
+    private void onInvalidation(Message message, byte[] pattern) {
+        nearCache.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+}
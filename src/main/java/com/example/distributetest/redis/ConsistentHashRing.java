@@ -0,0 +1,75 @@
+package com.example.distributetest.redis;
+
+import com.example.distributetest.cache.KeyHash;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable consistent-hash ring with virtual nodes. Adding or removing one of N nodes moves about 1/N of
+ * the keys. Keys are routed by their Redis Cluster hash tag when they have one, so keys that share a
+ * {@code {tag}} land on the same node here exactly as they would share a slot in a cluster.
+ */
+public final class ConsistentHashRing<T> {
+
+    private final Map<String, T> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    public ConsistentHashRing(Map<String, T> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        this.nodes = new LinkedHashMap<>(nodes);
+        int size = nodes.size() * virtualNodes;
+        long[][] entries = new long[size][];
+        List<String> names = List.copyOf(nodes.keySet());
+        int i = 0;
+        for (int n = 0; n < names.size(); n++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                entries[i++] = new long[]{KeyHash.hash64(names.get(n) + "#" + v), n};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[size];
+        this.owners = new String[size];
+        for (int p = 0; p < size; p++) {
+            points[p] = entries[p][0];
+            owners[p] = names.get((int) entries[p][1]);
+        }
+    }
+
+    public T nodeFor(String key) {
+        return nodes.get(nodeNameFor(key));
+    }
+
+    public String nodeNameFor(String key) {
+        long hash = KeyHash.hash64(routingKey(key));
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    public Map<String, T> nodes() {
+        return nodes;
+    }
+
+    /**
+     * The part of the key that is hashed: the content of the first non-empty {@code {...}}, or the whole key.
+     */
+    static String routingKey(String key) {
+        int open = key.indexOf('{');
+        if (open < 0) {
+            return key;
+        }
+        int close = key.indexOf('}', open + 1);
+        if (close <= open + 1) {
+            return key;
+        }
+        return key.substring(open + 1, close);
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.distributetest.redis;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes that belong together, such as a record and its index entries, sent to their owning shards in one
+ * pipelined MULTI/EXEC per shard.
+ * <p>
+ * The idempotency layer opens a batch on the handler's thread with the {@link Completion} that stores the
+ * key's response. A handler that {@link #commit commits} its records together with the response it is about
+ * to return then writes both in the same MULTI/EXEC, right after the gateway call, instead of paying a second
+ * round trip when the response is saved. Writes are never deferred past the call that makes them: a payment
+ * record has to be in Redis before the request that charged it can fail, or a retry would charge again with
+ * no record of the first charge.
+ */
+public final class RedisCommitBatch implements AutoCloseable {
+
+    private static final ThreadLocal<RedisCommitBatch> CURRENT = new ThreadLocal<>();
+
+    private final Completion completion;
+    private final RedisCommitBatch outer;
+    private Object committedBody;
+    private int committedStatus;
+    private boolean failed;
+
+    private RedisCommitBatch(Completion completion, RedisCommitBatch outer) {
+        this.completion = completion;
+        this.outer = outer;
+    }
+
+    public static RedisCommitBatch open(Completion completion) {
+        RedisCommitBatch batch = new RedisCommitBatch(completion, CURRENT.get());
+        CURRENT.set(batch);
+        return batch;
+    }
+
+    /**
+     * Writes the records now. When a batch is open on this thread, the response the handler will return for
+     * them joins the MULTI/EXEC on the shard that owns the idempotency entry; records owned by other shards
+     * are written to them first. Without a batch this is {@link #flush}.
+     */
+    public static void commit(RedisShardRouter<?> shards, List<? extends Write> writes, int statusCode,
+                              Object body) {
+        RedisCommitBatch batch = CURRENT.get();
+        if (batch == null) {
+            flush(shards, writes);
+            return;
+        }
+        try {
+            batch.commit(shards, byShard(shards, writes), statusCode, body);
+        } catch (RuntimeException e) {
+            batch.failed = true;
+            throw e;
+        }
+    }
+
+    private void commit(RedisShardRouter<?> shards, Map<RedisTemplate<String, ?>, List<Write>> pending,
+                        int statusCode, Object body) {
+        RedisTemplate<String, ?> owner = completion.owner();
+        List<Write> colocated = List.of();
+        for (Map.Entry<RedisTemplate<String, ?>, List<Write>> entry : pending.entrySet()) {
+            if (entry.getKey().getConnectionFactory() == owner.getConnectionFactory()) {
+                colocated = entry.getValue();
+            } else {
+                flush(shards.transactional(), entry.getKey(), entry.getValue());
+            }
+        }
+        byte[] entry = completion.encode(statusCode, body);
+        if (entry == null) {
+            // The response cannot be stored; it is left to the save after the handler returns
+            flush(shards.transactional(), owner, colocated);
+            return;
+        }
+        List<Write> records = colocated;
+        owner.executePipelined((RedisCallback<Object>) connection -> {
+            connection.multi();
+            writeAll(connection, records);
+            completion.write(connection, entry);
+            connection.exec();
+            return null;
+        });
+        committedStatus = statusCode;
+        committedBody = body;
+        completion.committed();
+    }
+
+    /**
+     * Whether the response was already stored by {@link #commit}, so the save after the handler can be skipped.
+     * The body is compared by identity: a handler that returns something else is saved as usual.
+     */
+    public boolean committed(int statusCode, Object body) {
+        return committedBody != null && committedBody == body && committedStatus == statusCode;
+    }
+
+    /**
+     * Whether a commit on this batch failed. The records may not have been written, so the reservation has to
+     * be kept until its lease runs out rather than released for a retry.
+     */
+    public boolean failed() {
+        return failed;
+    }
+
+    @Override
+    public void close() {
+        if (outer != null) {
+            CURRENT.set(outer);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    private static void writeAll(RedisConnection connection, List<Write> writes) {
+        for (Write write : writes) {
+            byte[] rawKey = write.key().getBytes(StandardCharsets.UTF_8);
+            switch (write) {
+                case Put put -> connection.stringCommands().set(rawKey, put.value(), Expiration.from(put.ttl()),
+                        RedisStringCommands.SetOption.upsert());
+                case IndexAdd add -> {
+                    connection.zSetCommands().zAdd(rawKey, add.score(), add.member());
+                    connection.zSetCommands().zRemRangeByScore(rawKey, Double.NEGATIVE_INFINITY, add.expiredBelow());
+                    connection.keyCommands().pExpire(rawKey, add.ttl().toMillis());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the writes to their owning shards, one pipelined MULTI/EXEC per shard. On Redis Cluster, where
+     * neither is available, each shard's writes are sent one after another instead.
+     */
+    public static void flush(RedisShardRouter<?> shards, List<? extends Write> writes) {
+        byShard(shards, writes).forEach((template, shardWrites) ->
+                flush(shards.transactional(), template, shardWrites));
+    }
+
+    private static void flush(boolean transactional, RedisTemplate<String, ?> template, List<Write> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        if (!transactional) {
+            template.execute((RedisCallback<Object>) connection -> {
+                writeAll(connection, writes);
+                return null;
+            });
+            return;
+        }
+        template.executePipelined((RedisCallback<Object>) connection -> {
+            connection.multi();
+            writeAll(connection, writes);
+            connection.exec();
+            return null;
+        });
+    }
+
+    private static Map<RedisTemplate<String, ?>, List<Write>> byShard(RedisShardRouter<?> shards,
+                                                                      List<? extends Write> writes) {
+        Map<RedisTemplate<String, ?>, List<Write>> grouped = new LinkedHashMap<>();
+        for (Write write : writes) {
+            grouped.computeIfAbsent(shards.forKey(write.key()), template -> new ArrayList<>()).add(write);
+        }
+        return grouped;
+    }
+
+    /**
+     * The idempotency entry a batch completes. It lives on {@link #owner()}, which must only be used on
+     * stores where MULTI/EXEC is available.
+     */
+    public interface Completion {
+
+        RedisTemplate<String, ?> owner();
+
+        /**
+         * The stored entry for the handler's response, or null if it cannot be encoded.
+         */
+        byte[] encode(int statusCode, Object body);
+
+        /**
+         * Queues the commands that store the entry inside the transaction.
+         */
+        void write(RedisConnection connection, byte[] entry);
+
+        /**
+         * Runs once the transaction has been executed, to wake the key's waiters.
+         */
+        void committed();
+    }
+
+    public sealed interface Write permits Put, IndexAdd {
+        String key();
+    }
+
+    /**
+     * SET with expiry.
+     */
+    public record Put(String key, byte[] value, Duration ttl) implements Write {
+    }
+
+    /**
+     * ZADD to a sorted set used as an index, dropping members scored below {@code expiredBelow} and
+     * extending the set's expiry, so the index lives exactly as long as its newest entry.
+     */
+    public record IndexAdd(String key, byte[] member, double score, double expiredBelow, Duration ttl)
+            implements Write {
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.distributetest.redis;
+
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Typed view over {@link RedisShards}: one template per node for a given value serializer, created on first
+ * use. Services that used to hold a single RedisTemplate ask this for the template that owns a key.
+ */
+public class RedisShardRouter<V> {
+
+    private final RedisShards shards;
+    private final RedisSerializer<V> valueSerializer;
+    private final Map<RedisConnectionFactory, RedisTemplate<String, V>> templates = new ConcurrentHashMap<>();
+
+    RedisShardRouter(RedisShards shards, RedisSerializer<V> valueSerializer) {
+        this.shards = shards;
+        this.valueSerializer = valueSerializer;
+    }
+
+    public RedisTemplate<String, V> forKey(String key) {
+        return templateFor(shards.ownerOf(key));
+    }
+
+    /**
+     * The template that owned the key before an ongoing rebalance, or null if reads need no fallback.
+     */
+    public RedisTemplate<String, V> previousForKey(String key) {
+        RedisConnectionFactory previous = shards.previousOwnerOf(key);
+        return previous != null ? templateFor(previous) : null;
+    }
+
+    /**
+     * Template on the primary connection, used for pub/sub and anything that is not sharded.
+     */
+    public RedisTemplate<String, V> primary() {
+        return templateFor(shards.primary());
+    }
+
+    public List<RedisTemplate<String, V>> all() {
+        List<RedisTemplate<String, V>> all = new ArrayList<>();
+        for (RedisConnectionFactory node : shards.nodes()) {
+            all.add(templateFor(node));
+        }
+        return all;
+    }
+
+    /**
+     * Whether MULTI/EXEC over one node's connection is available (false on Redis Cluster).
+     */
+    public boolean transactional() {
+        return shards.transactional();
+    }
+
+    private RedisTemplate<String, V> templateFor(RedisConnectionFactory connectionFactory) {
+        return templates.computeIfAbsent(connectionFactory, factory -> {
+            RedisTemplate<String, V> template = new RedisTemplate<>();
+            template.setConnectionFactory(factory);
+            template.setKeySerializer(new StringRedisSerializer());
+            template.setValueSerializer(valueSerializer);
+            template.setHashKeySerializer(new StringRedisSerializer());
+            template.setHashValueSerializer(valueSerializer);
+            template.afterPropertiesSet();
+            return template;
+        });
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.distributetest.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Topology of the Redis nodes that hold payment and idempotency data.
+ * <ul>
+ *   <li>Single node, or Redis Cluster: one connection factory. A cluster factory does the slot routing
+ *       itself; multi-key transactions are unavailable there, which callers check with
+ *       {@link #transactional()}.</li>
+ *   <li>Ring: N standalone nodes, each with its own pooled connection factory, selected per key by a
+ *       {@link ConsistentHashRing}.</li>
+ * </ul>
+ * Pub/sub always stays on the primary connection factory so that every node subscribes to one place.
+ * <p>
+ * {@link #rebalance} swaps in a new ring and keeps the old one until {@link #completeRebalance}; in between
+ * writes go to the new owner and reads that miss there fall back to the previous owner. Deployments start one
+ * by listing the old nodes in {@code redis.sharding.previous-nodes}, and it completes on its own once
+ * {@code redis.sharding.rebalance-window} has passed.
+ */
+public class RedisShards implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisShards.class);
+    private static final int VIRTUAL_NODES = 160;
+
+    private final RedisConnectionFactory primary;
+    private final boolean transactional;
+    private final Set<RedisConnectionFactory> owned = new HashSet<>();
+    private volatile Topology topology;
+    private Thread pendingCompletion;
+
+    private RedisShards(RedisConnectionFactory primary, Map<String, RedisConnectionFactory> nodes,
+                        boolean transactional) {
+        this.primary = primary;
+        this.transactional = transactional;
+        this.topology = new Topology(new ConsistentHashRing<>(nodes, VIRTUAL_NODES), null);
+    }
+
+    public static RedisShards single(RedisConnectionFactory connectionFactory) {
+        boolean cluster = connectionFactory instanceof LettuceConnectionFactory lettuce && lettuce.isClusterAware();
+        if (cluster) {
+            log.info("Redis Cluster detected; keys are routed by hash slot, MULTI/EXEC is disabled");
+        }
+        return new RedisShards(connectionFactory, Map.of("default", connectionFactory), !cluster);
+    }
+
+    /**
+     * Client-side ring over standalone nodes. The factories are owned and destroyed with this instance.
+     */
+    public static RedisShards ring(RedisConnectionFactory primary, Map<String, RedisConnectionFactory> nodes) {
+        RedisShards shards = new RedisShards(primary, nodes, true);
+        shards.owned.addAll(nodes.values());
+        log.info("Redis keys sharded over {} nodes: {}", nodes.size(), nodes.keySet());
+        return shards;
+    }
+
+    public <V> RedisShardRouter<V> router(RedisSerializer<V> valueSerializer) {
+        return new RedisShardRouter<>(this, valueSerializer);
+    }
+
+    public synchronized void rebalance(Map<String, RedisConnectionFactory> nodes) {
+        Topology current = topology;
+        if (current.previous() != null) {
+            throw new IllegalStateException("A rebalance is already in progress");
+        }
+        owned.addAll(nodes.values());
+        topology = new Topology(new ConsistentHashRing<>(nodes, VIRTUAL_NODES), current.ring());
+        log.info("Rebalancing Redis keys from {} to {}", current.ring().nodes().keySet(), nodes.keySet());
+    }
+
+    /**
+     * Rebalances now and completes after the window, which should cover the longest record TTL so that no key
+     * is left only on a previous owner.
+     */
+    public synchronized void rebalance(Map<String, RedisConnectionFactory> nodes, Duration window) {
+        rebalance(nodes);
+        pendingCompletion = Thread.ofPlatform().daemon().name("redis-rebalance").start(() -> {
+            try {
+                Thread.sleep(window);
+            } catch (InterruptedException e) {
+                return;
+            }
+            completeRebalance();
+        });
+        log.info("Rebalance completes in {}", window);
+    }
+
+    /**
+     * Ends the fallback window, typically once the longest record TTL has passed since {@link #rebalance}.
+     */
+    public synchronized void completeRebalance() {
+        Topology current = topology;
+        if (current.previous() == null) {
+            return;
+        }
+        topology = new Topology(current.ring(), null);
+        for (RedisConnectionFactory retired : current.previous().nodes().values()) {
+            if (!current.ring().nodes().containsValue(retired) && owned.remove(retired)) {
+                destroyQuietly(retired);
+            }
+        }
+        log.info("Rebalance complete, serving from {}", current.ring().nodes().keySet());
+    }
+
+    public RedisConnectionFactory primary() {
+        return primary;
+    }
+
+    public boolean transactional() {
+        return transactional;
+    }
+
+    RedisConnectionFactory ownerOf(String key) {
+        return topology.ring().nodeFor(key);
+    }
+
+    /**
+     * The owner before the current rebalance, or null if there is none or it has not changed.
+     */
+    RedisConnectionFactory previousOwnerOf(String key) {
+        Topology current = topology;
+        if (current.previous() == null) {
+            return null;
+        }
+        RedisConnectionFactory previous = current.previous().nodeFor(key);
+        return previous != current.ring().nodeFor(key) ? previous : null;
+    }
+
+    Iterable<RedisConnectionFactory> nodes() {
+        return topology.ring().nodes().values();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (pendingCompletion != null) {
+            pendingCompletion.interrupt();
+        }
+        owned.forEach(RedisShards::destroyQuietly);
+        owned.clear();
+    }
+
+    private static void destroyQuietly(RedisConnectionFactory factory) {
+        if (factory instanceof DisposableBean disposable) {
+            try {
+                disposable.destroy();
+            } catch (Exception e) {
+                log.warn("Failed to close Redis connection factory", e);
+            }
+        }
+    }
+
+    private record Topology(ConsistentHashRing<RedisConnectionFactory> ring,
+                            ConsistentHashRing<RedisConnectionFactory> previous) {
+    }
+}
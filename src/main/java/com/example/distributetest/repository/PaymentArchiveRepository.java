@@ -0,0 +1,9 @@
+package com.example.distributetest.repository;
+
+import com.example.distributetest.entity.PaymentArchive;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface PaymentArchiveRepository extends JpaRepository<PaymentArchive, String> {
+}
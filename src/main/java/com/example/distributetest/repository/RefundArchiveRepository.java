@@ -0,0 +1,9 @@
+package com.example.distributetest.repository;
+
+import com.example.distributetest.entity.RefundArchive;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface RefundArchiveRepository extends JpaRepository<RefundArchive, String> {
+}
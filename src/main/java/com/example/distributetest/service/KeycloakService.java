@@ -6,6 +6,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
@@ -20,7 +21,8 @@ import java.util.Map;
 @RequiredArgsConstructor
 public class KeycloakService {
 
-    private final RestTemplate restTemplate = new RestTemplate();
+    // java.net.http client: a blocking call parks the calling virtual thread rather than pinning its carrier
+    private final RestTemplate restTemplate = new RestTemplate(new JdkClientHttpRequestFactory());
     private final ObjectMapper objectMapper;
 
     @Value("${keycloak.auth-server-url:http://localhost:8180}")
@@ -0,0 +1,312 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.dto.PaymentResponse;
+import com.example.distributetest.dto.RefundResponse;
+import com.example.distributetest.entity.PaymentArchive;
+import com.example.distributetest.entity.RefundArchive;
+import com.example.distributetest.repository.PaymentArchiveRepository;
+import com.example.distributetest.repository.RefundArchiveRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind copy of payment and refund records to PostgreSQL, so history outlives the Redis TTLs without
+ * a database write on the request path. Records are queued in a bounded buffer and a single writer stores
+ * them in multi-row upserts of up to {@code batch-size} rows.
+ * <p>
+ * When the buffer is full the caller waits up to {@code enqueue-timeout} for room, which slows producers
+ * down while the database catches up; past that the record is dropped and counted, and stays readable from
+ * Redis until it expires.
+ */
+@Component
+@Slf4j
+public class PaymentArchiver implements DisposableBean {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String PAYMENT_COLUMNS =
+            "(transaction_id, customer_id, amount, status, created_at, message, archived_at)";
+    private static final String REFUND_COLUMNS =
+            "(refund_id, original_transaction_id, amount, status, created_at, message, archived_at)";
+    // Payments are rewritten when a queued payment settles, so a newer status replaces the archived one
+    private static final String PAYMENT_CONFLICT = " ON CONFLICT (transaction_id) DO UPDATE SET"
+            + " status = EXCLUDED.status, created_at = EXCLUDED.created_at, message = EXCLUDED.message,"
+            + " archived_at = EXCLUDED.archived_at"
+            + " WHERE payment_archive.status IS DISTINCT FROM EXCLUDED.status";
+    private static final String REFUND_CONFLICT = " ON CONFLICT (refund_id) DO NOTHING";
+
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration flushInterval;
+    private final Duration enqueueTimeout;
+    private final BlockingQueue<Object> queue;
+    private final JdbcTemplate jdbcTemplate;
+    private final PaymentArchiveRepository paymentArchiveRepository;
+    private final RefundArchiveRepository refundArchiveRepository;
+    private final Counter archived;
+    private final Counter dropped;
+    private final Counter failed;
+    private final Timer batchDuration;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public PaymentArchiver(JdbcTemplate jdbcTemplate,
+                           PaymentArchiveRepository paymentArchiveRepository,
+                           RefundArchiveRepository refundArchiveRepository,
+                           MeterRegistry meterRegistry,
+                           @Value("${payment.archive.enabled:true}") boolean enabled,
+                           @Value("${payment.archive.queue-capacity:10000}") int queueCapacity,
+                           @Value("${payment.archive.batch-size:500}") int batchSize,
+                           @Value("${payment.archive.flush-interval:200ms}") Duration flushInterval,
+                           @Value("${payment.archive.enqueue-timeout:50ms}") Duration enqueueTimeout) {
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.enqueueTimeout = enqueueTimeout;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.jdbcTemplate = jdbcTemplate;
+        this.paymentArchiveRepository = paymentArchiveRepository;
+        this.refundArchiveRepository = refundArchiveRepository;
+        Gauge.builder("payment.archive.queue.size", queue, BlockingQueue::size)
+                .description("Records waiting to be archived")
+                .register(meterRegistry);
+        this.archived = meterRegistry.counter("payment.archive.records", "outcome", "archived");
+        this.dropped = meterRegistry.counter("payment.archive.records", "outcome", "dropped");
+        this.failed = meterRegistry.counter("payment.archive.records", "outcome", "failed");
+        this.batchDuration = Timer.builder("payment.archive.batch.duration")
+                .description("Time to write one archive batch")
+                .register(meterRegistry);
+        if (enabled) {
+            this.writer = Thread.ofPlatform().daemon().name("payment-archiver").start(this::drain);
+            log.info("Payment archiving enabled (queue: {}, batch size: {})", queueCapacity, batchSize);
+        } else {
+            this.writer = null;
+        }
+    }
+
+    public void archive(PaymentResponse payment) {
+        enqueue(payment);
+    }
+
+    public void archive(RefundResponse refund) {
+        enqueue(refund);
+    }
+
+    /**
+     * Looks an expired payment up by its primary key; null if archiving is off or it was never archived.
+     */
+    public PaymentResponse findPayment(String transactionId) {
+        if (!enabled) {
+            return null;
+        }
+        return paymentArchiveRepository.findById(transactionId).map(PaymentArchiver::toResponse).orElse(null);
+    }
+
+    public RefundResponse findRefund(String refundId) {
+        if (!enabled) {
+            return null;
+        }
+        return refundArchiveRepository.findById(refundId).map(PaymentArchiver::toResponse).orElse(null);
+    }
+
+    /**
+     * Batched {@link #findPayment}: one query for all ids, keyed by transaction id. Ids that were never archived
+     * are missing from the map, and so is everything if archiving is off.
+     */
+    public Map<String, PaymentResponse> findPayments(Collection<String> transactionIds) {
+        Map<String, PaymentResponse> found = new HashMap<>();
+        if (enabled && !transactionIds.isEmpty()) {
+            paymentArchiveRepository.findAllById(transactionIds)
+                    .forEach(archive -> found.put(archive.getTransactionId(), toResponse(archive)));
+        }
+        return found;
+    }
+
+    public Map<String, RefundResponse> findRefunds(Collection<String> refundIds) {
+        Map<String, RefundResponse> found = new HashMap<>();
+        if (enabled && !refundIds.isEmpty()) {
+            refundArchiveRepository.findAllById(refundIds)
+                    .forEach(archive -> found.put(archive.getRefundId(), toResponse(archive)));
+        }
+        return found;
+    }
+
+    private static PaymentResponse toResponse(PaymentArchive archive) {
+        return PaymentResponse.builder()
+                .transactionId(archive.getTransactionId())
+                .customerId(archive.getCustomerId())
+                .amount(archive.getAmount())
+                .status(archive.getStatus())
+                .timestamp(archive.getCreatedAt())
+                .message(archive.getMessage())
+                .build();
+    }
+
+    private static RefundResponse toResponse(RefundArchive archive) {
+        return RefundResponse.builder()
+                .refundId(archive.getRefundId())
+                .originalTransactionId(archive.getOriginalTransactionId())
+                .amount(archive.getAmount())
+                .status(archive.getStatus())
+                .timestamp(archive.getCreatedAt())
+                .message(archive.getMessage())
+                .build();
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        if (writer != null) {
+            writer.interrupt();
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    private void enqueue(Object record) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (queue.offer(record, enqueueTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dropped.increment();
+        log.warn("Archive queue full, record not archived: {}", record);
+    }
+
+    private void drain() {
+        List<Object> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Object first = queue.poll(flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+            } catch (InterruptedException e) {
+                // Shutting down: write whatever is still queued before exiting
+                queue.drainTo(batch, batchSize);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+            }
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<Object> batch) {
+        // A record can be queued more than once (PENDING, then its outcome); the latest copy wins, and one
+        // statement must not upsert the same row twice
+        Map<String, PaymentResponse> payments = new LinkedHashMap<>();
+        Map<String, RefundResponse> refunds = new LinkedHashMap<>();
+        for (Object record : batch) {
+            if (record instanceof PaymentResponse payment) {
+                payments.put(payment.getTransactionId(), payment);
+            } else if (record instanceof RefundResponse refund) {
+                refunds.put(refund.getRefundId(), refund);
+            }
+        }
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                batchDuration.record(() -> {
+                    insertPayments(List.copyOf(payments.values()));
+                    insertRefunds(List.copyOf(refunds.values()));
+                });
+                archived.increment(batch.size());
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Archive batch of {} records failed (attempt {}/{})", batch.size(), attempt,
+                        MAX_ATTEMPTS, e);
+                if (attempt < MAX_ATTEMPTS) {
+                    pause(attempt);
+                }
+            }
+        }
+        failed.increment(batch.size());
+        log.error("Gave up archiving {} records", batch.size());
+    }
+
+    private void insertPayments(List<PaymentResponse> payments) {
+        if (payments.isEmpty()) {
+            return;
+        }
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object> args = new ArrayList<>(payments.size() * 7);
+        for (PaymentResponse payment : payments) {
+            args.add(payment.getTransactionId());
+            args.add(payment.getCustomerId());
+            args.add(payment.getAmount());
+            args.add(payment.getStatus());
+            args.add(timestamp(payment.getTimestamp()));
+            args.add(payment.getMessage());
+            args.add(now);
+        }
+        jdbcTemplate.update(multiRowInsert("payment_archive", PAYMENT_COLUMNS, payments.size(), 7)
+                + PAYMENT_CONFLICT, args.toArray());
+    }
+
+    private void insertRefunds(List<RefundResponse> refunds) {
+        if (refunds.isEmpty()) {
+            return;
+        }
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object> args = new ArrayList<>(refunds.size() * 7);
+        for (RefundResponse refund : refunds) {
+            args.add(refund.getRefundId());
+            args.add(refund.getOriginalTransactionId());
+            args.add(refund.getAmount());
+            args.add(refund.getStatus());
+            args.add(timestamp(refund.getTimestamp()));
+            args.add(refund.getMessage());
+            args.add(now);
+        }
+        jdbcTemplate.update(multiRowInsert("refund_archive", REFUND_COLUMNS, refunds.size(), 7)
+                + REFUND_CONFLICT, args.toArray());
+    }
+
+    private static String multiRowInsert(String table, String columns, int rows, int columnCount) {
+        String row = "(" + "?, ".repeat(columnCount - 1) + "?)";
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(' ').append(columns)
+                .append(" VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ", ").append(row);
+        }
+        return sql.toString();
+    }
+
+    private static Timestamp timestamp(LocalDateTime time) {
+        return time != null ? Timestamp.valueOf(time) : null;
+    }
+
+    private void pause(int attempt) {
+        try {
+            Thread.sleep(1000L * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.dto.PaymentRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups payment gateway calls into batch submissions. A batch is sent when it reaches {@code max-size}
+ * items or when its oldest item has waited {@code max-wait}, whichever comes first; up to
+ * {@code max-in-flight} batches are outstanding at once. Each caller gets its own future, completed
+ * exceptionally when its item fails in the batch, so a partial failure surfaces to the caller's circuit
+ * breaker as an ordinary gateway error.
+ * <p>
+ * The gateway is simulated: one batch costs a fixed round trip plus a small per-item cost, and every item
+ * fails independently at the same rate as a single call.
+ */
+@Component
+@Slf4j
+public class PaymentGatewayBatcher implements DisposableBean {
+
+    private static final double ITEM_FAILURE_RATE = 0.3;
+    private static final long BATCH_ROUND_TRIP_MILLIS = 1000;
+    private static final long PER_ITEM_MILLIS = 5;
+
+    private final boolean enabled;
+    private final int maxSize;
+    private final Duration maxWait;
+    private final Semaphore inFlight;
+    private final BatchGateway gateway;
+    private final BlockingQueue<Item> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService submitter = Executors.newVirtualThreadPerTaskExecutor();
+    private final DistributionSummary batchSize;
+    private final Timer waitTime;
+    private final Timer batchDuration;
+    private final Counter successes;
+    private final Counter failures;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    @Autowired
+    public PaymentGatewayBatcher(MeterRegistry meterRegistry,
+                                 @Value("${payment.gateway.batch.enabled:false}") boolean enabled,
+                                 @Value("${payment.gateway.batch.max-size:32}") int maxSize,
+                                 @Value("${payment.gateway.batch.max-wait:20ms}") Duration maxWait,
+                                 @Value("${payment.gateway.batch.max-in-flight:8}") int maxInFlight) {
+        this(meterRegistry, enabled, maxSize, maxWait, maxInFlight, PaymentGatewayBatcher::simulatedBatch);
+    }
+
+    PaymentGatewayBatcher(MeterRegistry meterRegistry, boolean enabled, int maxSize, Duration maxWait,
+                          int maxInFlight, BatchGateway gateway) {
+        this.enabled = enabled;
+        this.maxSize = maxSize;
+        this.maxWait = maxWait;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.gateway = gateway;
+        this.batchSize = DistributionSummary.builder("payment.gateway.batch.size")
+                .description("Payments per gateway batch submission")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.waitTime = Timer.builder("payment.gateway.batch.wait")
+                .description("Time a payment waited for its batch to be submitted")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.batchDuration = Timer.builder("payment.gateway.batch.duration")
+                .description("Gateway round trip of one batch submission")
+                .register(meterRegistry);
+        this.successes = meterRegistry.counter("payment.gateway.calls", "operation", "payment", "outcome", "success");
+        this.failures = meterRegistry.counter("payment.gateway.calls", "operation", "payment", "outcome", "failure");
+        if (enabled) {
+            this.dispatcher = Thread.ofPlatform().daemon().name("payment-gateway-batcher").start(this::dispatch);
+            log.info("Payment gateway batching enabled (max size: {}, max wait: {}, in flight: {})",
+                    maxSize, maxWait, maxInFlight);
+        } else {
+            this.dispatcher = null;
+        }
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues the payment for the next batch. The future completes when the gateway has accepted it, and fails
+     * if the batcher stops first.
+     */
+    public CompletableFuture<Void> submit(PaymentRequest request) {
+        if (!running) {
+            return CompletableFuture.failedFuture(stopped());
+        }
+        Item item = new Item(request, System.nanoTime(), new CompletableFuture<>());
+        queue.add(item);
+        // destroy may have drained the queue between the check above and the add; then nothing else sees the item
+        if (!running && queue.remove(item)) {
+            item.result().completeExceptionally(stopped());
+        }
+        return item.result();
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            dispatcher.join();
+        }
+        List<Item> abandoned = new ArrayList<>();
+        queue.drainTo(abandoned);
+        abandoned.forEach(item -> item.result().completeExceptionally(stopped()));
+        submitter.close();
+    }
+
+    private void dispatch() {
+        while (running) {
+            List<Item> batch = new ArrayList<>(maxSize);
+            try {
+                collect(batch);
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                // Stopped while a batch was being gathered; its items are no longer in the queue
+                batch.forEach(item -> item.result().completeExceptionally(stopped()));
+                return;
+            }
+            submitter.execute(() -> {
+                try {
+                    send(batch);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Blocks for the first item, then gathers more until the batch is full or the first item's wait is up.
+     */
+    private void collect(List<Item> batch) throws InterruptedException {
+        Item first = queue.take();
+        batch.add(first);
+        long deadline = first.enqueuedAt() + maxWait.toNanos();
+        while (batch.size() < maxSize) {
+            queue.drainTo(batch, maxSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxSize || remaining <= 0) {
+                break;
+            }
+            Item next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void send(List<Item> batch) {
+        long submittedAt = System.nanoTime();
+        for (Item item : batch) {
+            waitTime.record(submittedAt - item.enqueuedAt(), TimeUnit.NANOSECONDS);
+        }
+        batchSize.record(batch.size());
+
+        List<PaymentRequest> requests = batch.stream().map(Item::request).toList();
+        boolean[] accepted;
+        try {
+            accepted = batchDuration.recordCallable(() -> gateway.submit(requests));
+        } catch (Exception e) {
+            log.error("Payment gateway batch of {} failed", batch.size(), e);
+            failures.increment(batch.size());
+            batch.forEach(item -> item.result().completeExceptionally(new RuntimeException("Payment gateway error", e)));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (accepted[i]) {
+                successes.increment();
+                batch.get(i).result().complete(null);
+            } else {
+                failures.increment();
+                batch.get(i).result().completeExceptionally(new RuntimeException("Payment gateway error"));
+            }
+        }
+        log.debug("Payment gateway batch of {} submitted", batch.size());
+    }
+
+    private static IllegalStateException stopped() {
+        return new IllegalStateException("Payment gateway batcher is stopped");
+    }
+
+    /**
+     * Simulated batch endpoint.
+     */
+    private static boolean[] simulatedBatch(List<PaymentRequest> batch) throws InterruptedException {
+        Thread.sleep(BATCH_ROUND_TRIP_MILLIS + PER_ITEM_MILLIS * batch.size());
+        boolean[] accepted = new boolean[batch.size()];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < accepted.length; i++) {
+            accepted[i] = random.nextDouble() >= ITEM_FAILURE_RATE;
+        }
+        return accepted;
+    }
+
+    /**
+     * The gateway's batch endpoint: whether each payment, in submission order, was accepted.
+     */
+    @FunctionalInterface
+    interface BatchGateway {
+        boolean[] submit(List<PaymentRequest> batch) throws Exception;
+    }
+
+    private record Item(PaymentRequest request, long enqueuedAt, CompletableFuture<Void> result) {
+    }
+}
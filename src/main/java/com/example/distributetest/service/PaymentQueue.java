@@ -0,0 +1,92 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.dto.PaymentRequest;
+import com.example.distributetest.redis.RedisShardRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Redis Stream of accepted payments, read by {@link PaymentStreamWorker} through a consumer group.
+ * The stream is a single key and lives on the primary connection rather than being sharded. Entries are
+ * deleted once acknowledged, so its length is the backlog of unfinished payments.
+ */
+@Component
+@Slf4j
+public class PaymentQueue {
+
+    static final String STREAM_KEY = "payment-stream";
+    static final String GROUP = "payment-workers";
+
+    private final RedisTemplate<String, String> redisTemplate;
+
+    public PaymentQueue(RedisShardRouter<String> paymentRedisRouter) {
+        this.redisTemplate = paymentRedisRouter.primary();
+    }
+
+    public RecordId enqueue(String transactionId, PaymentRequest request) {
+        Map<String, String> fields = Map.of(
+                "transactionId", transactionId,
+                "amount", String.valueOf(request.getAmount()),
+                "currency", String.valueOf(request.getCurrency()),
+                "customerId", String.valueOf(request.getCustomerId()));
+        return redisTemplate.opsForStream().add(MapRecord.create(STREAM_KEY, fields));
+    }
+
+    /**
+     * Creates the consumer group (and the stream) if they do not exist yet.
+     */
+    void ensureGroup() {
+        byte[] key = STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+        try {
+            redisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.streamCommands().xGroupCreate(key, GROUP, ReadOffset.from("0"), true));
+            log.info("Created consumer group {} on {}", GROUP, STREAM_KEY);
+        } catch (DataAccessException e) {
+            if (!String.valueOf(e.getMessage()).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    List<MapRecord<String, Object, Object>> read(String consumer, int count, Duration block) {
+        return redisTemplate.opsForStream().read(Consumer.from(GROUP, consumer),
+                StreamReadOptions.empty().count(count).block(block),
+                StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed()));
+    }
+
+    PendingMessages pending(int count) {
+        return redisTemplate.opsForStream().pending(STREAM_KEY, GROUP, Range.unbounded(), count);
+    }
+
+    List<MapRecord<String, Object, Object>> claim(String consumer, Duration minIdle, RecordId... ids) {
+        return redisTemplate.opsForStream().claim(STREAM_KEY, GROUP, consumer, minIdle, ids);
+    }
+
+    /**
+     * Acknowledges the entry and deletes it in one round trip, so the stream only holds unfinished entries.
+     */
+    void ack(RecordId id) {
+        byte[] key = STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.streamCommands().xAck(key, GROUP, id);
+            connection.streamCommands().xDel(key, id);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.cache.BoundedExpiringCache;
+import com.example.distributetest.redis.RedisShardRouter;
+import com.example.distributetest.redis.RedisShards;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of deserialized payment and refund records in front of Redis, for clients that poll
+ * the query endpoints. Ids that are not found are remembered for {@code negative-ttl} so scans and polls for
+ * unknown ids do not reach Redis every time.
+ * <p>
+ * Updates to an existing record are broadcast on a pub/sub channel so every node drops its copy; new records
+ * only clear the writing node's negative entry, which elsewhere lapses within {@code negative-ttl}.
+ * <p>
+ * A load that overlaps an invalidation of its key may have read the old record, so it is not kept. Keys share
+ * {@value #GENERATION_STRIPES} invalidation counters by hash; a collision only costs a skipped put.
+ */
+@Component
+@Slf4j
+public class PaymentReadCache implements InitializingBean, DisposableBean {
+
+    private static final String INVALIDATION_CHANNEL = "payment:invalidate";
+    private static final Object NOT_FOUND = new Object();
+    private static final int GENERATION_STRIPES = 4096;
+
+    private final boolean enabled;
+    private final Duration maxLocalTtl;
+    private final Duration negativeTtl;
+    private final BoundedExpiringCache<String, Object> cache;
+    private final RedisShardRouter<String> paymentRedisRouter;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final LongAdder negativeHits = new LongAdder();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    public PaymentReadCache(RedisShards redisShards,
+                            RedisShardRouter<String> paymentRedisRouter,
+                            MeterRegistry meterRegistry,
+                            @Value("${payment.read-cache.enabled:true}") boolean enabled,
+                            @Value("${payment.read-cache.max-entries:100000}") long maxEntries,
+                            @Value("${payment.read-cache.ttl:30s}") Duration maxLocalTtl,
+                            @Value("${payment.read-cache.negative-ttl:2s}") Duration negativeTtl) {
+        this.enabled = enabled;
+        this.maxLocalTtl = maxLocalTtl;
+        this.negativeTtl = negativeTtl;
+        this.paymentRedisRouter = paymentRedisRouter;
+        // Records are small and similar in size, so entries are weighed by count alone
+        this.cache = new BoundedExpiringCache<>(maxEntries, maxEntries, value -> 1);
+        if (enabled) {
+            this.listenerContainer = new RedisMessageListenerContainer();
+            listenerContainer.setConnectionFactory(redisShards.primary());
+            listenerContainer.addMessageListener(this::onInvalidation, new ChannelTopic(INVALIDATION_CHANNEL));
+        } else {
+            this.listenerContainer = null;
+        }
+
+        Gauge.builder("payment.readcache.entries", cache, c -> c.stats().size())
+                .description("Payment and refund records held in the local read cache")
+                .register(meterRegistry);
+        FunctionCounter.builder("payment.readcache.hits", cache, c -> c.stats().hits() - negativeHits.sum())
+                .tag("result", "found")
+                .register(meterRegistry);
+        FunctionCounter.builder("payment.readcache.hits", negativeHits, LongAdder::sum)
+                .description("Lookups answered locally as not found")
+                .tag("result", "not_found")
+                .register(meterRegistry);
+        FunctionCounter.builder("payment.readcache.misses", cache, c -> c.stats().misses())
+                .register(meterRegistry);
+        Gauge.builder("payment.readcache.hit.ratio", cache, PaymentReadCache::hitRatio)
+                .description("Share of lookups answered from the local read cache")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (listenerContainer != null) {
+            listenerContainer.afterPropertiesSet();
+            listenerContainer.start();
+            log.info("Payment read cache enabled (ttl: {}, negative ttl: {})", maxLocalTtl, negativeTtl);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (listenerContainer != null) {
+            listenerContainer.destroy();
+        }
+    }
+
+    /**
+     * Returns the cached record for the key, or loads it and caches the result; a {@code null} from the
+     * loader is cached as not found. The local TTL never exceeds the record's own TTL in Redis.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, Duration recordTtl, Supplier<T> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        Object cached = cache.get(key);
+        if (cached == NOT_FOUND) {
+            negativeHits.increment();
+            return null;
+        }
+        if (cached != null) {
+            return (T) cached;
+        }
+        int stripe = stripe(key);
+        long generation = generations.get(stripe);
+        T loaded = loader.get();
+        if (generations.get(stripe) != generation) {
+            return loaded;
+        }
+        if (loaded == null) {
+            cache.put(key, NOT_FOUND, negativeTtl);
+        } else {
+            cache.put(key, loaded, recordTtl.compareTo(maxLocalTtl) < 0 ? recordTtl : maxLocalTtl);
+        }
+        // An invalidation between the check and the put has already run its remove, so undo the put here
+        if (generations.get(stripe) != generation) {
+            cache.remove(key);
+        }
+        return loaded;
+    }
+
+    /**
+     * Drops the local entry after a new record is written under the key.
+     */
+    public void evict(String key) {
+        drop(key);
+    }
+
+    /**
+     * Drops the entry on every node after an existing record is replaced.
+     */
+    public void invalidate(String key) {
+        if (!enabled) {
+            return;
+        }
+        drop(key);
+        paymentRedisRouter.primary().convertAndSend(INVALIDATION_CHANNEL, key);
+    }
+
+    public BoundedExpiringCache.Stats stats() {
+        return cache.stats();
+    }
+
+    private void onInvalidation(Message message, byte[] pattern) {
+        drop(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Moves the key's generation on before removing it, so loads already running for the key do not cache.
+     */
+    private void drop(String key) {
+        generations.incrementAndGet(stripe(key));
+        cache.remove(key);
+    }
+
+    private static int stripe(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    private static double hitRatio(BoundedExpiringCache<String, Object> cache) {
+        BoundedExpiringCache.Stats stats = cache.stats();
+        long lookups = stats.hits() + stats.misses();
+        return lookups == 0 ? 0.0 : (double) stats.hits() / lookups;
+    }
+}
@@ -1,39 +1,165 @@
 package com.example.distributetest.service;
 
+import com.example.distributetest.codec.JsonCodec;
+import com.example.distributetest.dto.PaymentLookupResult;
+import com.example.distributetest.dto.PaymentPage;
 import com.example.distributetest.dto.PaymentRequest;
 import com.example.distributetest.dto.PaymentResponse;
 import com.example.distributetest.dto.RefundRequest;
 import com.example.distributetest.dto.RefundResponse;
+import com.example.distributetest.redis.RedisCommitBatch;
+import com.example.distributetest.redis.RedisShardRouter;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 @Service
 @Slf4j
 @RequiredArgsConstructor
 public class PaymentService {
 
-    private final RedisTemplate<String, String> redisTemplate;
-    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final RedisShardRouter<String> paymentRedisRouter;
+    private final MeterRegistry meterRegistry;
+    private final PaymentQueue paymentQueue;
+    private final PaymentGatewayBatcher gatewayBatcher;
+    private final PaymentReadCache readCache;
+    private final RefundLedger refundLedger;
+    private final PaymentArchiver archiver;
+    private final JsonCodec codec = JsonCodec.shared();
+    private final ExecutorService lookupExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
     private static final String PAYMENT_KEY_PREFIX = "payment:";
     private static final String REFUND_KEY_PREFIX = "refund:";
+    private static final String CUSTOMER_INDEX_PREFIX = "customer-payments:";
     private static final long PAYMENT_TTL_HOURS = 24;
     private static final long REFUND_TTL_HOURS = 72;
+    private static final int LOOKUP_CHUNK_SIZE = 256;
+    private static final int LOOKUP_PARALLELISM = 4;
+    private static final int EXPORT_SCAN_COUNT = 1000;
 
     public PaymentResponse createPayment(PaymentRequest request) {
         log.info("Creating payment in Redis: {}", request);
 
+        callPaymentGateway(request);
+        PaymentResponse response = completedPayment(UUID.randomUUID().toString(), request);
+
+        // Save to Redis
+        savePaymentToRedis(response);
+
+        log.info("Payment created and saved to Redis: {}", response);
+        return response;
+    }
+
+    /**
+     * Accepts the payment without waiting for the gateway: a PENDING record is written and the request is
+     * queued for {@link PaymentStreamWorker}, which replaces the record with the outcome.
+     */
+    public PaymentResponse acceptPayment(PaymentRequest request) {
+        PaymentResponse pending = PaymentResponse.builder()
+                .transactionId(UUID.randomUUID().toString())
+                .customerId(request.getCustomerId())
+                .amount(request.getAmount())
+                .status("PENDING")
+                .timestamp(LocalDateTime.now())
+                .message("Payment accepted for processing")
+                .build();
+
+        // The controller answers 202 with this record; it is committed together with the idempotency entry
+        RedisCommitBatch.commit(paymentRedisRouter, paymentWrites(pending), HttpStatus.ACCEPTED.value(), pending);
+        readCache.evict(PAYMENT_KEY_PREFIX + pending.getTransactionId());
+        archiver.archive(pending);
+        paymentQueue.enqueue(pending.getTransactionId(), request);
+
+        log.info("Payment accepted and queued: {}", pending.getTransactionId());
+        return pending;
+    }
+
+    /**
+     * Runs the gateway call for a queued payment and stores the successful outcome.
+     * Gateway failures are thrown so the caller's circuit breaker records them.
+     */
+    public PaymentResponse processQueuedPayment(String transactionId, PaymentRequest request) {
+        callPaymentGateway(request);
+        PaymentResponse response = completedPayment(transactionId, request);
+        writePaymentToRedis(response);
+        log.info("Queued payment processed: {}", transactionId);
+        return response;
+    }
+
+    /**
+     * Status of a queued payment's stored record, read from Redis rather than the read cache, or null if the
+     * record has expired or cannot be read.
+     */
+    public String queuedPaymentStatus(String transactionId) {
+        String value = read(PAYMENT_KEY_PREFIX + transactionId);
+        if (value == null) {
+            return null;
+        }
+        try {
+            PaymentResponse payment = codec.paymentReader().readValue(value);
+            return payment.getStatus();
+        } catch (JsonProcessingException e) {
+            log.error("Failed to deserialize payment from JSON", e);
+            return null;
+        }
+    }
+
+    public void failQueuedPayment(String transactionId, PaymentRequest request, String reason) {
+        writePaymentToRedis(PaymentResponse.builder()
+                .transactionId(transactionId)
+                .customerId(request.getCustomerId())
+                .amount(request.getAmount())
+                .status("FAILED")
+                .timestamp(LocalDateTime.now())
+                .message("Payment failed: " + reason)
+                .build());
+        log.warn("Queued payment failed: {} ({})", transactionId, reason);
+    }
+
+    private void callPaymentGateway(PaymentRequest request) {
+        if (gatewayBatcher.enabled()) {
+            // The caller blocks until its own item in the batch is accepted or rejected
+            try {
+                gatewayBatcher.submit(request).join();
+                return;
+            } catch (CompletionException e) {
+                log.error("Payment processing failed in batch!");
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+
         // Simulate random failures for circuit breaker testing
         if (Math.random() < 0.3) {
+            countGatewayCall("payment", "failure");
             log.error("Payment processing failed!");
             throw new RuntimeException("Payment gateway error");
         }
@@ -43,27 +169,38 @@ public class PaymentService {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        countGatewayCall("payment", "success");
+    }
 
-        PaymentResponse response = PaymentResponse.builder()
-                .transactionId(UUID.randomUUID().toString())
+    private static PaymentResponse completedPayment(String transactionId, PaymentRequest request) {
+        return PaymentResponse.builder()
+                .transactionId(transactionId)
+                .customerId(request.getCustomerId())
                 .amount(request.getAmount())
                 .status("SUCCESS")
                 .timestamp(LocalDateTime.now())
                 .message("Payment processed successfully")
                 .build();
-
-        // Save to Redis
-        savePaymentToRedis(response);
-
-        log.info("Payment created and saved to Redis: {}", response);
-        return response;
     }
 
     public RefundResponse createRefund(RefundRequest request) {
         log.info("Creating refund in Redis: {}", request);
+        if (request.getTransactionId() == null || request.getAmount() == null || request.getAmount() <= 0) {
+            throw new RefundRejectedException(RefundRejectedException.Reason.INVALID_REQUEST,
+                    "A refund needs a transaction id and a positive amount");
+        }
+
+        // The amount is charged against the payment's ledger before the gateway is called, so concurrent
+        // refunds can never add up to more than was paid
+        String refundId = UUID.randomUUID().toString();
+        String paymentKey = PAYMENT_KEY_PREFIX + request.getTransactionId();
+        long amount = RefundLedger.toMinorUnits(request.getAmount());
+        refundLedger.debit(paymentKey, refundId, amount);
 
         // Simulate random failures
         if (Math.random() < 0.2) {
+            countGatewayCall("refund", "failure");
+            refundLedger.release(paymentKey, refundId, amount);
             log.error("Refund processing failed!");
             throw new RuntimeException("Refund service error");
         }
@@ -73,9 +210,10 @@ public class PaymentService {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        countGatewayCall("refund", "success");
 
         RefundResponse response = RefundResponse.builder()
-                .refundId(UUID.randomUUID().toString())
+                .refundId(refundId)
                 .originalTransactionId(request.getTransactionId())
                 .amount(request.getAmount())
                 .status("REFUNDED")
@@ -85,28 +223,84 @@ public class PaymentService {
 
         // Save to Redis
         saveRefundToRedis(response);
+        readCache.invalidate(paymentKey);
 
         log.info("Refund created and saved to Redis: {}", response);
         return response;
     }
 
+    /**
+     * Counts calls that reached the (simulated) gateway, so duplicates that slipped past idempotency show up.
+     */
+    private void countGatewayCall(String operation, String outcome) {
+        meterRegistry.counter("payment.gateway.calls", "operation", operation, "outcome", outcome).increment();
+    }
+
+    /**
+     * Writes the record as soon as the gateway has charged it. Inside an @Idempotent handler the 200 response
+     * the controller returns for it goes into the same MULTI/EXEC, so the charge and its idempotency entry are
+     * committed together in one round trip.
+     */
     private void savePaymentToRedis(PaymentResponse payment) {
+        String key = PAYMENT_KEY_PREFIX + payment.getTransactionId();
+        RedisCommitBatch.commit(paymentRedisRouter, paymentWrites(payment), HttpStatus.OK.value(), payment);
+        readCache.evict(key);
+        archiver.archive(payment);
+        log.debug("Payment saved to Redis with key: {} (TTL: {} hours)", key, PAYMENT_TTL_HOURS);
+    }
+
+    /**
+     * A new payment record and its entry in the customer's index, scored by creation time. The index drops
+     * entries older than the record TTL whenever it is written and expires with its newest entry.
+     */
+    private List<RedisCommitBatch.Write> paymentWrites(PaymentResponse payment) {
+        String key = PAYMENT_KEY_PREFIX + payment.getTransactionId();
+        Duration ttl = Duration.ofHours(PAYMENT_TTL_HOURS);
+        RedisCommitBatch.Put record;
+        try {
+            record = new RedisCommitBatch.Put(key, codec.paymentWriter().writeValueAsBytes(payment), ttl);
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize payment to JSON", e);
+            throw new RuntimeException("Failed to save payment to Redis", e);
+        }
+        if (payment.getCustomerId() == null) {
+            return List.of(record);
+        }
+        long createdAt = payment.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return List.of(record, new RedisCommitBatch.IndexAdd(CUSTOMER_INDEX_PREFIX + payment.getCustomerId(),
+                payment.getTransactionId().getBytes(StandardCharsets.UTF_8), createdAt,
+                createdAt - ttl.toMillis(), ttl));
+    }
+
+    /**
+     * Replaces an existing payment record on its shard.
+     */
+    private void writePaymentToRedis(PaymentResponse payment) {
         try {
             String key = PAYMENT_KEY_PREFIX + payment.getTransactionId();
-            String value = objectMapper.writeValueAsString(payment);
-            redisTemplate.opsForValue().set(key, value, PAYMENT_TTL_HOURS, TimeUnit.HOURS);
-            log.debug("Payment saved to Redis with key: {} (TTL: {} hours)", key, PAYMENT_TTL_HOURS);
+            String value = codec.paymentWriter().writeValueAsString(payment);
+            paymentRedisRouter.forKey(key).opsForValue().set(key, value, Duration.ofHours(PAYMENT_TTL_HOURS));
+            // Queued payments are rewritten with their outcome while clients are polling for it
+            readCache.invalidate(key);
+            archiver.archive(payment);
         } catch (JsonProcessingException e) {
             log.error("Failed to serialize payment to JSON", e);
             throw new RuntimeException("Failed to save payment to Redis", e);
         }
     }
 
+    /**
+     * Like {@link #savePaymentToRedis}, the record and the 200 response for it are committed together.
+     */
     private void saveRefundToRedis(RefundResponse refund) {
         try {
             String key = REFUND_KEY_PREFIX + refund.getRefundId();
-            String value = objectMapper.writeValueAsString(refund);
-            redisTemplate.opsForValue().set(key, value, REFUND_TTL_HOURS, TimeUnit.HOURS);
+            byte[] value = codec.refundWriter().writeValueAsBytes(refund);
+            RedisCommitBatch.commit(paymentRedisRouter,
+                    List.of(new RedisCommitBatch.Put(key, value, Duration.ofHours(REFUND_TTL_HOURS))),
+                    HttpStatus.OK.value(), refund);
+            readCache.evict(key);
+            archiver.archive(refund);
             log.debug("Refund saved to Redis with key: {} (TTL: {} hours)", key, REFUND_TTL_HOURS);
         } catch (JsonProcessingException e) {
             log.error("Failed to serialize refund to JSON", e);
@@ -114,33 +308,366 @@ public class PaymentService {
         }
     }
 
+    /**
+     * Reads from the shard that owns the key, falling back to its previous owner while shards are rebalancing.
+     */
+    private String read(String key) {
+        String value = paymentRedisRouter.forKey(key).opsForValue().get(key);
+        if (value == null) {
+            RedisTemplate<String, String> previous = paymentRedisRouter.previousForKey(key);
+            if (previous != null) {
+                value = previous.opsForValue().get(key);
+            }
+        }
+        return value;
+    }
+
     public PaymentResponse getPayment(String transactionId) {
+        String key = PAYMENT_KEY_PREFIX + transactionId;
+        return readCache.get(key, Duration.ofHours(PAYMENT_TTL_HOURS), () -> loadPayment(key, transactionId));
+    }
+
+    public RefundResponse getRefund(String refundId) {
+        String key = REFUND_KEY_PREFIX + refundId;
+        return readCache.get(key, Duration.ofHours(REFUND_TTL_HOURS), () -> loadRefund(key, refundId));
+    }
+
+    /**
+     * Loads the payment and its refund ledger in one round trip.
+     */
+    private PaymentResponse loadPayment(String key, String transactionId) {
         try {
-            String key = PAYMENT_KEY_PREFIX + transactionId;
-            String value = redisTemplate.opsForValue().get(key);
-            if (value != null) {
-                return objectMapper.readValue(value, PaymentResponse.class);
+            RefundLedger.Snapshot snapshot = refundLedger.read(key);
+            if (snapshot != null) {
+                return snapshot.apply(codec.paymentReader().readValue(snapshot.payment()));
             }
-            log.warn("Payment not found in Redis: {}", transactionId);
-            return null;
+            // Expired from Redis, or never there: the archive keeps the full history
+            PaymentResponse archived = archiver.findPayment(transactionId);
+            if (archived == null) {
+                log.warn("Payment not found in Redis: {}", transactionId);
+            }
+            return archived;
         } catch (JsonProcessingException e) {
             log.error("Failed to deserialize payment from JSON", e);
             return null;
         }
     }
 
-    public RefundResponse getRefund(String refundId) {
+    private RefundResponse loadRefund(String key, String refundId) {
         try {
-            String key = REFUND_KEY_PREFIX + refundId;
-            String value = redisTemplate.opsForValue().get(key);
+            String value = read(key);
             if (value != null) {
-                return objectMapper.readValue(value, RefundResponse.class);
+                return codec.refundReader().readValue(value);
             }
-            log.warn("Refund not found in Redis: {}", refundId);
-            return null;
+            RefundResponse archived = archiver.findRefund(refundId);
+            if (archived == null) {
+                log.warn("Refund not found in Redis: {}", refundId);
+            }
+            return archived;
         } catch (JsonProcessingException e) {
             log.error("Failed to deserialize refund from JSON", e);
             return null;
         }
     }
+
+    /**
+     * Resolves many records at once for reconciliation. Ids are split into chunks that are each read, together
+     * with the payments' refund ledgers, in one pipeline per shard and decoded on their own virtual thread, with up
+     * to {@link #LOOKUP_PARALLELISM} chunks in flight. Ids missing from Redis are then looked up in the archive
+     * with one query per chunk. Results reach the sink chunk by chunk in request order, payments first, and bypass
+     * the read cache.
+     */
+    public void lookup(List<String> transactionIds, List<String> refundIds,
+                       Consumer<List<PaymentLookupResult>> sink) {
+        List<String> keys = new ArrayList<>(transactionIds.size() + refundIds.size());
+        transactionIds.forEach(id -> keys.add(PAYMENT_KEY_PREFIX + id));
+        refundIds.forEach(id -> keys.add(REFUND_KEY_PREFIX + id));
+
+        Deque<CompletableFuture<List<PaymentLookupResult>>> inFlight = new ArrayDeque<>();
+        for (int from = 0; from < keys.size(); from += LOOKUP_CHUNK_SIZE) {
+            List<String> chunk = keys.subList(from, Math.min(from + LOOKUP_CHUNK_SIZE, keys.size()));
+            inFlight.add(CompletableFuture.supplyAsync(() -> lookupChunk(chunk), lookupExecutor));
+            if (inFlight.size() == LOOKUP_PARALLELISM) {
+                sink.accept(inFlight.poll().join());
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            sink.accept(inFlight.poll().join());
+        }
+    }
+
+    private List<PaymentLookupResult> lookupChunk(List<String> keys) {
+        List<RefundLedger.Snapshot> records = readAll(keys);
+        List<PaymentLookupResult> results = new ArrayList<>(keys.size());
+        List<String> missingPayments = new ArrayList<>();
+        List<String> missingRefunds = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            PaymentLookupResult result = lookupResult(keys.get(i), records.get(i));
+            if (!result.isFound()) {
+                (result.getType().equals("payment") ? missingPayments : missingRefunds).add(result.getId());
+            }
+            results.add(result);
+        }
+        if (missingPayments.isEmpty() && missingRefunds.isEmpty()) {
+            return results;
+        }
+
+        // Expired from Redis, or never there: the archive keeps the full history
+        Map<String, PaymentResponse> archivedPayments = archiver.findPayments(missingPayments);
+        Map<String, RefundResponse> archivedRefunds = archiver.findRefunds(missingRefunds);
+        for (PaymentLookupResult result : results) {
+            if (result.isFound()) {
+                continue;
+            }
+            if (result.getType().equals("payment")) {
+                result.setPayment(archivedPayments.get(result.getId()));
+                result.setFound(result.getPayment() != null);
+            } else {
+                result.setRefund(archivedRefunds.get(result.getId()));
+                result.setFound(result.getRefund() != null);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Multi-key counterpart of {@link #read(String)} and {@link RefundLedger#read}: one pipeline per owning shard
+     * with an MGET for the records and the refund ledger of every payment, which shares the payment's shard.
+     * Records missing while shards are rebalancing are then read one by one from their previous owner.
+     * Each element holds the stored value, plus the ledger for payments, or is null if there is no record.
+     */
+    private List<RefundLedger.Snapshot> readAll(List<String> keys) {
+        RefundLedger.Snapshot[] records = new RefundLedger.Snapshot[keys.size()];
+        Map<RedisTemplate<String, String>, List<Integer>> byShard = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            byShard.computeIfAbsent(paymentRedisRouter.forKey(keys.get(i)), template -> new ArrayList<>()).add(i);
+        }
+        byShard.forEach((template, indexes) -> {
+            List<RefundLedger.Snapshot> shardRecords = readShard(template, indexes.stream().map(keys::get).toList());
+            for (int i = 0; i < indexes.size(); i++) {
+                records[indexes.get(i)] = shardRecords.get(i);
+            }
+        });
+        for (int i = 0; i < records.length; i++) {
+            String key = keys.get(i);
+            if (records[i] == null && paymentRedisRouter.previousForKey(key) != null) {
+                if (key.startsWith(PAYMENT_KEY_PREFIX)) {
+                    records[i] = refundLedger.read(key);
+                } else {
+                    String value = read(key);
+                    records[i] = value != null ? new RefundLedger.Snapshot(value, null, List.of()) : null;
+                }
+            }
+        }
+        return Arrays.asList(records);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<RefundLedger.Snapshot> readShard(RedisTemplate<String, String> shard, List<String> keys) {
+        List<Object> replies = shard.executePipelined((RedisCallback<Object>) connection -> {
+            connection.stringCommands().mGet(keys.stream().map(PaymentService::raw).toArray(byte[][]::new));
+            for (String key : keys) {
+                if (key.startsWith(PAYMENT_KEY_PREFIX)) {
+                    connection.hashCommands().hGet(raw(RefundLedger.ledgerKey(key)), raw(RefundLedger.REMAINING_FIELD));
+                    connection.setCommands().sMembers(raw(RefundLedger.refundIdsKey(key)));
+                }
+            }
+            return null;
+        });
+        List<String> values = (List<String>) replies.get(0);
+        List<RefundLedger.Snapshot> records = new ArrayList<>(keys.size());
+        int reply = 1;
+        for (int i = 0; i < keys.size(); i++) {
+            String value = values.get(i);
+            if (!keys.get(i).startsWith(PAYMENT_KEY_PREFIX)) {
+                records.add(value != null ? new RefundLedger.Snapshot(value, null, List.of()) : null);
+                continue;
+            }
+            String remaining = (String) replies.get(reply++);
+            Set<String> refundIds = (Set<String>) replies.get(reply++);
+            records.add(value != null ? new RefundLedger.Snapshot(value,
+                    remaining != null ? Long.valueOf(remaining) : null,
+                    refundIds != null ? List.copyOf(refundIds) : List.of()) : null);
+        }
+        return records;
+    }
+
+    private static byte[] raw(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private PaymentLookupResult lookupResult(String key, RefundLedger.Snapshot record) {
+        boolean payment = key.startsWith(PAYMENT_KEY_PREFIX);
+        PaymentLookupResult result = PaymentLookupResult.builder()
+                .type(payment ? "payment" : "refund")
+                .id(key.substring(payment ? PAYMENT_KEY_PREFIX.length() : REFUND_KEY_PREFIX.length()))
+                .build();
+        if (record == null) {
+            return result;
+        }
+        try {
+            if (payment) {
+                result.setPayment(record.apply(codec.paymentReader().readValue(record.payment())));
+            } else {
+                result.setRefund(codec.refundReader().readValue(record.payment()));
+            }
+            result.setFound(true);
+        } catch (JsonProcessingException e) {
+            log.error("Failed to deserialize {} from JSON", result.getType(), e);
+        }
+        return result;
+    }
+
+    /**
+     * Streams every payment and refund whose timestamp falls in {@code [from, to)}, for finance dumps. There is no
+     * time index across customers, so each shard's keyspace is walked with SCAN and every
+     * {@link #LOOKUP_CHUNK_SIZE} keys are read back, with their refund ledgers, in one pipeline. The next chunk is
+     * only fetched once the sink has returned, so memory stays at one chunk and a slow consumer slows the walk down
+     * instead of piling up.
+     * <p>
+     * SCAN can return a key twice, and records written during the walk may or may not be included. Shards that
+     * are leaving the ring in an unfinished rebalance are not walked. On Redis Cluster SCAN only covers the node
+     * it is sent to, so every master is walked in turn.
+     */
+    public void export(LocalDateTime from, LocalDateTime to, Consumer<List<PaymentLookupResult>> sink) {
+        for (RedisTemplate<String, String> shard : paymentRedisRouter.all()) {
+            exportShard(shard, PAYMENT_KEY_PREFIX, from, to, sink);
+            exportShard(shard, REFUND_KEY_PREFIX, from, to, sink);
+        }
+    }
+
+    private void exportShard(RedisTemplate<String, String> shard, String prefix, LocalDateTime from,
+                             LocalDateTime to, Consumer<List<PaymentLookupResult>> sink) {
+        ScanOptions options = ScanOptions.scanOptions().match(prefix + "*").count(EXPORT_SCAN_COUNT).build();
+        shard.execute((RedisCallback<Void>) connection -> {
+            if (connection instanceof RedisClusterConnection cluster) {
+                for (RedisClusterNode node : cluster.clusterGetNodes()) {
+                    if (node.isMaster()) {
+                        try (Cursor<byte[]> cursor = cluster.scan(node, options)) {
+                            exportKeys(shard, cursor, from, to, sink);
+                        }
+                    }
+                }
+            } else {
+                try (Cursor<byte[]> cursor = connection.keyCommands().scan(options)) {
+                    exportKeys(shard, cursor, from, to, sink);
+                }
+            }
+            return null;
+        });
+    }
+
+    private void exportKeys(RedisTemplate<String, String> shard, Cursor<byte[]> cursor, LocalDateTime from,
+                            LocalDateTime to, Consumer<List<PaymentLookupResult>> sink) {
+        List<String> keys = new ArrayList<>(LOOKUP_CHUNK_SIZE);
+        while (cursor.hasNext()) {
+            keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+            if (keys.size() == LOOKUP_CHUNK_SIZE) {
+                exportChunk(shard, keys, from, to, sink);
+                keys.clear();
+            }
+        }
+        if (!keys.isEmpty()) {
+            exportChunk(shard, keys, from, to, sink);
+        }
+    }
+
+    private void exportChunk(RedisTemplate<String, String> shard, List<String> keys, LocalDateTime from,
+                             LocalDateTime to, Consumer<List<PaymentLookupResult>> sink) {
+        List<RefundLedger.Snapshot> values = readShard(shard, keys);
+        List<PaymentLookupResult> results = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            // Null when the record expired between SCAN and MGET
+            if (values.get(i) == null) {
+                continue;
+            }
+            PaymentLookupResult result = lookupResult(keys.get(i), values.get(i));
+            LocalDateTime timestamp = result.getPayment() != null ? result.getPayment().getTimestamp()
+                    : result.getRefund() != null ? result.getRefund().getTimestamp() : null;
+            if (timestamp != null && !timestamp.isBefore(from) && timestamp.isBefore(to)) {
+                results.add(result);
+            }
+        }
+        if (!results.isEmpty()) {
+            sink.accept(results);
+        }
+    }
+
+    /**
+     * Lists a customer's unexpired payments, oldest first, straight from the customer's index. {@code after} is
+     * the {@code nextCursor} of the previous page; entries that share a timestamp are ordered by transaction id,
+     * so pages neither repeat nor skip them.
+     *
+     * @throws IllegalArgumentException if {@code after} is not a cursor returned by this method
+     */
+    public PaymentPage listPayments(String customerId, String after, int limit) {
+        String indexKey = CUSTOMER_INDEX_PREFIX + customerId;
+        RedisTemplate<String, String> index = paymentRedisRouter.forKey(indexKey);
+        RedisTemplate<String, String> previous = paymentRedisRouter.previousForKey(indexKey);
+        if (previous != null && !Boolean.TRUE.equals(index.hasKey(indexKey))) {
+            index = previous;
+        }
+
+        IndexCursor cursor = after != null ? IndexCursor.parse(after) : null;
+        long oldest = System.currentTimeMillis() - Duration.ofHours(PAYMENT_TTL_HOURS).toMillis();
+        double min = cursor != null ? Math.max(cursor.score(), oldest) : oldest;
+        List<IndexCursor> entries = new ArrayList<>(limit);
+        long offset = 0;
+        while (entries.size() < limit) {
+            Set<TypedTuple<String>> range = index.opsForZSet()
+                    .rangeByScoreWithScores(indexKey, min, Double.POSITIVE_INFINITY, offset, limit);
+            if (range == null || range.isEmpty()) {
+                break;
+            }
+            for (TypedTuple<String> tuple : range) {
+                IndexCursor entry = new IndexCursor(tuple.getScore().longValue(), tuple.getValue());
+                if (entries.size() < limit && (cursor == null || entry.isAfter(cursor))) {
+                    entries.add(entry);
+                }
+            }
+            if (range.size() < limit) {
+                break;
+            }
+            offset += range.size();
+        }
+
+        List<RefundLedger.Snapshot> records =
+                readAll(entries.stream().map(entry -> PAYMENT_KEY_PREFIX + entry.member()).toList());
+        List<PaymentResponse> payments = new ArrayList<>(records.size());
+        for (RefundLedger.Snapshot record : records) {
+            if (record == null) {
+                continue;
+            }
+            try {
+                payments.add(record.apply(codec.paymentReader().readValue(record.payment())));
+            } catch (JsonProcessingException e) {
+                log.error("Failed to deserialize payment from JSON", e);
+            }
+        }
+        String nextCursor = entries.size() == limit ? entries.get(entries.size() - 1).format() : null;
+        return PaymentPage.builder().payments(payments).nextCursor(nextCursor).build();
+    }
+
+    /**
+     * Position in a customer index: creation time in epoch millis and transaction id, as {@code millis:id}.
+     */
+    private record IndexCursor(long score, String member) {
+
+        static IndexCursor parse(String cursor) {
+            int separator = cursor.indexOf(':');
+            try {
+                return new IndexCursor(Long.parseLong(cursor.substring(0, separator)), cursor.substring(separator + 1));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+            }
+        }
+
+        boolean isAfter(IndexCursor other) {
+            return score > other.score || (score == other.score && member.compareTo(other.member) > 0);
+        }
+
+        String format() {
+            return score + ":" + member;
+        }
+    }
 }
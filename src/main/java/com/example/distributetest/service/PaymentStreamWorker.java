@@ -0,0 +1,254 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.dto.PaymentRequest;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes payments accepted with 202 by {@link PaymentService#acceptPayment}. A fixed number of workers
+ * read the payment stream through a consumer group, call the gateway behind the {@code payment} circuit
+ * breaker and acknowledge the entry once its outcome is stored.
+ * <p>
+ * Entries a crashed node read but never acknowledged stay pending in the group; a reclaimer takes over the
+ * ones idle for longer than {@code claim-idle} and gives up on entries delivered {@code max-deliveries} times.
+ * While the breaker is open nothing is read or claimed and entries are left pending, so they are retried once
+ * it closes.
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "payment.async.enabled", havingValue = "true")
+public class PaymentStreamWorker implements InitializingBean, DisposableBean {
+
+    private final PaymentQueue queue;
+    private final PaymentService paymentService;
+    private final CircuitBreaker circuitBreaker;
+    private final int workers;
+    private final int batchSize;
+    private final Duration block;
+    private final Duration claimIdle;
+    private final int maxDeliveries;
+    private final String consumerName = ManagementFactory.getRuntimeMXBean().getName();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService reclaimer;
+    private volatile boolean running;
+
+    public PaymentStreamWorker(PaymentQueue queue,
+                               PaymentService paymentService,
+                               CircuitBreakerRegistry circuitBreakerRegistry,
+                               @Value("${payment.async.workers:4}") int workers,
+                               @Value("${payment.async.batch-size:16}") int batchSize,
+                               @Value("${payment.async.block:2s}") Duration block,
+                               @Value("${payment.async.claim-idle:60s}") Duration claimIdle,
+                               @Value("${payment.async.max-deliveries:5}") int maxDeliveries) {
+        this.queue = queue;
+        this.paymentService = paymentService;
+        this.circuitBreaker = circuitBreakerRegistry.circuitBreaker("payment");
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.block = block;
+        this.claimIdle = claimIdle;
+        this.maxDeliveries = maxDeliveries;
+        AtomicInteger sequence = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "payment-worker-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reclaimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-reclaimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        queue.ensureGroup();
+        running = true;
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::consume);
+        }
+        long intervalMillis = Math.max(1000, claimIdle.toMillis() / 2);
+        reclaimer.scheduleWithFixedDelay(this::reclaim, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Payment stream worker {} started with {} workers", consumerName, workers);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        reclaimer.shutdownNow();
+        executor.shutdown();
+        // Workers finish the entry in hand; anything unacknowledged is reclaimed by another node
+        if (!executor.awaitTermination(block.toMillis() + 5000, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void consume() {
+        while (running) {
+            // Entries read now could only be left pending, each with one more delivery against max-deliveries
+            if (breakerOpen()) {
+                pause();
+                continue;
+            }
+            try {
+                poll();
+            } catch (RuntimeException e) {
+                if (!running) {
+                    return;
+                }
+                log.warn("Reading the payment stream failed, retrying", e);
+                pause();
+            }
+        }
+    }
+
+    /**
+     * Reads one batch of new entries for this consumer and processes them.
+     */
+    void poll() {
+        List<MapRecord<String, Object, Object>> records = queue.read(consumerName, batchSize, block);
+        if (records != null) {
+            records.forEach(this::process);
+        }
+    }
+
+    /**
+     * Takes over entries left pending by other consumers. Nothing is claimed while the breaker is open, since the
+     * gateway would not be tried, and entries are only given up on while it is closed, so deliveries the breaker
+     * turned away do not use up an entry's attempts.
+     */
+    void reclaim() {
+        if (breakerOpen()) {
+            log.debug("Circuit breaker open, not reclaiming pending payments");
+            return;
+        }
+        try {
+            List<RecordId> stale = new ArrayList<>();
+            for (PendingMessage message : queue.pending(batchSize * workers)) {
+                if (message.getElapsedTimeSinceLastDelivery().compareTo(claimIdle) < 0) {
+                    continue;
+                }
+                if (message.getTotalDeliveryCount() < maxDeliveries) {
+                    stale.add(message.getId());
+                } else if (circuitBreaker.getState() == CircuitBreaker.State.CLOSED) {
+                    abandon(message.getId());
+                }
+            }
+            if (!stale.isEmpty()) {
+                List<MapRecord<String, Object, Object>> claimed =
+                        queue.claim(consumerName, claimIdle, stale.toArray(RecordId[]::new));
+                log.info("Reclaimed {} pending payment(s)", claimed.size());
+                claimed.forEach(this::process);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Reclaiming pending payments failed", e);
+        }
+    }
+
+    /**
+     * Settles one entry and acknowledges it once the outcome is stored. An entry whose outcome cannot be stored
+     * stays pending for the reclaimer and does not stop the rest of the batch.
+     */
+    private void process(MapRecord<String, Object, Object> record) {
+        String transactionId = String.valueOf(record.getValue().get("transactionId"));
+        try {
+            if (alreadySettled(record.getId(), transactionId)) {
+                return;
+            }
+            PaymentRequest request = requestOf(record.getValue());
+            try {
+                circuitBreaker.executeSupplier(() -> paymentService.processQueuedPayment(transactionId, request));
+            } catch (CallNotPermittedException e) {
+                log.debug("Circuit breaker open, leaving payment {} pending", transactionId);
+                return;
+            } catch (RuntimeException e) {
+                paymentService.failQueuedPayment(transactionId, request, e.getMessage());
+            }
+            queue.ack(record.getId());
+        } catch (RuntimeException e) {
+            log.error("Processing queued payment {} failed, leaving it pending", transactionId, e);
+        }
+    }
+
+    /**
+     * Marks an entry that keeps failing to complete as FAILED and removes it from the pending list.
+     */
+    private void abandon(RecordId id) {
+        List<MapRecord<String, Object, Object>> claimed = queue.claim(consumerName, claimIdle, id);
+        for (MapRecord<String, Object, Object> record : claimed) {
+            String transactionId = String.valueOf(record.getValue().get("transactionId"));
+            try {
+                if (alreadySettled(record.getId(), transactionId)) {
+                    continue;
+                }
+                paymentService.failQueuedPayment(transactionId, requestOf(record.getValue()),
+                        "gave up after " + maxDeliveries + " deliveries");
+                queue.ack(record.getId());
+            } catch (RuntimeException e) {
+                log.error("Abandoning queued payment {} failed, leaving it pending", transactionId, e);
+            }
+        }
+    }
+
+    private boolean breakerOpen() {
+        CircuitBreaker.State state = circuitBreaker.getState();
+        return state == CircuitBreaker.State.OPEN || state == CircuitBreaker.State.FORCED_OPEN;
+    }
+
+    /**
+     * Acknowledges an entry whose payment is no longer PENDING. That happens when a consumer stored the outcome
+     * but died before XACK, and the entry was then reclaimed; charging it again would bill the customer twice.
+     */
+    private boolean alreadySettled(RecordId id, String transactionId) {
+        String status = paymentService.queuedPaymentStatus(transactionId);
+        if ("PENDING".equals(status)) {
+            return false;
+        }
+        log.info("Payment {} is already {}, acknowledging without processing", transactionId,
+                status != null ? status : "gone");
+        queue.ack(id);
+        return true;
+    }
+
+    private static PaymentRequest requestOf(Map<Object, Object> fields) {
+        return new PaymentRequest(Double.valueOf(String.valueOf(fields.get("amount"))),
+                optional(fields.get("currency")), optional(fields.get("customerId")));
+    }
+
+    /**
+     * Stream fields are strings, so a missing request value was enqueued as "null".
+     */
+    private static String optional(Object field) {
+        return field == null || "null".equals(field) ? null : String.valueOf(field);
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
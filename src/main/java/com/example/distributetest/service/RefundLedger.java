@@ -0,0 +1,187 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.dto.PaymentResponse;
+import com.example.distributetest.redis.RedisShardRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
+
+/**
+ * Per-payment refund ledger: a hash holding the amount still refundable in minor units and a set of the
+ * refund ids charged against it. Both keys carry the payment key as their hash tag, so they live on the
+ * payment's shard (or cluster slot) and each operation is one Lua script over all three keys.
+ * <p>
+ * The ledger is created by the first refund from the payment record itself and expires with it.
+ */
+@Component
+@Slf4j
+public class RefundLedger {
+
+    private static final int MINOR_UNIT_DIGITS = 2;
+    private static final long NOT_FOUND = -1;
+    private static final long NOT_REFUNDABLE = -2;
+    private static final long EXCEEDS_REMAINING = -3;
+    static final String REMAINING_FIELD = "remaining";
+
+    // Returns {0, remaining} after charging the refund, or {error code, remaining}
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> DEBIT = new DefaultRedisScript<>(
+            "local remaining = redis.call('HGET', KEYS[2], 'remaining') "
+                    + "if remaining then "
+                    + "  remaining = tonumber(remaining) "
+                    + "else "
+                    + "  local payment = redis.call('GET', KEYS[1]) "
+                    + "  if not payment then return {" + NOT_FOUND + ", 0} end "
+                    + "  local record = cjson.decode(payment) "
+                    + "  if record.status ~= 'SUCCESS' or type(record.amount) ~= 'number' then "
+                    + "    return {" + NOT_REFUNDABLE + ", 0} "
+                    + "  end "
+                    + "  remaining = math.floor(record.amount * tonumber(ARGV[3]) + 0.5) "
+                    + "end "
+                    + "local amount = tonumber(ARGV[2]) "
+                    + "if amount > remaining then return {" + EXCEEDS_REMAINING + ", remaining} end "
+                    + "remaining = remaining - amount "
+                    + "redis.call('HSET', KEYS[2], 'remaining', remaining) "
+                    + "redis.call('SADD', KEYS[3], ARGV[1]) "
+                    + "local ttl = redis.call('PTTL', KEYS[1]) "
+                    + "if ttl > 0 then "
+                    + "  redis.call('PEXPIRE', KEYS[2], ttl) "
+                    + "  redis.call('PEXPIRE', KEYS[3], ttl) "
+                    + "end "
+                    + "return {0, remaining}",
+            List.class);
+    // Gives a charged refund back, once; returns the new remaining amount or nil if it was not charged
+    private static final RedisScript<Long> RELEASE = new DefaultRedisScript<>(
+            "if redis.call('SREM', KEYS[2], ARGV[1]) == 1 then "
+                    + "  return redis.call('HINCRBY', KEYS[1], 'remaining', ARGV[2]) "
+                    + "end "
+                    + "return false",
+            Long.class);
+    // Returns {payment, remaining or nil, refund ids}, or an empty list if the payment does not exist
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> VIEW = new DefaultRedisScript<>(
+            "local payment = redis.call('GET', KEYS[1]) "
+                    + "if not payment then return {} end "
+                    + "return {payment, redis.call('HGET', KEYS[2], 'remaining'), redis.call('SMEMBERS', KEYS[3])}",
+            List.class);
+
+    private final RedisShardRouter<String> paymentRedisRouter;
+
+    public RefundLedger(RedisShardRouter<String> paymentRedisRouter) {
+        this.paymentRedisRouter = paymentRedisRouter;
+    }
+
+    /**
+     * Charges the refund against the payment and returns the amount left, in minor units.
+     *
+     * @throws RefundRejectedException if the payment is unknown, not settled, or has less left to refund
+     */
+    public long debit(String paymentKey, String refundId, long amount) {
+        List<?> result = execute(DEBIT, paymentKey, refundId, Long.toString(amount),
+                BigDecimal.ONE.movePointRight(MINOR_UNIT_DIGITS).toPlainString());
+        long code = (Long) result.get(0);
+        long remaining = (Long) result.get(1);
+        if (code == NOT_FOUND) {
+            throw new RefundRejectedException(RefundRejectedException.Reason.PAYMENT_NOT_FOUND,
+                    "Payment not found: " + paymentKey);
+        }
+        if (code == NOT_REFUNDABLE) {
+            throw new RefundRejectedException(RefundRejectedException.Reason.NOT_REFUNDABLE,
+                    "Payment has not succeeded: " + paymentKey);
+        }
+        if (code == EXCEEDS_REMAINING) {
+            throw new RefundRejectedException(RefundRejectedException.Reason.EXCEEDS_REMAINING,
+                    "Refund exceeds the refundable amount of " + toAmount(remaining));
+        }
+        log.debug("Refund {} charged against {} ({} left)", refundId, paymentKey, remaining);
+        return remaining;
+    }
+
+    /**
+     * Returns a charged refund to the ledger, e.g. after the gateway rejected it. Releasing twice is a no-op.
+     */
+    public void release(String paymentKey, String refundId, long amount) {
+        RedisTemplate<String, String> template = paymentRedisRouter.forKey(paymentKey);
+        template.execute(RELEASE, List.of(ledgerKey(paymentKey), refundIdsKey(paymentKey)), refundId,
+                Long.toString(amount));
+    }
+
+    /**
+     * Reads the payment record together with its ledger in one round trip, or returns null if there is no record.
+     */
+    public Snapshot read(String paymentKey) {
+        List<?> result = execute(VIEW, paymentKey);
+        if (result == null || result.isEmpty()) {
+            return null;
+        }
+        String remaining = (String) result.get(1);
+        @SuppressWarnings("unchecked")
+        List<String> refundIds = (List<String>) result.get(2);
+        return new Snapshot((String) result.get(0), remaining != null ? Long.valueOf(remaining) : null,
+                refundIds != null ? refundIds : List.of());
+    }
+
+    public static long toMinorUnits(double amount) {
+        return BigDecimal.valueOf(amount).movePointRight(MINOR_UNIT_DIGITS)
+                .setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    public static double toAmount(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits).movePointLeft(MINOR_UNIT_DIGITS).doubleValue();
+    }
+
+    /**
+     * Runs the script on the payment's shard, and on its previous owner while shards are rebalancing if the
+     * payment was not found there.
+     */
+    @SuppressWarnings("rawtypes")
+    private List<?> execute(RedisScript<List> script, String paymentKey, String... args) {
+        List<String> keys = List.of(paymentKey, ledgerKey(paymentKey), refundIdsKey(paymentKey));
+        List<?> result = paymentRedisRouter.forKey(paymentKey).execute(script, keys, (Object[]) args);
+        RedisTemplate<String, String> previous = paymentRedisRouter.previousForKey(paymentKey);
+        boolean missing = result == null || result.isEmpty() || Long.valueOf(NOT_FOUND).equals(result.get(0));
+        if (missing && previous != null) {
+            result = previous.execute(script, keys, (Object[]) args);
+        }
+        return result;
+    }
+
+    /**
+     * Hash holding the amount left to refund under {@link #REMAINING_FIELD}; exposed for bulk reads that
+     * pipeline it with the payment records.
+     */
+    static String ledgerKey(String paymentKey) {
+        return "{" + paymentKey + "}:refund-ledger";
+    }
+
+    static String refundIdsKey(String paymentKey) {
+        return "{" + paymentKey + "}:refund-ids";
+    }
+
+    /**
+     * A payment record as stored, the amount left to refund in minor units (null before the first refund)
+     * and the refunds charged so far.
+     */
+    public record Snapshot(String payment, Long remaining, List<String> refundIds) {
+
+        /**
+         * The payment with its refund state: the ids charged so far and what is left to refund, which is the
+         * full amount for a settled payment that has not been refunded yet.
+         */
+        PaymentResponse apply(PaymentResponse payment) {
+            payment.setRefundIds(refundIds);
+            if (remaining != null) {
+                payment.setRefundableAmount(toAmount(remaining));
+            } else if ("SUCCESS".equals(payment.getStatus())) {
+                payment.setRefundableAmount(payment.getAmount());
+            }
+            return payment;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.distributetest.service;
+
+/**
+ * A refund the ledger refused before the gateway was called. It is the caller's error rather than a
+ * gateway failure, so the circuit breaker ignores it.
+ */
+public class RefundRejectedException extends RuntimeException {
+
+    public enum Reason {
+        INVALID_REQUEST,
+        PAYMENT_NOT_FOUND,
+        NOT_REFUNDABLE,
+        EXCEEDS_REMAINING
+    }
+
+    private final Reason reason;
+
+    public RefundRejectedException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.distributetest.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BoundedExpiringCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    void expiresEntriesThroughTimingWheel() {
+        BoundedExpiringCache<String, String> cache = new BoundedExpiringCache<>(100, 1000, String::length, now::get);
+        cache.put("a", "value", Duration.ofSeconds(5));
+
+        now.addAndGet(6000);
+        cache.put("b", "value", Duration.ofSeconds(5));
+
+        assertThat(cache.stats().size()).isEqualTo(1);
+        assertThat(cache.stats().expirations()).isEqualTo(1);
+        assertThat(cache.get("a")).isNull();
+    }
+
+    @Test
+    void treatsExpiredEntryAsAbsentOnRead() {
+        BoundedExpiringCache<String, String> cache = new BoundedExpiringCache<>(100, 1000, String::length, now::get);
+        cache.put("a", "value", Duration.ofSeconds(1));
+
+        now.addAndGet(1500);
+
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.putIfAbsent("a", "again", Duration.ofSeconds(1))).isTrue();
+        assertThat(cache.putIfAbsent("a", "third", Duration.ofSeconds(1))).isFalse();
+        assertThat(cache.get("a")).isEqualTo("again");
+    }
+
+    @Test
+    void evictsLeastFrequentlyUsedEntryWhenFull() {
+        BoundedExpiringCache<String, String> cache = new BoundedExpiringCache<>(2, 1000, String::length, now::get);
+        cache.put("hot", "value", Duration.ofMinutes(1));
+        cache.put("cold", "value", Duration.ofMinutes(1));
+        cache.get("hot");
+        cache.get("hot");
+
+        cache.put("new", "value", Duration.ofMinutes(1));
+
+        assertThat(cache.get("hot")).isEqualTo("value");
+        assertThat(cache.get("cold")).isNull();
+        assertThat(cache.stats().evictions()).isEqualTo(1);
+    }
+
+    @Test
+    void keepsPinnedEntriesUntilTheyExpire() {
+        BoundedExpiringCache<String, String> cache = new BoundedExpiringCache<>(2, 1000, String::length,
+                value -> value.equals("in-progress"), now::get);
+        cache.put("a", "in-progress", Duration.ofSeconds(30));
+        cache.put("b", "in-progress", Duration.ofSeconds(30));
+
+        cache.put("c", "done", Duration.ofMinutes(1));
+
+        assertThat(cache.get("a")).isEqualTo("in-progress");
+        assertThat(cache.get("b")).isEqualTo("in-progress");
+        assertThat(cache.get("c")).isNull();
+
+        // Nothing left to evict: the cache runs over its bound rather than drop a pinned entry
+        cache.put("d", "in-progress", Duration.ofSeconds(30));
+        assertThat(cache.stats().size()).isEqualTo(3);
+
+        now.addAndGet(31_000);
+        cache.put("e", "done", Duration.ofMinutes(1));
+
+        assertThat(cache.stats().size()).isEqualTo(1);
+        assertThat(cache.get("e")).isEqualTo("done");
+    }
+
+    @Test
+    void enforcesWeightBudget() {
+        BoundedExpiringCache<String, String> cache = new BoundedExpiringCache<>(100, 10, String::length, now::get);
+        cache.put("a", "12345", Duration.ofMinutes(1));
+        cache.put("b", "12345", Duration.ofMinutes(1));
+        cache.put("c", "123", Duration.ofMinutes(1));
+
+        assertThat(cache.stats().weightedSize()).isEqualTo(8);
+        assertThat(cache.stats().size()).isEqualTo(2);
+    }
+}
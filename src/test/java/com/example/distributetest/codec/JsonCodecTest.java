@@ -0,0 +1,60 @@
+package com.example.distributetest.codec;
+
+import com.example.distributetest.dto.PaymentResponse;
+import com.example.distributetest.dto.RefundResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JsonCodecTest {
+
+    // The mapper every class built for itself before the shared codec; stored records were written with it
+    private final ObjectMapper legacyMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final JsonCodec codec = JsonCodec.shared();
+
+    @Test
+    void writesPaymentsExactlyAsBefore() throws Exception {
+        PaymentResponse payment = PaymentResponse.builder()
+                .transactionId("0b6f1f0e-6a43-4b8e-9f0e-2f4c1d8a9b7c")
+                .customerId("customer-42")
+                .amount(50000.0)
+                .status("SUCCESS")
+                .timestamp(LocalDateTime.of(2025, 1, 15, 10, 30, 0, 123456000))
+                .message("Payment processed successfully")
+                .refundIds(List.of("refund-1"))
+                .build();
+
+        String json = codec.paymentWriter().writeValueAsString(payment);
+        PaymentResponse decoded = codec.paymentReader().readValue(json);
+
+        assertThat(json).isEqualTo(legacyMapper.writeValueAsString(payment));
+        assertThat(decoded).isEqualTo(payment);
+        assertThat(codec.writeValueAsBytes(payment)).isEqualTo(legacyMapper.writeValueAsBytes(payment));
+    }
+
+    @Test
+    void readsRefundsWrittenByTheLegacyMapper() throws Exception {
+        RefundResponse refund = RefundResponse.builder()
+                .refundId("refund-1")
+                .originalTransactionId("0b6f1f0e-6a43-4b8e-9f0e-2f4c1d8a9b7c")
+                .amount(20000.0)
+                .status("SUCCESS")
+                .timestamp(LocalDateTime.of(2025, 1, 15, 11, 0))
+                .message("Refund processed successfully")
+                .build();
+
+        RefundResponse decoded = codec.refundReader().readValue(legacyMapper.writeValueAsString(refund));
+
+        assertThat(decoded).isEqualTo(refund);
+    }
+
+    @Test
+    void writesNullBodies() throws Exception {
+        assertThat(codec.writeValueAsBytes(null)).isEqualTo(legacyMapper.writeValueAsBytes(null));
+    }
+}
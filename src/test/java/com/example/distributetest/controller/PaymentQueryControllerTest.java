@@ -0,0 +1,42 @@
+package com.example.distributetest.controller;
+
+import com.example.distributetest.dto.PaymentPage;
+import com.example.distributetest.service.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PaymentQueryControllerTest {
+
+    private final List<Integer> limits = new ArrayList<>();
+    private final PaymentQueryController controller = new PaymentQueryController(
+            new PaymentService(null, null, null, null, null, null, null) {
+                @Override
+                public PaymentPage listPayments(String customerId, String after, int limit) {
+                    if ("bad".equals(after)) {
+                        throw new IllegalArgumentException("Invalid cursor: " + after);
+                    }
+                    limits.add(limit);
+                    return PaymentPage.builder().payments(List.of()).build();
+                }
+            });
+
+    @Test
+    void clampsThePageSize() {
+        for (int limit : List.of(1_000, 200, 50, 0, -5)) {
+            controller.listPayments("customer-1", null, limit);
+        }
+
+        assertThat(limits).containsExactly(200, 200, 50, 1, 1);
+    }
+
+    @Test
+    void answersAnInvalidCursorWithBadRequest() {
+        assertThat(controller.listPayments("customer-1", "bad", 50).getStatusCode())
+                .isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+}
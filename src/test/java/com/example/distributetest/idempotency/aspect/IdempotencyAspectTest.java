@@ -0,0 +1,190 @@
+package com.example.distributetest.idempotency.aspect;
+
+import com.example.distributetest.idempotency.annotation.Idempotent;
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import com.example.distributetest.idempotency.service.InMemoryIdempotencyService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Drives the aspect through a proxied handler and checks what is left in the store once an asynchronous
+ * result completes: the response when it succeeds, nothing when it fails, so a retry can run. Duplicates of an
+ * asynchronous handler get their answer when the first request finishes, without holding the calling thread.
+ */
+class IdempotencyAspectTest {
+
+    private static final Duration LEASE = Duration.ofSeconds(30);
+
+    private final InMemoryIdempotencyService store =
+            new InMemoryIdempotencyService(1_000, 1 << 20, new SimpleMeterRegistry());
+    private final Handler target = new Handler();
+    private final MockHttpServletRequest request = new MockHttpServletRequest();
+    private Handler handler;
+
+    @BeforeEach
+    void setUp() {
+        AspectJProxyFactory proxyFactory = new AspectJProxyFactory(target);
+        proxyFactory.setProxyTargetClass(true);
+        proxyFactory.addAspect(new IdempotencyAspect(store, new IdempotencyKeyResolver(), new SimpleMeterRegistry()));
+        handler = proxyFactory.getProxy();
+        request.addHeader("Idempotency-Key", "key-1");
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request, new MockHttpServletResponse()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    void savesTheResponseWhenACompletionStageSucceeds() {
+        handler.stage();
+        assertThat(store.get("key-1")).hasValueSatisfying(reserved ->
+                assertThat(reserved.getStatus()).isEqualTo(IdempotencyStatus.IN_PROGRESS));
+
+        target.future.complete(ResponseEntity.status(201).body(Map.of("ok", true)));
+
+        assertCompleted("key-1", 201);
+    }
+
+    @Test
+    void releasesTheKeyWhenACompletionStageFails() {
+        handler.stage();
+
+        target.future.completeExceptionally(new IllegalStateException("gateway unavailable"));
+
+        assertReleased("key-1");
+    }
+
+    @Test
+    void savesTheResponseWhenACallableReturns() throws Exception {
+        target.callable = () -> ResponseEntity.ok(Map.of("ok", true));
+
+        handler.callable().call();
+
+        assertCompleted("key-1", 200);
+    }
+
+    @Test
+    void releasesTheKeyWhenACallableThrows() {
+        target.callable = () -> {
+            throw new IllegalStateException("gateway unavailable");
+        };
+
+        assertThatThrownBy(() -> handler.callable().call()).isInstanceOf(IllegalStateException.class);
+
+        assertReleased("key-1");
+    }
+
+    @Test
+    void savesTheResponseOfADeferredResultOnce() {
+        DeferredResult<ResponseEntity<?>> deferredResult = handler.deferred();
+        IdempotentDeferredResultInterceptor interceptor = new IdempotentDeferredResultInterceptor();
+        ServletWebRequest webRequest = new ServletWebRequest(request);
+
+        interceptor.postProcess(webRequest, deferredResult, ResponseEntity.status(201).body(Map.of("ok", true)));
+        interceptor.afterCompletion(webRequest, deferredResult);
+
+        assertCompleted("key-1", 201);
+    }
+
+    @Test
+    void releasesTheKeyWhenADeferredResultEndsWithoutAResult() {
+        DeferredResult<ResponseEntity<?>> deferredResult = handler.deferred();
+
+        // Client gone or container timeout: only afterCompletion runs
+        new IdempotentDeferredResultInterceptor().afterCompletion(new ServletWebRequest(request), deferredResult);
+
+        assertReleased("key-1");
+    }
+
+    @Test
+    void releasesTheKeyWhenADeferredResultFails() {
+        DeferredResult<ResponseEntity<?>> deferredResult = handler.deferred();
+
+        new IdempotentDeferredResultInterceptor().postProcess(new ServletWebRequest(request), deferredResult,
+                new IllegalStateException("gateway unavailable"));
+
+        assertReleased("key-1");
+    }
+
+    @Test
+    void completesAnAsyncDuplicateWhenTheFirstRequestSaves() throws Exception {
+        handler.stage();
+
+        CompletableFuture<ResponseEntity<?>> duplicate = handler.stage();
+
+        assertThat(duplicate).isNotDone();
+        target.future.complete(ResponseEntity.status(201).body(Map.of("ok", true)));
+        ResponseEntity<?> replayed = duplicate.get(5, TimeUnit.SECONDS);
+        assertThat(replayed.getStatusCode().value()).isEqualTo(201);
+        assertThat(new String((byte[]) replayed.getBody(), StandardCharsets.UTF_8)).isEqualTo("{\"ok\":true}");
+    }
+
+    @Test
+    void answersADeferredDuplicateWithAConflictOnceTheKeyIsReleased() throws Exception {
+        DeferredResult<ResponseEntity<?>> first = handler.deferred();
+
+        DeferredResult<ResponseEntity<?>> duplicate = handler.deferred();
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        duplicate.setResultHandler(result::complete);
+
+        assertThat(result).isNotDone();
+        new IdempotentDeferredResultInterceptor().afterCompletion(new ServletWebRequest(request), first);
+        assertThat(result.get(5, TimeUnit.SECONDS)).isInstanceOfSatisfying(ResponseEntity.class, response ->
+                assertThat(response.getStatusCode().value()).isEqualTo(409));
+    }
+
+    private void assertCompleted(String key, int statusCode) {
+        IdempotencyKey saved = store.get(key).orElseThrow();
+        assertThat(saved.isCompleted()).isTrue();
+        assertThat(saved.getStatusCode()).isEqualTo(statusCode);
+    }
+
+    private void assertReleased(String key) {
+        assertThat(store.get(key)).isEmpty();
+        assertThat(store.getOrReserve(key, LEASE).acquired()).isTrue();
+    }
+
+    static class Handler {
+
+        final CompletableFuture<ResponseEntity<?>> future = new CompletableFuture<>();
+        Callable<ResponseEntity<?>> callable;
+
+        @Idempotent
+        public CompletableFuture<ResponseEntity<?>> stage() {
+            return future;
+        }
+
+        @Idempotent
+        public Callable<ResponseEntity<?>> callable() {
+            return () -> callable.call();
+        }
+
+        @Idempotent
+        public DeferredResult<ResponseEntity<?>> deferred() {
+            return new DeferredResult<>();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.distributetest.idempotency.codec;
+
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IdempotencyRecordCodecTest {
+
+    private static final String PAYMENT_BODY = "{\"transactionId\":\"0b8f3c1e-2d4a-4f6b-9c7e-1a2b3c4d5e6f\","
+            + "\"amount\":50000.0,\"status\":\"SUCCESS\",\"timestamp\":\"2025-01-15T10:30:00.123456\","
+            + "\"message\":\"Payment processed successfully\"}";
+
+    private final VersionedIdempotencyRecordCodec binary = VersionedIdempotencyRecordCodec.of("binary", 1024);
+    private final VersionedIdempotencyRecordCodec json = VersionedIdempotencyRecordCodec.of("json", 1024);
+    private final VersionedIdempotencyRecordCodec smile = VersionedIdempotencyRecordCodec.of("smile", 1024);
+
+    @Test
+    void roundTripsBinaryRecord() throws Exception {
+        IdempotencyKey record = paymentRecord(PAYMENT_BODY);
+
+        IdempotencyKey decoded = binary.decode(binary.encode(record));
+
+        assertThat(decoded).isEqualTo(record);
+    }
+
+    @Test
+    void roundTripsInProgressReservationWithoutBody() throws Exception {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        IdempotencyKey reservation = IdempotencyKey.builder()
+                .key("payment-123456")
+                .status(IdempotencyStatus.IN_PROGRESS)
+                .createdAt(now)
+                .expiresAt(now.plusSeconds(30))
+                .build();
+
+        IdempotencyKey decoded = binary.decode(binary.encode(reservation));
+
+        assertThat(decoded).isEqualTo(reservation);
+        assertThat(decoded.isCompleted()).isFalse();
+    }
+
+    @Test
+    void compressesLargeBodies() throws Exception {
+        String largeBody = "[" + (PAYMENT_BODY + ",").repeat(50) + PAYMENT_BODY + "]";
+        IdempotencyKey record = paymentRecord(largeBody);
+
+        byte[] encoded = binary.encode(record);
+
+        assertThat(encoded.length).isLessThan(largeBody.length() / 4);
+        assertThat(binary.decode(encoded)).isEqualTo(record);
+    }
+
+    @Test
+    void readsJsonRecordsWrittenBeforeBinaryRollout() throws Exception {
+        String legacy = "{\"key\":\"payment-123456\",\"response\":" + quote(PAYMENT_BODY) + ",\"statusCode\":200,"
+                + "\"createdAt\":\"2025-01-15T10:30:00\",\"expiresAt\":\"2025-01-15T11:30:00\"}";
+
+        IdempotencyKey decoded = binary.decode(legacy.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(new String(decoded.getBody(), StandardCharsets.UTF_8)).isEqualTo(PAYMENT_BODY);
+        assertThat(decoded.getStatusCode()).isEqualTo(200);
+        assertThat(decoded.isCompleted()).isTrue();
+    }
+
+    @Test
+    void readsBinaryRecordsAfterRollbackToJson() throws Exception {
+        IdempotencyKey record = paymentRecord(PAYMENT_BODY);
+
+        assertThat(json.decode(binary.encode(record))).isEqualTo(record);
+        assertThat(binary.decode(json.encode(record))).isEqualTo(record);
+    }
+
+    @Test
+    void readsSmileRecordsAlongsideOtherFormats() throws Exception {
+        IdempotencyKey record = paymentRecord(PAYMENT_BODY);
+
+        assertThat(smile.decode(smile.encode(record))).isEqualTo(record);
+        assertThat(binary.decode(smile.encode(record))).isEqualTo(record);
+        assertThat(smile.decode(json.encode(record))).isEqualTo(record);
+        assertThat(smile.decode(binary.encode(record))).isEqualTo(record);
+    }
+
+    @Test
+    void smileRecordIsSmallerThanJson() {
+        IdempotencyKey record = paymentRecord(PAYMENT_BODY);
+
+        assertThat(smile.encode(record).length).isLessThan(json.encode(record).length);
+    }
+
+    @Test
+    void binaryRecordUsesLessMemoryPerKeyThanJson() {
+        IdempotencyKey record = paymentRecord(PAYMENT_BODY);
+        String legacy = "{\"key\":\"payment-123456\",\"response\":" + quote(PAYMENT_BODY) + ",\"statusCode\":200,"
+                + "\"createdAt\":\"2025-01-15T10:30:00.123456\",\"expiresAt\":\"2025-01-15T11:30:00.123456\"}";
+
+        int legacyBytes = legacy.getBytes(StandardCharsets.UTF_8).length;
+        int jsonBytes = json.encode(record).length;
+        int binaryBytes = binary.encode(record).length;
+
+        assertThat(binaryBytes).isLessThan(legacyBytes);
+        assertThat(binaryBytes).isLessThan(jsonBytes);
+        // Header, key and content type overhead on top of the raw body
+        assertThat(binaryBytes - PAYMENT_BODY.length()).isLessThan(64);
+    }
+
+    @Test
+    void rejectsKeysTooLongForTheBinaryLengthPrefix() throws Exception {
+        IdempotencyKey longest = paymentRecord(PAYMENT_BODY);
+        longest.setKey("k".repeat(0xFFFE));
+        IdempotencyKey tooLong = paymentRecord(PAYMENT_BODY);
+        tooLong.setKey("k".repeat(0xFFFF));
+
+        assertThat(binary.decode(binary.encode(longest))).isEqualTo(longest);
+        assertThatThrownBy(() -> binary.encode(tooLong))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("65535 bytes");
+    }
+
+    private static IdempotencyKey paymentRecord(String body) {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        return IdempotencyKey.builder()
+                .key("payment-123456")
+                .body(body.getBytes(StandardCharsets.UTF_8))
+                .contentType("application/json")
+                .statusCode(200)
+                .status(IdempotencyStatus.COMPLETED)
+                .createdAt(now)
+                .expiresAt(now.plusMinutes(60))
+                .build();
+    }
+
+    private static String quote(String json) {
+        return "\"" + json.replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.distributetest.idempotency.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TimeBucketedBloomFilterTest {
+
+    private static final Duration BUCKET = Duration.ofMinutes(1);
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+    private final TimeBucketedBloomFilter filter = new TimeBucketedBloomFilter(5, BUCKET, 10_000, 0.01, now::get);
+
+    @Test
+    void keepsEveryKeyWhileItsGenerationIsLive() {
+        for (int bucket = 0; bucket < 5; bucket++) {
+            for (int i = 0; i < 1_000; i++) {
+                filter.put("key-" + bucket + "-" + i);
+            }
+            if (bucket < 4) {
+                now.addAndGet(BUCKET.toMillis());
+            }
+        }
+
+        for (int bucket = 0; bucket < 5; bucket++) {
+            int b = bucket;
+            assertThat(IntStream.range(0, 1_000)).allMatch(i -> filter.mightContain("key-" + b + "-" + i));
+        }
+    }
+
+    @Test
+    void keepsKeysInsertedRightAtARotation() {
+        filter.put("before");
+        now.addAndGet(BUCKET.toMillis());
+        filter.put("after");
+
+        assertThat(filter.mightContain("before")).isTrue();
+        assertThat(filter.mightContain("after")).isTrue();
+    }
+
+    @Test
+    void forgetsKeysOnceTheirGenerationAgesOut() {
+        for (int i = 0; i < 1_000; i++) {
+            filter.put("key-" + i);
+        }
+
+        now.addAndGet(5 * BUCKET.toMillis());
+
+        long remembered = IntStream.range(0, 1_000).filter(i -> filter.mightContain("key-" + i)).count();
+        assertThat(remembered).isLessThan(50);
+    }
+
+    @Test
+    void startsOverAfterAClockJumpLongerThanTheRing() {
+        filter.put("old");
+
+        now.addAndGet(1_000 * BUCKET.toMillis());
+        filter.put("new");
+
+        assertThat(filter.mightContain("new")).isTrue();
+        assertThat(filter.mightContain("old")).isFalse();
+    }
+}
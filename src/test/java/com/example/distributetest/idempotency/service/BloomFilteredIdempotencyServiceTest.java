@@ -0,0 +1,129 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.filter.TimeBucketedBloomFilter;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import com.example.distributetest.redis.InProcessRedis;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BloomFilteredIdempotencyServiceTest {
+
+    private static final Duration BUCKET = Duration.ofMinutes(1);
+    private static final Duration LEASE = Duration.ofSeconds(30);
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+    private final InMemoryIdempotencyService store =
+            new InMemoryIdempotencyService(1_000, 1 << 20, new SimpleMeterRegistry());
+    private final BloomFilteredIdempotencyService service = new BloomFilteredIdempotencyService(store,
+            new TimeBucketedBloomFilter(5, BUCKET, 10_000, 0.01, now::get), null, null);
+
+    @Test
+    void answersFirstSeenKeysWithoutTheStore() {
+        assertThat(service.get("key-1")).isEmpty();
+        assertThat(service.getOrReserve("key-1", LEASE).acquired()).isTrue();
+
+        assertThat(service.stats().filterNegatives()).isEqualTo(2);
+        assertThat(service.stats().filterPositives()).isZero();
+    }
+
+    @Test
+    void findsReservedAndSavedKeysAcrossGenerationRotations() {
+        assertThat(service.getOrReserve("key-2", LEASE).acquired()).isTrue();
+        assertThat(service.getOrReserve("key-3", LEASE).acquired()).isTrue();
+        service.save("key-3", new byte[]{1}, 200, "application/json", 60);
+
+        now.addAndGet(4 * BUCKET.toMillis());
+
+        IdempotencyReservation duplicate = service.getOrReserve("key-2", LEASE);
+        assertThat(duplicate.acquired()).isFalse();
+        assertThat(duplicate.existing().getStatus()).isEqualTo(IdempotencyStatus.IN_PROGRESS);
+        assertThat(service.get("key-3")).hasValueSatisfying(saved -> assertThat(saved.isCompleted()).isTrue());
+        assertThat(service.stats().falsePositives()).isZero();
+    }
+
+    @Test
+    void catchesKeysTheFilterHasNotHeardOfAtTheStore() {
+        // Completed before a restart, so this filter has never seen it
+        store.save("key-4", new byte[]{1}, 200, "application/json", 60);
+
+        IdempotencyReservation reservation = service.getOrReserve("key-4", LEASE);
+
+        assertThat(reservation.acquired()).isFalse();
+        assertThat(reservation.existing().isCompleted()).isTrue();
+    }
+
+    @Test
+    void takesTheStoresSingleRoundTripOnAMiss() {
+        AtomicInteger reserves = new AtomicInteger();
+        InMemoryIdempotencyService oneRoundTrip =
+                new InMemoryIdempotencyService(1_000, 1 << 20, new SimpleMeterRegistry()) {
+                    @Override
+                    public boolean getOrReserveInOneRoundTrip() {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean reserve(String key, Duration lease) {
+                        reserves.incrementAndGet();
+                        return super.reserve(key, lease);
+                    }
+                };
+        oneRoundTrip.save("key-5", new byte[]{1}, 200, "application/json", 60);
+        BloomFilteredIdempotencyService filtered = new BloomFilteredIdempotencyService(oneRoundTrip,
+                new TimeBucketedBloomFilter(5, BUCKET, 10_000, 0.01, now::get), null, null);
+
+        IdempotencyReservation reservation = filtered.getOrReserve("key-5", LEASE);
+
+        assertThat(reservation.existing().isCompleted()).isTrue();
+        assertThat(filtered.get("key-5")).isPresent();
+        // The default getOrReserve looks up first and never reaches reserve for an existing key
+        assertThat(reserves).hasValue(0);
+    }
+
+    @Test
+    void sharesInsertsWithPeersInBatches() throws Exception {
+        try (InProcessRedis redis = InProcessRedis.start()) {
+            LettuceConnectionFactory connectionFactory =
+                    new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redis.port()));
+            connectionFactory.afterPropertiesSet();
+            connectionFactory.start();
+            RedisMessageListenerContainer listenerContainer = new RedisMessageListenerContainer();
+            listenerContainer.setConnectionFactory(connectionFactory);
+            StringRedisTemplate redisTemplate = new StringRedisTemplate(connectionFactory);
+            BloomFilteredIdempotencyService nodeA = new BloomFilteredIdempotencyService(store,
+                    new TimeBucketedBloomFilter(5, BUCKET, 10_000, 0.01), redisTemplate, listenerContainer);
+            BloomFilteredIdempotencyService nodeB = new BloomFilteredIdempotencyService(store,
+                    new TimeBucketedBloomFilter(5, BUCKET, 10_000, 0.01), redisTemplate, listenerContainer);
+            listenerContainer.afterPropertiesSet();
+            listenerContainer.start();
+            try {
+                for (int i = 0; i < 100; i++) {
+                    assertThat(nodeA.getOrReserve("key-" + i, LEASE).acquired()).isTrue();
+                }
+
+                long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+                while (nodeB.get("key-99").isEmpty() && System.nanoTime() < deadline) {
+                    Thread.sleep(20);
+                }
+                assertThat(IntStream.range(0, 100)).allMatch(i -> nodeB.get("key-" + i).isPresent());
+            } finally {
+                nodeA.close();
+                nodeB.close();
+                listenerContainer.destroy();
+                connectionFactory.destroy();
+            }
+        }
+    }
+}
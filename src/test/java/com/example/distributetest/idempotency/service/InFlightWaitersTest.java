@@ -0,0 +1,101 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InFlightWaitersTest {
+
+    private static final IdempotencyKey IN_PROGRESS = IdempotencyKey.builder()
+            .key("key-1")
+            .status(IdempotencyStatus.IN_PROGRESS)
+            .build();
+    private static final IdempotencyKey COMPLETED = IdempotencyKey.builder()
+            .key("key-1")
+            .status(IdempotencyStatus.COMPLETED)
+            .build();
+
+    private final InFlightWaiters waiters = new InFlightWaiters();
+
+    @Test
+    void leavesNothingBehindWhenTheKeyIsAlreadySettled() {
+        assertThat(waiters.await("key-1", Duration.ofSeconds(5), Optional::empty)).isEmpty();
+        assertThat(waiters.await("key-1", Duration.ofSeconds(5), () -> Optional.of(COMPLETED))).isPresent();
+
+        assertThat(waiters.size()).isZero();
+    }
+
+    @Test
+    void leavesNothingBehindWhenTheOwnerNeverSignals() {
+        assertThat(waiters.await("key-1", Duration.ofMillis(20), () -> Optional.of(IN_PROGRESS))).isEmpty();
+
+        assertThat(waiters.size()).isZero();
+    }
+
+    @Test
+    void wakesEveryWaiterOnSignal() {
+        AtomicReference<IdempotencyKey> stored = new AtomicReference<>(IN_PROGRESS);
+        CompletableFuture<Optional<IdempotencyKey>> first = CompletableFuture.supplyAsync(() ->
+                waiters.await("key-1", Duration.ofSeconds(5), () -> Optional.of(stored.get())));
+        CompletableFuture<Optional<IdempotencyKey>> second = CompletableFuture.supplyAsync(() ->
+                waiters.await("key-1", Duration.ofSeconds(5), () -> Optional.of(stored.get())));
+        awaitParked(1);
+
+        stored.set(COMPLETED);
+        waiters.signal("key-1");
+
+        assertThat(first).succeedsWithin(Duration.ofSeconds(5)).isEqualTo(Optional.of(COMPLETED));
+        assertThat(second).succeedsWithin(Duration.ofSeconds(5)).isEqualTo(Optional.of(COMPLETED));
+        assertThat(waiters.size()).isZero();
+    }
+
+    @Test
+    void keepsTheEntryForWaitersStillParkedAfterAnotherTimesOut() {
+        AtomicReference<IdempotencyKey> stored = new AtomicReference<>(IN_PROGRESS);
+        CompletableFuture<Optional<IdempotencyKey>> patient = CompletableFuture.supplyAsync(() ->
+                waiters.await("key-1", Duration.ofSeconds(5), () -> Optional.of(stored.get())));
+        awaitParked(1);
+
+        assertThat(waiters.await("key-1", Duration.ofMillis(20), () -> Optional.of(stored.get()))).isEmpty();
+        assertThat(waiters.size()).isEqualTo(1);
+
+        stored.set(COMPLETED);
+        waiters.signal("key-1");
+
+        assertThat(patient).succeedsWithin(Duration.ofSeconds(5)).isEqualTo(Optional.of(COMPLETED));
+        assertThat(waiters.size()).isZero();
+    }
+
+    @Test
+    void completesAsyncWaitersWithoutHoldingTheCaller() {
+        AtomicReference<IdempotencyKey> stored = new AtomicReference<>(IN_PROGRESS);
+        CompletableFuture<Optional<IdempotencyKey>> impatient =
+                waiters.awaitAsync("key-1", Duration.ofMillis(20), () -> Optional.of(stored.get()));
+        CompletableFuture<Optional<IdempotencyKey>> patient =
+                waiters.awaitAsync("key-1", Duration.ofSeconds(5), () -> Optional.of(stored.get()));
+
+        assertThat(impatient).succeedsWithin(Duration.ofSeconds(5)).isEqualTo(Optional.empty());
+        assertThat(patient).isNotDone();
+        assertThat(waiters.size()).isEqualTo(1);
+
+        stored.set(COMPLETED);
+        waiters.signal("key-1");
+
+        assertThat(patient).succeedsWithin(Duration.ofSeconds(5)).isEqualTo(Optional.of(COMPLETED));
+        assertThat(waiters.size()).isZero();
+    }
+
+    private void awaitParked(int keys) {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (waiters.size() < keys && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs the store against a real PostgreSQL, by default the one from docker compose; point it elsewhere with
+ * {@code -Dtest.jdbc.url}, {@code -Dtest.jdbc.username} and {@code -Dtest.jdbc.password}. Skipped when no
+ * database answers. Each test gets its own schema, since services with different partition periods cannot
+ * share a table.
+ */
+class JdbcIdempotencyServiceTest {
+
+    private static final String URL = System.getProperty("test.jdbc.url", "jdbc:postgresql://localhost:5432/safeops");
+    private static final String USERNAME = System.getProperty("test.jdbc.username", "safeops");
+    private static final String PASSWORD = System.getProperty("test.jdbc.password", "safeops123");
+    private static final Duration LEASE = Duration.ofSeconds(30);
+
+    private final String schema = "idempotency_test_" + Long.toString(System.nanoTime(), 36);
+    private JdbcTemplate jdbcTemplate;
+    private final List<JdbcIdempotencyService> services = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        try (Connection connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE SCHEMA " + schema);
+        } catch (SQLException e) {
+            assumeTrue(false, "PostgreSQL is not available at " + URL + ": " + e.getMessage());
+        }
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                URL + (URL.contains("?") ? "&" : "?") + "currentSchema=" + schema, USERNAME, PASSWORD);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @AfterEach
+    void tearDown() {
+        services.forEach(JdbcIdempotencyService::close);
+        if (jdbcTemplate != null) {
+            jdbcTemplate.execute("DROP SCHEMA " + schema + " CASCADE");
+        }
+    }
+
+    @Test
+    void reservesOnceAndReplaysTheSavedResponse() {
+        JdbcIdempotencyService service = service(Duration.ofHours(1), Duration.ofHours(2));
+
+        assertThat(service.getOrReserve("key-1", LEASE).acquired()).isTrue();
+        IdempotencyReservation duplicate = service.getOrReserve("key-1", LEASE);
+        assertThat(duplicate.acquired()).isFalse();
+        assertThat(duplicate.existing().getStatus()).isEqualTo(IdempotencyStatus.IN_PROGRESS);
+
+        service.save("key-1", "{\"ok\":true}".getBytes(StandardCharsets.UTF_8), 201, "application/json", 60);
+
+        Optional<IdempotencyKey> saved = service.get("key-1");
+        assertThat(saved).isPresent();
+        assertThat(saved.get().isCompleted()).isTrue();
+        assertThat(saved.get().getStatusCode()).isEqualTo(201);
+        assertThat(new String(saved.get().getBody(), StandardCharsets.UTF_8)).isEqualTo("{\"ok\":true}");
+        IdempotencyReservation replay = service.getOrReserve("key-1", LEASE);
+        assertThat(replay.acquired()).isFalse();
+        assertThat(replay.existing().isCompleted()).isTrue();
+    }
+
+    @Test
+    void replacesAnExpiredReservation() throws Exception {
+        JdbcIdempotencyService service = service(Duration.ofHours(1), Duration.ofHours(2));
+        assertThat(service.getOrReserve("key-2", Duration.ofMillis(50)).acquired()).isTrue();
+
+        Thread.sleep(100);
+
+        assertThat(service.get("key-2")).isEmpty();
+        assertThat(service.getOrReserve("key-2", LEASE).acquired()).isTrue();
+        assertThat(service.getOrReserve("key-2", LEASE).acquired()).isFalse();
+    }
+
+    @Test
+    void findsAndCompletesKeysReservedInAnEarlierBucket() throws Exception {
+        JdbcIdempotencyService service = service(Duration.ofMillis(500), Duration.ofHours(1));
+        assertThat(service.getOrReserve("key-3", LEASE).acquired()).isTrue();
+
+        Thread.sleep(600);
+        service.maintainPartitions();
+
+        assertThat(service.getOrReserve("key-3", LEASE).acquired()).isFalse();
+        service.save("key-3", new byte[]{1}, 200, "application/json", 60);
+        assertThat(service.get("key-3")).hasValueSatisfying(saved -> assertThat(saved.isCompleted()).isTrue());
+        assertThat(jdbcTemplate.queryForObject("SELECT count(*) FROM idempotency_keys WHERE key = 'key-3'",
+                Long.class)).isEqualTo(1);
+    }
+
+    @Test
+    void grantsAConcurrentlyRequestedKeyOnce() throws Exception {
+        JdbcIdempotencyService service = service(Duration.ofHours(1), Duration.ofHours(2));
+        CountDownLatch start = new CountDownLatch(1);
+        List<Callable<IdempotencyReservation>> requests = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            requests.add(() -> {
+                start.await();
+                return service.getOrReserve("key-4", LEASE);
+            });
+        }
+
+        List<IdempotencyReservation> reservations = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(16)) {
+            List<Future<IdempotencyReservation>> futures = requests.stream().map(executor::submit).toList();
+            start.countDown();
+            for (Future<IdempotencyReservation> future : futures) {
+                reservations.add(future.get(10, TimeUnit.SECONDS));
+            }
+        }
+
+        assertThat(reservations).filteredOn(IdempotencyReservation::acquired).hasSize(1);
+        // A loser whose snapshot predates the winner's insert knows only that the key is taken
+        assertThat(reservations).filteredOn(reservation -> !reservation.acquired())
+                .allSatisfy(reservation -> assertThat(reservation.existing() == null
+                        || reservation.existing().getStatus() == IdempotencyStatus.IN_PROGRESS).isTrue());
+    }
+
+    @Test
+    void dropsPartitionsThatCanOnlyHoldExpiredKeys() throws Exception {
+        JdbcIdempotencyService service = service(Duration.ofMillis(200), Duration.ofMillis(200));
+        service.save("key-5", new byte[]{1}, 200, "application/json", 1);
+        List<String> before = partitions();
+        String first = before.get(0);
+
+        Thread.sleep(1_000);
+        service.maintainPartitions();
+
+        List<String> after = partitions();
+        assertThat(after).doesNotContain(first).isNotEmpty();
+        assertThat(service.get("key-5")).isEmpty();
+        service.save("key-6", new byte[]{1}, 200, "application/json", 1);
+        assertThat(service.get("key-6")).isPresent();
+    }
+
+    private JdbcIdempotencyService service(Duration partitionPeriod, Duration maxTtl) {
+        JdbcIdempotencyService service =
+                new JdbcIdempotencyService(jdbcTemplate, partitionPeriod, maxTtl, new SimpleMeterRegistry());
+        services.add(service);
+        return service;
+    }
+
+    private List<String> partitions() {
+        return jdbcTemplate.queryForList("SELECT tablename FROM pg_tables WHERE schemaname = current_schema()"
+                + " AND tablename LIKE 'idempotency\\_keys\\_p%' ORDER BY tablename", String.class);
+    }
+}
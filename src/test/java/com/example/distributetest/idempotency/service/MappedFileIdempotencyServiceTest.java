@@ -0,0 +1,86 @@
+package com.example.distributetest.idempotency.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MappedFileIdempotencyServiceTest {
+
+    private static final byte[] BODY = "{\"status\":\"SUCCESS\"}".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void keepsKeysAcrossRestart() throws Exception {
+        try (MappedFileIdempotencyService service = open()) {
+            service.save("payment-1", BODY, 200, "application/json", 60);
+            service.save("payment-2", BODY, 201, "application/json", 60);
+            service.delete("payment-2");
+        }
+
+        try (MappedFileIdempotencyService service = open()) {
+            assertThat(service.get("payment-1")).hasValueSatisfying(key -> {
+                assertThat(key.getBody()).isEqualTo(BODY);
+                assertThat(key.getStatusCode()).isEqualTo(200);
+            });
+            assertThat(service.get("payment-2")).isEmpty();
+        }
+    }
+
+    @Test
+    void reservesOnlyOnce() throws Exception {
+        try (MappedFileIdempotencyService service = open()) {
+            assertThat(service.reserve("payment-1", Duration.ofSeconds(30))).isTrue();
+            assertThat(service.reserve("payment-1", Duration.ofSeconds(30))).isFalse();
+
+            service.save("payment-1", BODY, 200, "application/json", 60);
+
+            assertThat(service.get("payment-1")).hasValueSatisfying(key -> assertThat(key.isCompleted()).isTrue());
+        }
+    }
+
+    @Test
+    void rollsOverToNewSegments() throws Exception {
+        try (MappedFileIdempotencyService service = open()) {
+            for (int i = 0; i < 500; i++) {
+                service.save("payment-" + i, BODY, 200, "application/json", 60);
+            }
+        }
+
+        try (MappedFileIdempotencyService service = open()) {
+            for (int i = 0; i < 500; i++) {
+                assertThat(service.exists("payment-" + i)).isTrue();
+            }
+        }
+    }
+
+    @Test
+    void recordsStoreMetricsUnderTheFileTag() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        try (MappedFileIdempotencyService service = open(registry)) {
+            service.save("payment-1", BODY, 200, "application/json", 60);
+            service.get("payment-1");
+
+            assertThat(service.storeName()).isEqualTo("file");
+            assertThat(registry.get("idempotency.store.save").tag("store", "file").timer().count()).isEqualTo(1);
+            assertThat(registry.get("idempotency.store.get").tag("store", "file").timer().count()).isEqualTo(1);
+            assertThat(registry.get("idempotency.store.payload").tags("store", "file", "operation", "read")
+                    .summary().totalAmount()).isEqualTo(BODY.length);
+        }
+    }
+
+    private MappedFileIdempotencyService open() throws Exception {
+        return open(new SimpleMeterRegistry());
+    }
+
+    private MappedFileIdempotencyService open(SimpleMeterRegistry registry) throws Exception {
+        return new MappedFileIdempotencyService(directory, 4096, 16, Duration.ofMinutes(1), registry);
+    }
+}
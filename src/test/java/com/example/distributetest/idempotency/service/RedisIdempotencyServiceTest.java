@@ -0,0 +1,199 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.codec.VersionedIdempotencyRecordCodec;
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
+import com.example.distributetest.redis.InProcessRedis;
+import com.example.distributetest.redis.RedisCommitBatch;
+import com.example.distributetest.redis.RedisShardRouter;
+import com.example.distributetest.redis.RedisShards;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs the store against two {@link InProcessRedis} nodes sharded by the client-side ring.
+ */
+class RedisIdempotencyServiceTest {
+
+    private static final Duration LEASE = Duration.ofSeconds(30);
+
+    private InProcessRedis nodeA;
+    private InProcessRedis nodeB;
+    private LettuceConnectionFactory primary;
+    private RedisShards shards;
+    private RedisMessageListenerContainer listenerContainer;
+    private RedisIdempotencyService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        nodeA = InProcessRedis.start();
+        nodeB = InProcessRedis.start();
+        primary = connect(nodeA);
+        Map<String, RedisConnectionFactory> nodes = new LinkedHashMap<>();
+        nodes.put("a", connect(nodeA));
+        nodes.put("b", connect(nodeB));
+        shards = RedisShards.ring(primary, nodes);
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(primary);
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+        service = new RedisIdempotencyService(shards.router(RedisSerializer.byteArray()), listenerContainer,
+                VersionedIdempotencyRecordCodec.of("binary", 1024), new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        listenerContainer.destroy();
+        shards.destroy();
+        primary.destroy();
+        nodeA.close();
+        nodeB.close();
+    }
+
+    @Test
+    void reservesOnceAndReplaysSavedResponse() {
+        assertThat(service.getOrReserve("key-1", LEASE).acquired()).isTrue();
+        IdempotencyReservation duplicate = service.getOrReserve("key-1", LEASE);
+        assertThat(duplicate.acquired()).isFalse();
+        assertThat(duplicate.existing().isCompleted()).isFalse();
+
+        service.save("key-1", "{\"ok\":true}".getBytes(StandardCharsets.UTF_8), 200, "application/json", 60);
+
+        Optional<IdempotencyKey> saved = service.get("key-1");
+        assertThat(saved).isPresent();
+        assertThat(saved.get().isCompleted()).isTrue();
+        assertThat(new String(saved.get().getBody(), StandardCharsets.UTF_8)).isEqualTo("{\"ok\":true}");
+    }
+
+    @Test
+    void spreadsKeysOverBothNodes() {
+        for (int i = 0; i < 200; i++) {
+            service.save("key-" + i, new byte[]{1}, 200, "application/json", 60);
+        }
+
+        assertThat(nodeA.size()).isPositive();
+        assertThat(nodeB.size()).isPositive();
+        assertThat(nodeA.size() + nodeB.size()).isEqualTo(200);
+    }
+
+    @Test
+    void commitsTheHandlersRecordsWithItsResponse() {
+        RedisShardRouter<byte[]> router = shards.router(RedisSerializer.byteArray());
+        assertThat(service.getOrReserve("key-c", LEASE).acquired()).isTrue();
+        Map<String, Boolean> response = Map.of("ok", true);
+
+        try (IdempotencyCommit commit = service.openCommit("key-c", 60)) {
+            RedisCommitBatch.commit(router, List.of(
+                    new RedisCommitBatch.Put("payment:c", bytes("SUCCESS"), Duration.ofHours(1))), 200, response);
+
+            assertThat(commit.committed(200, response)).isTrue();
+            assertThat(commit.committed(200, Map.of("ok", true))).isFalse();
+            assertThat(commit.failed()).isFalse();
+        }
+
+        assertThat(router.forKey("payment:c").opsForValue().get("payment:c")).isEqualTo(bytes("SUCCESS"));
+        assertThat(service.get("key-c")).hasValueSatisfying(saved -> {
+            assertThat(saved.isCompleted()).isTrue();
+            assertThat(saved.getStatusCode()).isEqualTo(200);
+            assertThat(new String(saved.getBody(), StandardCharsets.UTF_8)).isEqualTo("{\"ok\":true}");
+        });
+    }
+
+    @Test
+    void writesRecordsDirectlyWithoutAnOpenCommit() {
+        RedisShardRouter<byte[]> router = shards.router(RedisSerializer.byteArray());
+
+        RedisCommitBatch.commit(router, List.of(
+                new RedisCommitBatch.Put("payment:d", bytes("SUCCESS"), Duration.ofHours(1))), 200, "ignored");
+
+        assertThat(router.forKey("payment:d").opsForValue().get("payment:d")).isEqualTo(bytes("SUCCESS"));
+    }
+
+    @Test
+    void flushesGroupedWritesToTheirOwnShards() {
+        List<RedisCommitBatch.Write> writes = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            writes.add(new RedisCommitBatch.Put("payment:" + i, new byte[]{1}, Duration.ofHours(1)));
+        }
+
+        RedisCommitBatch.flush(shards.router(RedisSerializer.byteArray()), writes);
+
+        assertThat(nodeA.size()).isPositive();
+        assertThat(nodeB.size()).isPositive();
+        assertThat(nodeA.size() + nodeB.size()).isEqualTo(50);
+    }
+
+    @Test
+    void flushesIndexAddsAndDropsMembersBelowTheCutoff() {
+        RedisShardRouter<byte[]> router = shards.router(RedisSerializer.byteArray());
+        String index = "customer-payments:cust-1";
+        RedisCommitBatch.flush(router, List.of(
+                new RedisCommitBatch.IndexAdd(index, bytes("txn-1"), 1_000, 0, Duration.ofHours(1)),
+                new RedisCommitBatch.IndexAdd(index, bytes("txn-2"), 2_000, 0, Duration.ofHours(1))));
+
+        RedisCommitBatch.flush(router, List.of(
+                new RedisCommitBatch.IndexAdd(index, bytes("txn-3"), 3_000, 1_500, Duration.ofHours(2))));
+
+        RedisTemplate<String, byte[]> owner = router.forKey(index);
+        Set<TypedTuple<byte[]>> members = owner.opsForZSet().rangeByScoreWithScores(index, 0, Double.MAX_VALUE);
+        assertThat(members).extracting(member -> new String(member.getValue(), StandardCharsets.UTF_8))
+                .containsExactly("txn-2", "txn-3");
+        assertThat(members).extracting(TypedTuple::getScore).containsExactly(2_000.0, 3_000.0);
+        assertThat(owner.getExpire(index, TimeUnit.MINUTES)).isGreaterThan(60);
+    }
+
+    @Test
+    void wakesDuplicateWhenTheFirstRequestCompletes() throws Exception {
+        service.getOrReserve("key-wait", LEASE);
+        Thread.ofVirtual().start(() -> {
+            sleep(100);
+            service.save("key-wait", new byte[]{1}, 201, "application/json", 60);
+        });
+
+        Optional<IdempotencyKey> completed = service.awaitCompletion("key-wait", Duration.ofSeconds(5));
+
+        assertThat(completed).isPresent();
+        assertThat(completed.get().getStatusCode()).isEqualTo(201);
+    }
+
+    private static LettuceConnectionFactory connect(InProcessRedis node) {
+        LettuceConnectionFactory factory =
+                new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", node.port()));
+        factory.afterPropertiesSet();
+        factory.start();
+        return factory;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.distributetest.idempotency.service;
+
+import com.example.distributetest.idempotency.model.IdempotencyKey;
+import com.example.distributetest.idempotency.model.IdempotencyReservation;
+import com.example.distributetest.idempotency.model.IdempotencyStatus;
+import com.example.distributetest.redis.InProcessRedis;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Two nodes, each with its own near-cache and subscription, over one shared store; invalidations travel over
+ * an {@link InProcessRedis}.
+ */
+class TieredIdempotencyServiceTest {
+
+    private static final Duration LEASE = Duration.ofSeconds(30);
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+    private InProcessRedis redis;
+    private InMemoryIdempotencyService remote;
+    private TieredIdempotencyService nodeA;
+    private TieredIdempotencyService nodeB;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        redis = InProcessRedis.start();
+        remote = new InMemoryIdempotencyService(1_000, 1 << 20, new SimpleMeterRegistry());
+        nodeA = node();
+        nodeB = node();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (AutoCloseable resource : resources.reversed()) {
+            resource.close();
+        }
+        redis.close();
+    }
+
+    @Test
+    void servesCompletedKeysFromTheNearCache() {
+        nodeA.save("key-1", new byte[]{1}, 200, "application/json", 60);
+        assertThat(nodeB.get("key-1")).isPresent();
+
+        // Gone from the shared store, but both nodes still hold their local copy
+        remote.delete("key-1");
+
+        assertThat(nodeA.get("key-1")).isPresent();
+        assertThat(nodeB.getOrReserve("key-1", LEASE).existing().isCompleted()).isTrue();
+        assertThat(nodeB.stats().hits()).isPositive();
+    }
+
+    @Test
+    void deleteOnOneNodeDropsTheCopyOnTheOther() throws Exception {
+        nodeA.save("key-2", new byte[]{1}, 200, "application/json", 60);
+        assertThat(nodeB.get("key-2")).isPresent();
+
+        nodeA.delete("key-2");
+
+        Optional<IdempotencyKey> seen = nodeB.get("key-2");
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (seen.isPresent() && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+            seen = nodeB.get("key-2");
+        }
+        assertThat(seen).isEmpty();
+        assertThat(nodeB.getOrReserve("key-2", LEASE).acquired()).isTrue();
+    }
+
+    @Test
+    void neverCachesInFlightReservations() {
+        assertThat(nodeA.getOrReserve("key-3", LEASE).acquired()).isTrue();
+        IdempotencyReservation duplicate = nodeB.getOrReserve("key-3", LEASE);
+        assertThat(duplicate.existing().getStatus()).isEqualTo(IdempotencyStatus.IN_PROGRESS);
+
+        nodeA.save("key-3", new byte[]{1}, 201, "application/json", 60);
+
+        IdempotencyReservation replay = nodeB.getOrReserve("key-3", LEASE);
+        assertThat(replay.existing().isCompleted()).isTrue();
+        assertThat(replay.existing().getStatusCode()).isEqualTo(201);
+    }
+
+    private TieredIdempotencyService node() throws Exception {
+        LettuceConnectionFactory connectionFactory =
+                new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redis.port()));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        resources.add(connectionFactory::destroy);
+        RedisMessageListenerContainer listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        TieredIdempotencyService node = new TieredIdempotencyService(remote,
+                new StringRedisTemplate(connectionFactory), listenerContainer, 1_000, 1 << 20, Duration.ofMinutes(1));
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+        resources.add(listenerContainer::destroy);
+        return node;
+    }
+}
@@ -0,0 +1,390 @@
+package com.example.distributetest.load;
+
+import com.example.distributetest.DistributetestApplication;
+import com.example.distributetest.codec.JsonCodec;
+import com.example.distributetest.dto.PaymentResponse;
+import com.example.distributetest.redis.InProcessRedis;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reproduces client retry storms against a locally started application backed by an {@link InProcessRedis}.
+ * Requests are issued open-loop at a fixed rate from virtual threads; a configurable share of them reuse an
+ * Idempotency-Key sent shortly before, the way a client retries after a timeout. Latency is measured from
+ * each request's scheduled start, so queueing behind a saturated server is not hidden.
+ * <p>
+ * Comparing {@code virtual-threads=false} and {@code true} at the same rate shows the throughput, peak thread
+ * count and heap each threading mode needs for the blocking gateway calls.
+ * <p>
+ * Run with {@code ./gradlew loadTest -Pload.rate=200 -Pload.duplicate-ratio=0.3}; PostgreSQL from
+ * docker-compose must be up because the application context needs it. Options:
+ * <pre>
+ * rate=100              requests per second
+ * duration=30s          length of the run
+ * concurrency=256       requests in flight at most; later ones wait and count toward latency
+ * duplicate-ratio=0.2   share of requests that repeat a recent Idempotency-Key
+ * refund-ratio=0.2      share of requests that refund a recently paid transaction via /api/payments/refund
+ * storage=redis         idempotency.storage of the application under test
+ * virtual-threads=false run the application with spring.threads.virtual.enabled
+ * report=build/results/load/report.json
+ * </pre>
+ */
+public final class PaymentLoadGenerator {
+
+    private static final int RECENT_KEYS = 64;
+    private static final int RECENT_PAYMENTS = 256;
+
+    private final Options options;
+    private final HttpClient client;
+    private final URI paymentsUri;
+    private final URI refundsUri;
+    private final String[] recentKeys = new String[RECENT_KEYS];
+    private final AtomicInteger recentCursor = new AtomicInteger();
+    private final String[] recentPayments = new String[RECENT_PAYMENTS];
+    private final AtomicInteger paymentCursor = new AtomicInteger();
+    private final Map<String, Boolean> uniqueKeys = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> statusCounts = new ConcurrentHashMap<>();
+    private final AtomicLong failures = new AtomicLong();
+
+    private PaymentLoadGenerator(Options options, int port) {
+        this.options = options;
+        this.client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        this.paymentsUri = URI.create("http://127.0.0.1:" + port + "/api/payments");
+        this.refundsUri = URI.create("http://127.0.0.1:" + port + "/api/payments/refund");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        try (InProcessRedis redis = InProcessRedis.start()) {
+            ConfigurableApplicationContext context = startApplication(redis, options);
+            try {
+                CircuitBreakerRegistry circuitBreakers = context.getBean(CircuitBreakerRegistry.class);
+                List<String> transitions = new ArrayList<>();
+                circuitBreakers.getAllCircuitBreakers().forEach(circuitBreaker -> circuitBreaker.getEventPublisher()
+                        .onStateTransition(event -> {
+                            synchronized (transitions) {
+                                transitions.add(event.getCircuitBreakerName() + " " + event.getStateTransition());
+                            }
+                        }));
+                int port = Integer.parseInt(context.getEnvironment().getRequiredProperty("local.server.port"));
+
+                PaymentLoadGenerator generator = new PaymentLoadGenerator(options, port);
+                ResourceSampler sampler = ResourceSampler.start();
+                long started = System.nanoTime();
+                long[] latencies = generator.run();
+                long elapsed = System.nanoTime() - started;
+                Resources resources = sampler.stop();
+
+                double gatewayCalls = context.getBean(MeterRegistry.class)
+                        .find("payment.gateway.calls").counters().stream()
+                        .mapToDouble(counter -> counter.count())
+                        .sum();
+                Report report = new Report(options, latencies, elapsed, generator.uniqueKeys.size(), gatewayCalls,
+                        generator.statusCounts, generator.failures.get(), transitions, redis.commandCount(), resources);
+                System.out.println(report.text());
+                Path reportFile = Path.of(options.report());
+                Files.createDirectories(reportFile.toAbsolutePath().getParent());
+                Files.writeString(reportFile, report.json());
+            } finally {
+                context.close();
+            }
+        }
+    }
+
+    private static ConfigurableApplicationContext startApplication(InProcessRedis redis, Options options) {
+        SpringApplication application = new SpringApplication(DistributetestApplication.class);
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("server.port", 0);
+        properties.put("spring.data.redis.host", "127.0.0.1");
+        properties.put("spring.data.redis.port", redis.port());
+        properties.put("idempotency.storage", options.storage());
+        properties.put("spring.threads.virtual.enabled", options.virtualThreads());
+        properties.put("spring.jpa.show-sql", false);
+        properties.put("logging.level.com.example.distributetest", "WARN");
+        properties.put("logging.level.io.github.resilience4j", "WARN");
+        application.setDefaultProperties(properties);
+        return application.run();
+    }
+
+    /**
+     * Issues every request at its scheduled time and returns the latencies in nanoseconds, -1 for requests
+     * that failed at the transport level.
+     */
+    private long[] run() throws InterruptedException {
+        int total = (int) (options.rate() * options.duration().toNanos() / TimeUnit.SECONDS.toNanos(1));
+        long[] latencies = new long[total];
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.rate();
+        Semaphore inFlight = new Semaphore(options.concurrency());
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < total; i++) {
+                long scheduled = start + i * intervalNanos;
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                int index = i;
+                executor.execute(() -> {
+                    try {
+                        inFlight.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        latencies[index] = send(scheduled);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        return latencies;
+    }
+
+    private long send(long scheduled) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String key = nextKey(random);
+        // Refunds go to payments this run made, so the ledger charges them instead of answering 404
+        String paid = random.nextDouble() < options.refundRatio() ? recentPayments[random.nextInt(RECENT_PAYMENTS)]
+                : null;
+        boolean refund = paid != null;
+        String body = refund
+                ? "{\"transactionId\":\"" + paid + "\",\"amount\":10000,\"reason\":\"load\"}"
+                : "{\"amount\":50000,\"currency\":\"KRW\",\"customerId\":\"cust-" + random.nextInt(1000) + "\"}";
+        HttpRequest request = HttpRequest.newBuilder(refund ? refundsUri : paymentsUri)
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .header("Idempotency-Key", key)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            long latency = System.nanoTime() - scheduled;
+            statusCounts.computeIfAbsent(response.statusCode(), status -> new AtomicLong()).incrementAndGet();
+            if (!refund && response.statusCode() == 200) {
+                rememberPayment(response.body());
+            }
+            return latency;
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+            return -1;
+        }
+    }
+
+    /**
+     * Keeps the transaction id of a settled payment for later refunds; queued and failed payments are skipped.
+     */
+    private void rememberPayment(String body) {
+        try {
+            PaymentResponse payment = JsonCodec.shared().paymentReader().readValue(body);
+            if ("SUCCESS".equals(payment.getStatus()) && payment.getTransactionId() != null) {
+                recentPayments[Math.floorMod(paymentCursor.getAndIncrement(), RECENT_PAYMENTS)] =
+                        payment.getTransactionId();
+            }
+        } catch (IOException e) {
+            // not a payment body; nothing to refund later
+        }
+    }
+
+    /**
+     * A recent key with probability duplicate-ratio, otherwise a fresh one that becomes recent.
+     */
+    private String nextKey(ThreadLocalRandom random) {
+        if (random.nextDouble() < options.duplicateRatio()) {
+            String recent = recentKeys[random.nextInt(RECENT_KEYS)];
+            if (recent != null) {
+                return recent;
+            }
+        }
+        String key = UUID.randomUUID().toString();
+        uniqueKeys.put(key, Boolean.TRUE);
+        recentKeys[Math.floorMod(recentCursor.getAndIncrement(), RECENT_KEYS)] = key;
+        return key;
+    }
+
+    record Options(int rate, Duration duration, int concurrency, double duplicateRatio, double refundRatio,
+                   String storage, boolean virtualThreads, String report) {
+
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (separator > 0) {
+                    values.put(arg.substring(0, separator).replaceFirst("^--", ""), arg.substring(separator + 1));
+                }
+            }
+            return new Options(
+                    Integer.parseInt(values.getOrDefault("rate", "100")),
+                    parseDuration(values.getOrDefault("duration", "30s")),
+                    Integer.parseInt(values.getOrDefault("concurrency", "256")),
+                    Double.parseDouble(values.getOrDefault("duplicate-ratio", "0.2")),
+                    Double.parseDouble(values.getOrDefault("refund-ratio", "0.2")),
+                    values.getOrDefault("storage", "redis"),
+                    Boolean.parseBoolean(values.getOrDefault("virtual-threads", "false")),
+                    values.getOrDefault("report", "build/results/load/report.json"));
+        }
+
+        private static Duration parseDuration(String value) {
+            return Duration.parse("PT" + value.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    record Report(Options options, long[] latencies, long elapsedNanos, int uniqueKeys, double gatewayCalls,
+                  Map<Integer, AtomicLong> statusCounts, long failures, List<String> transitions,
+                  long redisCommands, Resources resources) {
+
+        String text() {
+            long[] sorted = completed();
+            return String.format(Locale.ROOT, """
+                            requests           %d in %.1fs (%.1f req/s, target %d)
+                            latency            p50 %.1fms  p99 %.1fms  p999 %.1fms  max %.1fms
+                            status codes       %s, transport failures %d
+                            unique keys        %d
+                            gateway calls      %.0f (%.3f per unique key)
+                            redis commands     %d (%.2f per request)
+                            threads            %s, peak %d platform threads
+                            heap               peak %.1f MiB used, %.1f MiB committed
+                            breaker changes    %s""",
+                    latencies.length, seconds(), latencies.length / seconds(), options.rate(),
+                    millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)),
+                    millis(percentile(sorted, 0.999)), millis(sorted.length > 0 ? sorted[sorted.length - 1] : 0),
+                    statusCounts, failures,
+                    uniqueKeys,
+                    gatewayCalls, gatewayCalls / Math.max(1, uniqueKeys),
+                    redisCommands, (double) redisCommands / Math.max(1, latencies.length),
+                    options.virtualThreads() ? "virtual" : "platform", resources.peakThreads(),
+                    mebibytes(resources.peakHeapUsed()), mebibytes(resources.peakHeapCommitted()),
+                    transitions.isEmpty() ? "none" : transitions);
+        }
+
+        String json() {
+            long[] sorted = completed();
+            StringBuilder statuses = new StringBuilder();
+            statusCounts.forEach((status, count) -> statuses.append(statuses.isEmpty() ? "" : ",")
+                    .append('"').append(status).append("\":").append(count.get()));
+            StringBuilder breaker = new StringBuilder();
+            transitions.forEach(transition -> breaker.append(breaker.isEmpty() ? "" : ",")
+                    .append('"').append(transition).append('"'));
+            return String.format(Locale.ROOT, """
+                            {"rate":%d,"durationSeconds":%.1f,"concurrency":%d,"duplicateRatio":%.3f,\
+                            "refundRatio":%.3f,"storage":"%s","virtualThreads":%b,"requests":%d,"throughput":%.2f,\
+                            "latencyMillis":{"p50":%.3f,"p99":%.3f,"p999":%.3f,"max":%.3f},\
+                            "statusCodes":{%s},"transportFailures":%d,"uniqueKeys":%d,"gatewayCalls":%.0f,\
+                            "gatewayCallsPerUniqueKey":%.4f,"redisCommands":%d,"peakThreads":%d,\
+                            "peakHeapUsedBytes":%d,"peakHeapCommittedBytes":%d,"circuitBreakerTransitions":[%s]}
+                            """,
+                    options.rate(), options.duration().toMillis() / 1000.0, options.concurrency(),
+                    options.duplicateRatio(), options.refundRatio(), options.storage(), options.virtualThreads(),
+                    latencies.length, latencies.length / seconds(),
+                    millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)),
+                    millis(percentile(sorted, 0.999)), millis(sorted.length > 0 ? sorted[sorted.length - 1] : 0),
+                    statuses, failures, uniqueKeys, gatewayCalls, gatewayCalls / Math.max(1, uniqueKeys),
+                    redisCommands, resources.peakThreads(), resources.peakHeapUsed(), resources.peakHeapCommitted(),
+                    breaker);
+        }
+
+        private long[] completed() {
+            long[] sorted = Arrays.stream(latencies).filter(latency -> latency > 0).toArray();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private double seconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        private static long percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+
+        private static double mebibytes(long bytes) {
+            return bytes / (1024.0 * 1024.0);
+        }
+    }
+
+    record Resources(int peakThreads, long peakHeapUsed, long peakHeapCommitted) {
+    }
+
+    /**
+     * Samples heap usage every 100 ms while the run lasts; the JVM tracks the peak thread count itself.
+     */
+    private static final class ResourceSampler {
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final AtomicLong peakUsed = new AtomicLong();
+        private final AtomicLong peakCommitted = new AtomicLong();
+        private volatile boolean running = true;
+        private Thread thread;
+
+        static ResourceSampler start() {
+            ResourceSampler sampler = new ResourceSampler();
+            sampler.threads.resetPeakThreadCount();
+            sampler.thread = Thread.ofPlatform().daemon().name("load-resource-sampler").start(sampler::sample);
+            return sampler;
+        }
+
+        private void sample() {
+            while (running) {
+                peakUsed.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                peakCommitted.accumulateAndGet(memory.getHeapMemoryUsage().getCommitted(), Math::max);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        Resources stop() throws InterruptedException {
+            running = false;
+            thread.interrupt();
+            thread.join();
+            return new Resources(threads.getPeakThreadCount(), peakUsed.get(), peakCommitted.get());
+        }
+    }
+}
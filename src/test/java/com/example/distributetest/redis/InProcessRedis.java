@@ -0,0 +1,1031 @@
+package com.example.distributetest.redis;
+
+import com.example.distributetest.codec.JsonCodec;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal RESP2 server that stands in for a Redis node in tests and benchmarks. It covers the commands the
+ * Redis-backed services send: strings, hashes, sets and sorted sets with expiry, streams with consumer groups,
+ * SCAN, MULTI/EXEC, pub/sub and the Lua scripts registered with {@link #script}, which are emulated in Java rather
+ * than interpreted. Commands run one at a time, as on a real node, under a lock rather than a monitor so that
+ * connection threads, which are virtual, never pin their carrier while a publish writes to a subscriber's socket.
+ */
+public final class InProcessRedis implements AutoCloseable {
+
+    private static final Object OK = new Simple("OK");
+    private static final Object QUEUED = new Simple("QUEUED");
+
+    /**
+     * The idempotency store's get-or-reserve script: GET, or SET ... PX when the key is absent.
+     */
+    private static final String GET_OR_RESERVE = "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])";
+    /**
+     * The refund ledger's scripts: charge a refund, give one back, and read a payment with its ledger.
+     */
+    private static final String LEDGER_DEBIT = "redis.call('SADD', KEYS[3], ARGV[1])";
+    private static final String LEDGER_RELEASE = "redis.call('SREM', KEYS[2], ARGV[1])";
+    private static final String LEDGER_VIEW = "redis.call('SMEMBERS', KEYS[3])";
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Entry> data = new HashMap<>();
+    private final Map<String, Set<Connection>> subscribers = new ConcurrentHashMap<>();
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+    private final Map<String, String> scriptsBySha = new ConcurrentHashMap<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long commandCount;
+
+    private InProcessRedis() throws IOException {
+        this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        script(GET_OR_RESERVE, call -> {
+            Object existing = call.get(call.key(0));
+            if (existing == null) {
+                call.set(call.key(0), call.arg(0), Long.parseLong(call.argString(1)));
+            }
+            return existing;
+        });
+        script(LEDGER_DEBIT, InProcessRedis::debit);
+        script(LEDGER_RELEASE, call -> {
+            if (Long.valueOf(1).equals(call.call("SREM", call.key(1), call.arg(0)))) {
+                return call.call("HINCRBY", call.key(0), "remaining", call.arg(1));
+            }
+            return null;
+        });
+        script(LEDGER_VIEW, call -> {
+            byte[] payment = call.get(call.key(0));
+            if (payment == null) {
+                return List.of();
+            }
+            return Arrays.asList(payment, call.call("HGET", call.key(1), "remaining"),
+                    call.call("SMEMBERS", call.key(2)));
+        });
+        Thread.ofPlatform().daemon().name("in-process-redis-" + port()).start(this::acceptLoop);
+    }
+
+    public static InProcessRedis start() throws IOException {
+        return new InProcessRedis();
+    }
+
+    private static Object debit(ScriptCall call) {
+        byte[] current = (byte[]) call.call("HGET", call.key(1), "remaining");
+        long remaining;
+        if (current != null) {
+            remaining = Long.parseLong(string(current));
+        } else {
+            byte[] payment = call.get(call.key(0));
+            if (payment == null) {
+                return List.of(-1L, 0L);
+            }
+            JsonNode record;
+            try {
+                record = JsonCodec.shared().mapper().readTree(payment);
+            } catch (IOException e) {
+                return new Error("ERR cjson.decode: " + e.getMessage());
+            }
+            if (!"SUCCESS".equals(record.path("status").asText()) || !record.path("amount").isNumber()) {
+                return List.of(-2L, 0L);
+            }
+            remaining = (long) Math.floor(record.get("amount").asDouble() * Double.parseDouble(call.argString(2))
+                    + 0.5);
+        }
+        long amount = Long.parseLong(call.argString(1));
+        if (amount > remaining) {
+            return List.of(-3L, remaining);
+        }
+        remaining -= amount;
+        call.call("HSET", call.key(1), "remaining", Long.toString(remaining));
+        call.call("SADD", call.key(2), call.arg(0));
+        long ttl = (Long) call.call("PTTL", call.key(0));
+        if (ttl > 0) {
+            call.call("PEXPIRE", call.key(1), ttl);
+            call.call("PEXPIRE", call.key(2), ttl);
+        }
+        return List.of(0L, remaining);
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Emulates EVAL/EVALSHA for any script whose source contains the fragment.
+     */
+    public void script(String sourceFragment, Script script) {
+        scripts.put(sourceFragment, script);
+    }
+
+    public long commandCount() {
+        return commandCount;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            purgeExpired();
+            return data.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void flushAll() {
+        lock.lock();
+        try {
+            data.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.forEach(Connection::close);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Connection connection = new Connection(serverSocket.accept());
+                connections.add(connection);
+                Thread.ofVirtual().start(connection::serve);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private Object execute(List<byte[]> command) {
+        lock.lock();
+        try {
+            commandCount++;
+            return dispatch(command);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object dispatch(List<byte[]> command) {
+        String name = string(command.get(0)).toUpperCase();
+        return switch (name) {
+            case "PING" -> new Simple("PONG");
+            case "SELECT", "AUTH", "CLIENT", "READONLY" -> OK;
+            case "HELLO" -> new Error("ERR unknown command 'HELLO'");
+            case "GET" -> get(string(command.get(1)));
+            case "SET" -> set(command);
+            case "EXISTS" -> (long) command.subList(1, command.size()).stream()
+                    .filter(key -> get(string(key)) != null).count();
+            case "DEL" -> (long) command.subList(1, command.size()).stream()
+                    .filter(key -> data.remove(string(key)) != null).count();
+            case "SCAN" -> scan(command);
+            case "MGET" -> command.subList(1, command.size()).stream().map(key -> get(string(key))).toList();
+            case "PTTL" -> pttl(string(command.get(1)));
+            case "PEXPIRE" -> pexpire(string(command.get(1)), Long.parseLong(string(command.get(2))));
+            case "HGET" -> {
+                Map<String, byte[]> hash = hash(string(command.get(1)), false);
+                yield hash != null ? hash.get(string(command.get(2))) : null;
+            }
+            case "HSET" -> hset(command);
+            case "HINCRBY" -> hincrBy(string(command.get(1)), string(command.get(2)),
+                    Long.parseLong(string(command.get(3))));
+            case "SADD" -> {
+                Set<String> members = members(string(command.get(1)), true);
+                yield (long) command.subList(2, command.size()).stream()
+                        .filter(member -> members.add(string(member))).count();
+            }
+            case "SREM" -> srem(command);
+            case "SMEMBERS" -> {
+                Set<String> members = members(string(command.get(1)), false);
+                yield members != null
+                        ? members.stream().map(member -> member.getBytes(StandardCharsets.ISO_8859_1)).toList()
+                        : List.of();
+            }
+            case "ZADD" -> zadd(command);
+            case "ZCARD" -> {
+                Map<String, Double> zset = zset(string(command.get(1)), false);
+                yield zset != null ? (long) zset.size() : 0L;
+            }
+            case "ZRANGEBYSCORE" -> zrangeByScore(command);
+            case "ZREMRANGEBYSCORE" -> zremRangeByScore(command);
+            case "XADD" -> xadd(command);
+            case "XLEN" -> {
+                Stream stream = stream(string(command.get(1)), false);
+                yield stream != null ? (long) stream.entries.size() : 0L;
+            }
+            case "XDEL" -> {
+                Stream stream = stream(string(command.get(1)), false);
+                yield stream != null ? (long) command.subList(2, command.size()).stream()
+                        .filter(id -> stream.entries.remove(StreamId.parse(string(id))) != null).count() : 0L;
+            }
+            case "XGROUP" -> xgroup(command);
+            case "XREADGROUP" -> xreadgroup(command);
+            case "XACK" -> {
+                Group group = group(string(command.get(1)), string(command.get(2)));
+                yield group != null ? (long) command.subList(3, command.size()).stream()
+                        .filter(id -> group.pending.remove(StreamId.parse(string(id))) != null).count() : 0L;
+            }
+            case "XPENDING" -> xpending(command);
+            case "XCLAIM" -> xclaim(command);
+            case "PUBLISH" -> publish(string(command.get(1)), command.get(2));
+            case "EVAL" -> eval(string(command.get(1)), command);
+            case "EVALSHA" -> {
+                String source = scriptsBySha.get(string(command.get(1)).toLowerCase());
+                yield source != null ? eval(source, command) : new Error("NOSCRIPT No matching script.");
+            }
+            case "FLUSHALL", "FLUSHDB" -> {
+                data.clear();
+                yield OK;
+            }
+            default -> new Error("ERR unknown command '" + name + "'");
+        };
+    }
+
+    private Object set(List<byte[]> command) {
+        String key = string(command.get(1));
+        byte[] value = command.get(2);
+        long ttlMillis = -1;
+        boolean nx = false;
+        boolean xx = false;
+        boolean keepTtl = false;
+        boolean returnOld = false;
+        for (int i = 3; i < command.size(); i++) {
+            switch (string(command.get(i)).toUpperCase()) {
+                case "NX" -> nx = true;
+                case "XX" -> xx = true;
+                case "KEEPTTL" -> keepTtl = true;
+                case "GET" -> returnOld = true;
+                case "PX" -> ttlMillis = Long.parseLong(string(command.get(++i)));
+                case "EX" -> ttlMillis = Long.parseLong(string(command.get(++i))) * 1000;
+                default -> {
+                    return new Error("ERR syntax error");
+                }
+            }
+        }
+        byte[] old = get(key);
+        if ((nx && old != null) || (xx && old == null)) {
+            return returnOld ? old : null;
+        }
+        if (keepTtl && old != null) {
+            data.put(key, new Entry(value, data.get(key).expiresAt()));
+        } else {
+            put(key, value, ttlMillis);
+        }
+        return returnOld ? old : OK;
+    }
+
+    private byte[] get(String key) {
+        Entry entry = entry(key);
+        return entry != null && entry.value() instanceof byte[] value ? value : null;
+    }
+
+    private Entry entry(String key) {
+        Entry entry = data.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expired(System.currentTimeMillis())) {
+            data.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private void put(String key, byte[] value, long ttlMillis) {
+        data.put(key, new Entry(value, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE));
+    }
+
+    /**
+     * Walks the keyspace in key order, with the number of keys already visited as the cursor. Keys added or
+     * removed during the walk may be missed or returned twice, which SCAN allows as well.
+     */
+    private Object scan(List<byte[]> command) {
+        int cursor = Integer.parseInt(string(command.get(1)));
+        Pattern match = null;
+        int count = 10;
+        for (int i = 2; i < command.size(); i++) {
+            switch (string(command.get(i)).toUpperCase()) {
+                case "MATCH" -> match = glob(string(command.get(++i)));
+                case "COUNT" -> count = Integer.parseInt(string(command.get(++i)));
+                default -> {
+                    return new Error("ERR syntax error");
+                }
+            }
+        }
+        purgeExpired();
+        List<String> keys = data.keySet().stream().sorted().toList();
+        int end = Math.min(keys.size(), cursor + count);
+        Pattern pattern = match;
+        List<byte[]> found = keys.subList(Math.min(cursor, end), end).stream()
+                .filter(key -> pattern == null || pattern.matcher(key).matches())
+                .map(key -> key.getBytes(StandardCharsets.ISO_8859_1))
+                .toList();
+        return List.of(bytes(end == keys.size() ? "0" : Integer.toString(end)), found);
+    }
+
+    /**
+     * The {@code *} and {@code ?} wildcards of a MATCH pattern; character classes are not needed by the services.
+     */
+    private static Pattern glob(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            regex.append(switch (c) {
+                case '*' -> ".*";
+                case '?' -> ".";
+                default -> Pattern.quote(String.valueOf(c));
+            });
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private long pttl(String key) {
+        Entry entry = entry(key);
+        if (entry == null) {
+            return -2;
+        }
+        return entry.expiresAt() == Long.MAX_VALUE ? -1 : entry.expiresAt() - System.currentTimeMillis();
+    }
+
+    private long pexpire(String key, long ttlMillis) {
+        Entry entry = entry(key);
+        if (entry == null) {
+            return 0;
+        }
+        data.put(key, new Entry(entry.value(), System.currentTimeMillis() + ttlMillis));
+        return 1;
+    }
+
+    /**
+     * The value of a hash, set or sorted set key, created empty when asked for; null when absent and not created.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T collection(String key, boolean create, Supplier<T> empty) {
+        Entry entry = entry(key);
+        if (entry == null) {
+            if (!create) {
+                return null;
+            }
+            T value = empty.get();
+            data.put(key, new Entry(value, Long.MAX_VALUE));
+            return value;
+        }
+        return (T) entry.value();
+    }
+
+    private Map<String, byte[]> hash(String key, boolean create) {
+        return collection(key, create, HashMap::new);
+    }
+
+    private Set<String> members(String key, boolean create) {
+        return collection(key, create, HashSet::new);
+    }
+
+    private Map<String, Double> zset(String key, boolean create) {
+        return collection(key, create, HashMap::new);
+    }
+
+    private Stream stream(String key, boolean create) {
+        return collection(key, create, Stream::new);
+    }
+
+    private Group group(String key, String name) {
+        Stream stream = stream(key, false);
+        return stream != null ? stream.groups.get(name) : null;
+    }
+
+    private Object xadd(List<byte[]> command) {
+        // Auto-generated or explicit ids only; MAXLEN/MINID trimming is not needed by the services
+        Stream stream = stream(string(command.get(1)), true);
+        String requested = string(command.get(2));
+        StreamId id;
+        if (requested.equals("*")) {
+            long now = System.currentTimeMillis();
+            id = now > stream.lastId.millis() ? new StreamId(now, 0)
+                    : new StreamId(stream.lastId.millis(), stream.lastId.sequence() + 1);
+        } else {
+            id = StreamId.parse(requested);
+            if (id.compareTo(stream.lastId) <= 0) {
+                return new Error("ERR The ID specified in XADD is equal or smaller than the target stream top item");
+            }
+        }
+        stream.entries.put(id, List.copyOf(command.subList(3, command.size())));
+        stream.lastId = id;
+        return bytes(id.toString());
+    }
+
+    private Object xgroup(List<byte[]> command) {
+        if (!string(command.get(1)).equalsIgnoreCase("CREATE")) {
+            return new Error("ERR only XGROUP CREATE is supported by the in-process stand-in");
+        }
+        boolean mkStream = command.size() > 5 && string(command.get(5)).equalsIgnoreCase("MKSTREAM");
+        Stream stream = stream(string(command.get(2)), mkStream);
+        if (stream == null) {
+            return new Error("ERR The XGROUP subcommand requires the key to exist");
+        }
+        String name = string(command.get(3));
+        if (stream.groups.containsKey(name)) {
+            return new Error("BUSYGROUP Consumer Group name already exists");
+        }
+        String start = string(command.get(4));
+        stream.groups.put(name, new Group(start.equals("$") ? stream.lastId : StreamId.parse(start)));
+        return OK;
+    }
+
+    /**
+     * New entries only ({@code >}); returns at once instead of honouring BLOCK when there are none.
+     */
+    private Object xreadgroup(List<byte[]> command) {
+        String groupName = string(command.get(2));
+        String consumer = string(command.get(3));
+        long count = Long.MAX_VALUE;
+        int streams = -1;
+        for (int i = 4; i < command.size() && streams < 0; i++) {
+            switch (string(command.get(i)).toUpperCase()) {
+                case "COUNT" -> count = Long.parseLong(string(command.get(++i)));
+                case "BLOCK" -> i++;
+                case "STREAMS" -> streams = i + 1;
+                default -> {
+                    return new Error("ERR syntax error");
+                }
+            }
+        }
+        if (streams < 0 || command.size() != streams + 2 || !string(command.get(streams + 1)).equals(">")) {
+            return new Error("ERR only XREADGROUP ... STREAMS key > is supported by the in-process stand-in");
+        }
+        String key = string(command.get(streams));
+        Group group = group(key, groupName);
+        if (group == null) {
+            return new Error("NOGROUP No such key '" + key + "' or consumer group '" + groupName + "'");
+        }
+        List<Object> entries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<StreamId, List<byte[]>> entry : stream(key, false).entries.tailMap(group.lastDelivered, false)
+                .entrySet()) {
+            if (entries.size() == count) {
+                break;
+            }
+            group.lastDelivered = entry.getKey();
+            group.pending.put(entry.getKey(), new Delivery(consumer, now, 1));
+            entries.add(List.of(bytes(entry.getKey().toString()), entry.getValue()));
+        }
+        return entries.isEmpty() ? List.of() : List.of(List.of(bytes(key), entries));
+    }
+
+    /**
+     * The extended form, {@code XPENDING key group start end count}, over the whole pending list.
+     */
+    private Object xpending(List<byte[]> command) {
+        Group group = group(string(command.get(1)), string(command.get(2)));
+        if (command.size() < 6) {
+            return new Error("ERR only the extended XPENDING form is supported by the in-process stand-in");
+        }
+        if (group == null) {
+            return List.of();
+        }
+        long now = System.currentTimeMillis();
+        return group.pending.entrySet().stream()
+                .limit(Long.parseLong(string(command.get(5))))
+                .map(pending -> List.of(bytes(pending.getKey().toString()), bytes(pending.getValue().consumer()),
+                        now - pending.getValue().deliveredAt(), pending.getValue().count()))
+                .toList();
+    }
+
+    /**
+     * Takes over pending entries idle for at least min-idle-time, counting a delivery for each; XCLAIM's options
+     * are not needed by the services.
+     */
+    private Object xclaim(List<byte[]> command) {
+        String key = string(command.get(1));
+        Group group = group(key, string(command.get(2)));
+        if (group == null) {
+            return new Error("NOGROUP No such key '" + key + "' or consumer group");
+        }
+        String consumer = string(command.get(3));
+        long minIdle = Long.parseLong(string(command.get(4)));
+        long now = System.currentTimeMillis();
+        List<Object> claimed = new ArrayList<>();
+        for (byte[] raw : command.subList(5, command.size())) {
+            StreamId id = StreamId.parse(string(raw));
+            Delivery delivery = group.pending.get(id);
+            if (delivery == null || now - delivery.deliveredAt() < minIdle) {
+                continue;
+            }
+            List<byte[]> fields = stream(key, false).entries.get(id);
+            if (fields == null) {
+                // Deleted while pending: real Redis drops it from the pending list as well
+                group.pending.remove(id);
+                continue;
+            }
+            group.pending.put(id, new Delivery(consumer, now, delivery.count() + 1));
+            claimed.add(List.of(bytes(id.toString()), fields));
+        }
+        return claimed;
+    }
+
+    private Object hset(List<byte[]> command) {
+        if (command.size() < 4 || command.size() % 2 != 0) {
+            return new Error("ERR wrong number of arguments for 'hset' command");
+        }
+        Map<String, byte[]> hash = hash(string(command.get(1)), true);
+        long added = 0;
+        for (int i = 2; i < command.size(); i += 2) {
+            if (hash.put(string(command.get(i)), command.get(i + 1)) == null) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private Object hincrBy(String key, String field, long increment) {
+        Map<String, byte[]> hash = hash(key, true);
+        byte[] current = hash.get(field);
+        long value;
+        try {
+            value = (current != null ? Long.parseLong(string(current)) : 0) + increment;
+        } catch (NumberFormatException e) {
+            return new Error("ERR hash value is not an integer");
+        }
+        hash.put(field, bytes(Long.toString(value)));
+        return value;
+    }
+
+    private long srem(List<byte[]> command) {
+        String key = string(command.get(1));
+        Set<String> members = members(key, false);
+        if (members == null) {
+            return 0;
+        }
+        long removed = command.subList(2, command.size()).stream()
+                .filter(member -> members.remove(string(member))).count();
+        if (members.isEmpty()) {
+            data.remove(key);
+        }
+        return removed;
+    }
+
+    private Object zadd(List<byte[]> command) {
+        // Score/member pairs only; the NX/XX/GT/LT/CH flags are not needed by the services
+        if (command.size() < 4 || command.size() % 2 != 0) {
+            return new Error("ERR syntax error");
+        }
+        Map<String, Double> zset = zset(string(command.get(1)), true);
+        long added = 0;
+        for (int i = 2; i < command.size(); i += 2) {
+            if (zset.put(string(command.get(i + 1)), score(string(command.get(i)))) == null) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private Object zrangeByScore(List<byte[]> command) {
+        boolean withScores = false;
+        long offset = 0;
+        long count = -1;
+        for (int i = 4; i < command.size(); i++) {
+            switch (string(command.get(i)).toUpperCase()) {
+                case "WITHSCORES" -> withScores = true;
+                case "LIMIT" -> {
+                    offset = Long.parseLong(string(command.get(++i)));
+                    count = Long.parseLong(string(command.get(++i)));
+                }
+                default -> {
+                    return new Error("ERR syntax error");
+                }
+            }
+        }
+        List<Map.Entry<String, Double>> range = inRange(command);
+        List<Object> reply = new ArrayList<>();
+        for (Map.Entry<String, Double> member : range.subList((int) Math.min(offset, range.size()),
+                count < 0 ? range.size() : (int) Math.min(offset + count, range.size()))) {
+            reply.add(member.getKey().getBytes(StandardCharsets.ISO_8859_1));
+            if (withScores) {
+                reply.add(bytes(formatScore(member.getValue())));
+            }
+        }
+        return reply;
+    }
+
+    private long zremRangeByScore(List<byte[]> command) {
+        String key = string(command.get(1));
+        Map<String, Double> zset = zset(key, false);
+        if (zset == null) {
+            return 0;
+        }
+        List<Map.Entry<String, Double>> range = inRange(command);
+        range.forEach(member -> zset.remove(member.getKey()));
+        if (zset.isEmpty()) {
+            data.remove(key);
+        }
+        return range.size();
+    }
+
+    /**
+     * Members of the sorted set at command[1] scored between command[2] and command[3], in score order.
+     */
+    private List<Map.Entry<String, Double>> inRange(List<byte[]> command) {
+        Map<String, Double> zset = zset(string(command.get(1)), false);
+        if (zset == null) {
+            return List.of();
+        }
+        String min = string(command.get(2));
+        String max = string(command.get(3));
+        boolean minExclusive = min.startsWith("(");
+        boolean maxExclusive = max.startsWith("(");
+        double low = score(minExclusive ? min.substring(1) : min);
+        double high = score(maxExclusive ? max.substring(1) : max);
+        return zset.entrySet().stream()
+                .filter(member -> minExclusive ? member.getValue() > low : member.getValue() >= low)
+                .filter(member -> maxExclusive ? member.getValue() < high : member.getValue() <= high)
+                .sorted(Map.Entry.<String, Double>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+                .map(member -> Map.entry(member.getKey(), member.getValue()))
+                .toList();
+    }
+
+    private static double score(String value) {
+        return switch (value.toLowerCase()) {
+            case "inf", "+inf" -> Double.POSITIVE_INFINITY;
+            case "-inf" -> Double.NEGATIVE_INFINITY;
+            default -> Double.parseDouble(value);
+        };
+    }
+
+    private static String formatScore(double score) {
+        return score == Math.rint(score) && Math.abs(score) < 1e17
+                ? Long.toString((long) score) : Double.toString(score);
+    }
+
+    private long publish(String channel, byte[] message) {
+        Set<Connection> receivers = subscribers.getOrDefault(channel, Set.of());
+        for (Connection receiver : receivers) {
+            receiver.push(List.of(bytes("message"), bytes(channel), message));
+        }
+        return receivers.size();
+    }
+
+    private Object eval(String source, List<byte[]> command) {
+        scriptsBySha.putIfAbsent(sha1(source), source);
+        Script script = scripts.entrySet().stream()
+                .filter(candidate -> source.contains(candidate.getKey()))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse(null);
+        if (script == null) {
+            return new Error("ERR script not supported by the in-process stand-in");
+        }
+        int keyCount = Integer.parseInt(string(command.get(2)));
+        List<byte[]> keys = command.subList(3, 3 + keyCount);
+        List<byte[]> args = command.subList(3 + keyCount, command.size());
+        try {
+            return script.run(new ScriptCall(keys, args));
+        } catch (IllegalStateException e) {
+            // A failed redis.call aborts the script with that command's error
+            return new Error(e.getMessage());
+        }
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        data.values().removeIf(entry -> entry.expired(now));
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String sha1(String source) {
+        try {
+            return HexFormat.of().formatHex(
+                    MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Java emulation of a Lua script, run atomically with the other commands.
+     */
+    @FunctionalInterface
+    public interface Script {
+        Object run(ScriptCall call);
+    }
+
+    /**
+     * KEYS and ARGV of a script invocation plus the commands a script body may call. Returns follow Lua
+     * conversion: byte[] for bulk strings, Long for integers, List for arrays, null for nil/false.
+     */
+    public final class ScriptCall {
+
+        private final List<byte[]> keys;
+        private final List<byte[]> args;
+
+        private ScriptCall(List<byte[]> keys, List<byte[]> args) {
+            this.keys = keys;
+            this.args = args;
+        }
+
+        public String key(int index) {
+            return string(keys.get(index));
+        }
+
+        public byte[] arg(int index) {
+            return args.get(index);
+        }
+
+        public String argString(int index) {
+            return new String(args.get(index), StandardCharsets.UTF_8);
+        }
+
+        public byte[] get(String key) {
+            return InProcessRedis.this.get(key);
+        }
+
+        public void set(String key, byte[] value, long ttlMillis) {
+            put(key, value, ttlMillis);
+        }
+
+        /**
+         * Runs a command as {@code redis.call} would; String and number arguments are sent as their text.
+         */
+        public Object call(Object... command) {
+            List<byte[]> arguments = new ArrayList<>(command.length);
+            for (Object argument : command) {
+                arguments.add(argument instanceof byte[] raw ? raw : bytes(argument.toString()));
+            }
+            Object reply = dispatch(arguments);
+            if (reply instanceof Error error) {
+                throw new IllegalStateException(error.message());
+            }
+            return reply;
+        }
+    }
+
+    /**
+     * A key's value: byte[] for a string, a field map for a hash, a member set for a set, a member-to-score
+     * map for a sorted set, and a {@link Stream} for a stream.
+     */
+    private record Entry(Object value, long expiresAt) {
+        boolean expired(long now) {
+            return expiresAt <= now;
+        }
+    }
+
+    private record Simple(String value) {
+    }
+
+    /**
+     * A stream's entries, as field/value lists in id order, and its consumer groups.
+     */
+    private static final class Stream {
+        private final TreeMap<StreamId, List<byte[]>> entries = new TreeMap<>();
+        private final Map<String, Group> groups = new HashMap<>();
+        private StreamId lastId = new StreamId(0, 0);
+    }
+
+    /**
+     * A consumer group: the last entry handed out and the entries delivered but not acknowledged, in id order.
+     */
+    private static final class Group {
+        private final TreeMap<StreamId, Delivery> pending = new TreeMap<>();
+        private StreamId lastDelivered;
+
+        private Group(StreamId lastDelivered) {
+            this.lastDelivered = lastDelivered;
+        }
+    }
+
+    private record Delivery(String consumer, long deliveredAt, long count) {
+    }
+
+    private record StreamId(long millis, long sequence) implements Comparable<StreamId> {
+
+        static StreamId parse(String id) {
+            int dash = id.indexOf('-');
+            return dash < 0 ? new StreamId(Long.parseLong(id), 0)
+                    : new StreamId(Long.parseLong(id.substring(0, dash)), Long.parseLong(id.substring(dash + 1)));
+        }
+
+        @Override
+        public int compareTo(StreamId other) {
+            int byMillis = Long.compare(millis, other.millis);
+            return byMillis != 0 ? byMillis : Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public String toString() {
+            return millis + "-" + sequence;
+        }
+    }
+
+    private record Error(String message) {
+    }
+
+    private final class Connection {
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final Set<String> channels = new CopyOnWriteArraySet<>();
+        private List<List<byte[]>> transaction;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.socket.setTcpNoDelay(true);
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void serve() {
+            try (InputStream in = new BufferedInputStream(socket.getInputStream())) {
+                while (true) {
+                    List<byte[]> command = readCommand(in);
+                    Object reply = handle(command);
+                    writeLock.lock();
+                    try {
+                        write(reply);
+                        if (in.available() == 0) {
+                            out.flush();
+                        }
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private Object handle(List<byte[]> command) {
+            String name = string(command.get(0)).toUpperCase();
+            switch (name) {
+                case "MULTI":
+                    transaction = new ArrayList<>();
+                    return OK;
+                case "DISCARD":
+                    transaction = null;
+                    return OK;
+                case "EXEC":
+                    if (transaction == null) {
+                        return new Error("ERR EXEC without MULTI");
+                    }
+                    List<List<byte[]>> queued = transaction;
+                    transaction = null;
+                    lock.lock();
+                    try {
+                        List<Object> replies = new ArrayList<>(queued.size());
+                        for (List<byte[]> queuedCommand : queued) {
+                            replies.add(execute(queuedCommand));
+                        }
+                        return replies;
+                    } finally {
+                        lock.unlock();
+                    }
+                case "SUBSCRIBE":
+                    List<Object> confirmations = new ArrayList<>();
+                    for (byte[] channel : command.subList(1, command.size())) {
+                        channels.add(string(channel));
+                        subscribers.computeIfAbsent(string(channel), c -> new CopyOnWriteArraySet<>()).add(this);
+                        confirmations.add(List.of(bytes("subscribe"), channel, (long) channels.size()));
+                    }
+                    return new Multi(confirmations);
+                case "UNSUBSCRIBE":
+                    List<String> leaving = command.size() > 1
+                            ? command.subList(1, command.size()).stream().map(InProcessRedis::string).toList()
+                            : List.copyOf(channels);
+                    List<Object> removals = new ArrayList<>();
+                    for (String channel : leaving) {
+                        channels.remove(channel);
+                        subscribers.getOrDefault(channel, Set.of()).remove(this);
+                        removals.add(List.of(bytes("unsubscribe"), bytes(channel), (long) channels.size()));
+                    }
+                    return removals.isEmpty()
+                            ? Arrays.asList(bytes("unsubscribe"), null, 0L) : new Multi(removals);
+                default:
+                    if (transaction != null) {
+                        transaction.add(command);
+                        return QUEUED;
+                    }
+                    return execute(command);
+            }
+        }
+
+        void push(List<byte[]> message) {
+            writeLock.lock();
+            try {
+                write(message);
+                out.flush();
+            } catch (IOException e) {
+                close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        void close() {
+            channels.forEach(channel -> subscribers.getOrDefault(channel, Set.of()).remove(this));
+            connections.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already closed
+            }
+        }
+
+        private List<byte[]> readCommand(InputStream in) throws IOException {
+            int marker = in.read();
+            if (marker < 0) {
+                throw new EOFException();
+            }
+            if (marker != '*') {
+                throw new IOException("Expected a RESP array, got " + (char) marker);
+            }
+            int count = Integer.parseInt(readLine(in));
+            List<byte[]> parts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (in.read() != '$') {
+                    throw new IOException("Expected a bulk string");
+                }
+                int length = Integer.parseInt(readLine(in));
+                parts.add(in.readNBytes(length));
+                in.skipNBytes(2);
+            }
+            return parts;
+        }
+
+        private String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\r') {
+                if (c < 0) {
+                    throw new EOFException();
+                }
+                line.append((char) c);
+            }
+            in.skipNBytes(1);
+            return line.toString();
+        }
+
+        private void write(Object reply) throws IOException {
+            switch (reply) {
+                case null -> out.write(bytes("$-1\r\n"));
+                case Simple simple -> out.write(bytes("+" + simple.value() + "\r\n"));
+                case Error error -> out.write(bytes("-" + error.message() + "\r\n"));
+                case Long number -> out.write(bytes(":" + number + "\r\n"));
+                case Integer number -> out.write(bytes(":" + number + "\r\n"));
+                case String text -> write(bytes(text));
+                case byte[] bulk -> {
+                    out.write(bytes("$" + bulk.length + "\r\n"));
+                    out.write(bulk);
+                    out.write(bytes("\r\n"));
+                }
+                case Multi multi -> {
+                    for (Object part : multi.replies()) {
+                        write(part);
+                    }
+                }
+                case List<?> array -> {
+                    out.write(bytes("*" + array.size() + "\r\n"));
+                    for (Object element : array) {
+                        write(element);
+                    }
+                }
+                default -> throw new IOException("Unsupported reply type " + reply.getClass());
+            }
+        }
+    }
+
+    /**
+     * Several replies to one command, as SUBSCRIBE sends one confirmation per channel.
+     */
+    private record Multi(List<Object> replies) {
+    }
+}
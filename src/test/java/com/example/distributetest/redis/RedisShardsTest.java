@@ -0,0 +1,174 @@
+package com.example.distributetest.redis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Ring routing in isolation, and rebalancing against three {@link InProcessRedis} nodes.
+ */
+class RedisShardsTest {
+
+    private InProcessRedis nodeA;
+    private InProcessRedis nodeB;
+    private InProcessRedis nodeC;
+    private LettuceConnectionFactory primary;
+    private LettuceConnectionFactory a;
+    private LettuceConnectionFactory b;
+    private LettuceConnectionFactory c;
+    private RedisShards shards;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        nodeA = InProcessRedis.start();
+        nodeB = InProcessRedis.start();
+        nodeC = InProcessRedis.start();
+        primary = connect(nodeA);
+        a = connect(nodeA);
+        b = connect(nodeB);
+        c = connect(nodeC);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (shards != null) {
+            shards.destroy();
+        }
+        for (LettuceConnectionFactory factory : new LettuceConnectionFactory[]{primary, a, b, c}) {
+            if (factory.isRunning()) {
+                factory.destroy();
+            }
+        }
+        nodeA.close();
+        nodeB.close();
+        nodeC.close();
+    }
+
+    @Test
+    void spreadsKeysOverAllNodes() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(Map.of("a", "a", "b", "b", "c", "c"), 160);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30_000; i++) {
+            counts.merge(ring.nodeFor("idempotency:key-" + i), 1, Integer::sum);
+        }
+
+        assertThat(counts).containsOnlyKeys("a", "b", "c");
+        assertThat(counts.values()).allSatisfy(count -> assertThat(count).isBetween(8_000, 12_000));
+    }
+
+    @Test
+    void routesKeysWithTheSameHashTagTogether() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(Map.of("a", "a", "b", "b", "c", "c"), 160);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(ring.nodeFor("payment:{order-" + i + "}")).isEqualTo(ring.nodeFor("refund:{order-" + i + "}"));
+        }
+        assertThat(ConsistentHashRing.routingKey("payment:{}x")).isEqualTo("payment:{}x");
+    }
+
+    @Test
+    void addingANodeMovesOnlyItsShareOfKeys() {
+        ConsistentHashRing<String> before = new ConsistentHashRing<>(Map.of("a", "a", "b", "b", "c", "c"), 160);
+        ConsistentHashRing<String> after =
+                new ConsistentHashRing<>(Map.of("a", "a", "b", "b", "c", "c", "d", "d"), 160);
+        int moved = 0;
+        for (int i = 0; i < 10_000; i++) {
+            String key = "payment:" + i;
+            String owner = after.nodeFor(key);
+            if (!owner.equals(before.nodeFor(key))) {
+                assertThat(owner).isEqualTo("d");
+                moved++;
+            }
+        }
+
+        assertThat(moved).isBetween(1_500, 3_500);
+    }
+
+    @Test
+    void fallsBackToPreviousOwnerUntilRebalanceCompletes() {
+        shards = RedisShards.ring(primary, nodes("a", a, "b", b));
+        RedisShardRouter<String> router = shards.router(RedisSerializer.string());
+        for (int i = 0; i < 200; i++) {
+            router.forKey("payment:" + i).opsForValue().set("payment:" + i, "record-" + i);
+        }
+
+        shards.rebalance(nodes("a", a, "b", b, "c", c));
+
+        String movedKey = movedTo(c);
+        assertThat(router.forKey(movedKey).opsForValue().get(movedKey)).isNull();
+        assertThat(router.previousForKey(movedKey).opsForValue().get(movedKey))
+                .isEqualTo("record-" + movedKey.substring("payment:".length()));
+        assertThat(nodeC.size()).isZero();
+
+        shards.completeRebalance();
+
+        assertThat(shards.ownerOf(movedKey)).isSameAs(c);
+        assertThat(router.previousForKey(movedKey)).isNull();
+        assertThat(shards.primary()).isSameAs(primary);
+    }
+
+    @Test
+    void unmovedKeysNeedNoFallback() {
+        shards = RedisShards.ring(primary, nodes("a", a, "b", b));
+        shards.rebalance(nodes("a", a, "b", b, "c", c));
+
+        for (int i = 0; i < 1_000; i++) {
+            String key = "payment:" + i;
+            if (shards.ownerOf(key) != c) {
+                assertThat(shards.previousOwnerOf(key)).isNull();
+            }
+        }
+    }
+
+    @Test
+    void completesOnItsOwnAfterTheWindowAndClosesRetiredNodes() throws Exception {
+        shards = RedisShards.ring(primary, nodes("a", a, "b", b));
+        shards.rebalance(nodes("a", a, "c", c), Duration.ofMillis(200));
+        String movedKey = movedTo(c);
+        assertThat(shards.previousOwnerOf(movedKey)).isIn(a, b);
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (shards.previousOwnerOf(movedKey) != null && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertThat(shards.previousOwnerOf(movedKey)).isNull();
+        assertThat(b.isRunning()).isFalse();
+        assertThat(a.isRunning()).isTrue();
+    }
+
+    private String movedTo(RedisConnectionFactory owner) {
+        for (int i = 0; ; i++) {
+            if (shards.ownerOf("payment:" + i) == owner) {
+                return "payment:" + i;
+            }
+        }
+    }
+
+    private static LettuceConnectionFactory connect(InProcessRedis node) {
+        LettuceConnectionFactory factory =
+                new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", node.port()));
+        factory.afterPropertiesSet();
+        factory.start();
+        return factory;
+    }
+
+    private static Map<String, RedisConnectionFactory> nodes(Object... pairs) {
+        Map<String, RedisConnectionFactory> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            nodes.put((String) pairs[i], (RedisConnectionFactory) pairs[i + 1]);
+        }
+        return nodes;
+    }
+}
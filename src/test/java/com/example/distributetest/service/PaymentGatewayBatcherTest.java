@@ -0,0 +1,113 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.dto.PaymentRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PaymentGatewayBatcherTest {
+
+    private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+    private PaymentGatewayBatcher batcher;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (batcher != null) {
+            batcher.destroy();
+        }
+    }
+
+    @Test
+    void sendsABatchAsSoonAsItIsFull() {
+        batcher = batcher(4, Duration.ofSeconds(30), batch -> accepted(batch.size()));
+
+        List<CompletableFuture<Void>> results = submit(8);
+
+        assertThat(CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)))
+                .succeedsWithin(Duration.ofSeconds(5));
+        assertThat(batchSizes).containsExactly(4, 4);
+    }
+
+    @Test
+    void sendsAPartialBatchOnceItsOldestItemHasWaitedMaxWait() {
+        batcher = batcher(32, Duration.ofMillis(50), batch -> accepted(batch.size()));
+        long started = System.nanoTime();
+
+        List<CompletableFuture<Void>> results = submit(3);
+
+        assertThat(CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)))
+                .succeedsWithin(Duration.ofSeconds(5));
+        assertThat(System.nanoTime() - started).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(batchSizes).containsExactly(3);
+    }
+
+    @Test
+    void failsOnlyTheItemsTheGatewayRejected() {
+        batcher = batcher(3, Duration.ofSeconds(30), batch -> new boolean[]{true, false, true});
+
+        List<CompletableFuture<Void>> results = submit(3);
+
+        assertThat(results.get(0)).succeedsWithin(Duration.ofSeconds(5));
+        assertThat(results.get(1)).failsWithin(Duration.ofSeconds(5));
+        assertThat(results.get(2)).succeedsWithin(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void failsTheWholeBatchWhenTheSubmissionFails() {
+        batcher = batcher(2, Duration.ofSeconds(30), batch -> {
+            throw new IllegalStateException("gateway unavailable");
+        });
+
+        List<CompletableFuture<Void>> results = submit(2);
+
+        assertThat(results).allSatisfy(result -> assertThat(result).failsWithin(Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void failsItemsStillGatheringWhenStopped() throws Exception {
+        batcher = batcher(32, Duration.ofSeconds(30), batch -> accepted(batch.size()));
+        List<CompletableFuture<Void>> results = submit(2);
+
+        batcher.destroy();
+
+        assertThat(results).allSatisfy(result -> assertThat(result).isCompletedExceptionally());
+        assertThat(batchSizes).isEmpty();
+    }
+
+    @Test
+    void failsSubmissionsAfterStop() throws Exception {
+        batcher = batcher(32, Duration.ofMillis(20), batch -> accepted(batch.size()));
+        batcher.destroy();
+
+        assertThat(batcher.submit(new PaymentRequest(1000.0, "KRW", "customer-1"))).isCompletedExceptionally();
+    }
+
+    private PaymentGatewayBatcher batcher(int maxSize, Duration maxWait, PaymentGatewayBatcher.BatchGateway gateway) {
+        return new PaymentGatewayBatcher(new SimpleMeterRegistry(), true, maxSize, maxWait, 8, batch -> {
+            batchSizes.add(batch.size());
+            return gateway.submit(batch);
+        });
+    }
+
+    private List<CompletableFuture<Void>> submit(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> batcher.submit(new PaymentRequest(1000.0 + i, "KRW", "customer-" + i)))
+                .toList();
+    }
+
+    private static boolean[] accepted(int size) {
+        boolean[] accepted = new boolean[size];
+        Arrays.fill(accepted, true);
+        return accepted;
+    }
+}
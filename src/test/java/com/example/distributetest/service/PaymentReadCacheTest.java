@@ -0,0 +1,92 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.redis.InProcessRedis;
+import com.example.distributetest.redis.RedisShards;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PaymentReadCacheTest {
+
+    private static final Duration RECORD_TTL = Duration.ofHours(24);
+
+    private InProcessRedis redis;
+    private LettuceConnectionFactory connectionFactory;
+    private PaymentReadCache cache;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        redis = InProcessRedis.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redis.port()));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        RedisShards shards = RedisShards.single(connectionFactory);
+        cache = new PaymentReadCache(shards, shards.router(RedisSerializer.string()), new SimpleMeterRegistry(),
+                true, 1_000, Duration.ofSeconds(30), Duration.ofSeconds(2));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        cache.destroy();
+        connectionFactory.destroy();
+        redis.close();
+    }
+
+    @Test
+    void loadsOnceAndServesLaterReadsLocally() {
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get("payment:1", RECORD_TTL, () -> "SUCCESS-" + loads.incrementAndGet());
+        String second = cache.get("payment:1", RECORD_TTL, () -> "SUCCESS-" + loads.incrementAndGet());
+
+        assertThat(second).isEqualTo("SUCCESS-1");
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void remembersMissesUntilTheKeyIsEvicted() {
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get("payment:2", RECORD_TTL, () -> {
+            loads.incrementAndGet();
+            return null;
+        });
+        Object second = cache.get("payment:2", RECORD_TTL, () -> "SUCCESS");
+        cache.evict("payment:2");
+        Object afterEvict = cache.get("payment:2", RECORD_TTL, () -> "SUCCESS");
+
+        assertThat(second).isNull();
+        assertThat(loads).hasValue(1);
+        assertThat(afterEvict).isEqualTo("SUCCESS");
+    }
+
+    @Test
+    void doesNotCacheALoadThatOverlappedAnInvalidation() {
+        // The loader read the record, then the record was settled and invalidated before the load returned
+        String stale = cache.get("payment:3", RECORD_TTL, () -> {
+            cache.invalidate("payment:3");
+            return "PENDING";
+        });
+        String next = cache.get("payment:3", RECORD_TTL, () -> "SUCCESS");
+
+        assertThat(stale).isEqualTo("PENDING");
+        assertThat(next).isEqualTo("SUCCESS");
+    }
+
+    @Test
+    void invalidatingAnotherKeyKeepsCachedEntries() {
+        String loaded = cache.get("payment:4", RECORD_TTL, () -> "SUCCESS");
+        cache.invalidate("payment:5");
+
+        assertThat(cache.get("payment:4", RECORD_TTL, () -> "RELOADED")).isEqualTo(loaded);
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.codec.JsonCodec;
+import com.example.distributetest.dto.PaymentLookupResult;
+import com.example.distributetest.dto.PaymentPage;
+import com.example.distributetest.dto.PaymentRequest;
+import com.example.distributetest.dto.PaymentResponse;
+import com.example.distributetest.dto.RefundResponse;
+import com.example.distributetest.entity.PaymentArchive;
+import com.example.distributetest.redis.InProcessRedis;
+import com.example.distributetest.redis.RedisShardRouter;
+import com.example.distributetest.redis.RedisShards;
+import com.example.distributetest.repository.PaymentArchiveRepository;
+import com.example.distributetest.repository.RefundArchiveRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PaymentServiceTest {
+
+    private InProcessRedis redis;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisShards shards;
+    private RedisShardRouter<String> router;
+    private RefundLedger ledger;
+    private MeterRegistry registry;
+    private PaymentArchiver archiver;
+    private PaymentService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        redis = InProcessRedis.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redis.port()));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        shards = RedisShards.single(connectionFactory);
+        router = shards.router(RedisSerializer.string());
+        ledger = new RefundLedger(router);
+        registry = new SimpleMeterRegistry();
+        archiver = new PaymentArchiver(null, null, null, registry, false, 1, 1, Duration.ZERO, Duration.ZERO);
+        service = newService();
+    }
+
+    private PaymentService newService() {
+        return new PaymentService(router, registry, new PaymentQueue(router),
+                new PaymentGatewayBatcher(registry, false, 1, Duration.ZERO, 1),
+                new PaymentReadCache(shards, router, registry, false, 100, Duration.ZERO, Duration.ZERO),
+                ledger, archiver);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        archiver.destroy();
+        connectionFactory.destroy();
+        redis.close();
+    }
+
+    @Test
+    void lookupMergesTheRefundLedgerLikeASingleRead() {
+        storePayment("txn-1", "SUCCESS", 500.0);
+        storePayment("txn-2", "SUCCESS", 200.0);
+        storePayment("txn-3", "PENDING", 100.0);
+        ledger.debit("payment:txn-1", "refund-1", 10_000);
+        ledger.debit("payment:txn-1", "refund-2", 5_000);
+
+        List<PaymentLookupResult> results = lookup(List.of("txn-1", "txn-2", "txn-3", "txn-missing"));
+
+        assertThat(results).extracting(PaymentLookupResult::isFound).containsExactly(true, true, true, false);
+        PaymentResponse refunded = results.get(0).getPayment();
+        assertThat(refunded.getRefundIds()).containsExactlyInAnyOrder("refund-1", "refund-2");
+        assertThat(refunded.getRefundableAmount()).isEqualTo(350.0);
+        assertThat(results.get(1).getPayment().getRefundIds()).isEmpty();
+        assertThat(results.get(1).getPayment().getRefundableAmount()).isEqualTo(200.0);
+        assertThat(results.get(2).getPayment().getRefundableAmount()).isNull();
+        PaymentResponse single = service.getPayment("txn-1");
+        assertThat(refunded.getRefundIds()).containsExactlyInAnyOrderElementsOf(single.getRefundIds());
+        assertThat(refunded.getRefundableAmount()).isEqualTo(single.getRefundableAmount());
+    }
+
+    @Test
+    void lookupFallsBackToTheArchiveInOneQueryPerChunk() {
+        List<Collection<String>> queries = new ArrayList<>();
+        PaymentArchive expired = PaymentArchive.builder()
+                .transactionId("txn-old")
+                .customerId("customer-1")
+                .amount(75.0)
+                .status("SUCCESS")
+                .createdAt(LocalDateTime.now().minusDays(30))
+                .archivedAt(LocalDateTime.now().minusDays(30))
+                .build();
+        archiver = new PaymentArchiver(null, archive(PaymentArchiveRepository.class, queries, List.of(expired)),
+                archive(RefundArchiveRepository.class, queries, List.of()), registry, true, 1, 1,
+                Duration.ofMillis(10), Duration.ZERO);
+        service = newService();
+        storePayment("txn-1", "SUCCESS", 500.0);
+
+        List<PaymentLookupResult> results = lookup(List.of("txn-1", "txn-old", "txn-missing"));
+
+        assertThat(results).extracting(PaymentLookupResult::isFound).containsExactly(true, true, false);
+        assertThat(results.get(1).getPayment().getAmount()).isEqualTo(75.0);
+        assertThat(queries).containsExactly(List.of("txn-old", "txn-missing"));
+    }
+
+    @Test
+    void pagesThroughEntriesThatShareATimestampWithoutRepeatsOrGaps() {
+        long createdAt = System.currentTimeMillis() - 60_000;
+        for (String transactionId : List.of("txn-d", "txn-b", "txn-e", "txn-a", "txn-c")) {
+            storeIndexed(transactionId, createdAt);
+        }
+        storeIndexed("txn-f", createdAt + 1);
+
+        List<String> listed = new ArrayList<>();
+        List<String> cursors = new ArrayList<>();
+        String cursor = null;
+        do {
+            PaymentPage page = service.listPayments("customer-1", cursor, 2);
+            page.getPayments().forEach(payment -> listed.add(payment.getTransactionId()));
+            cursor = page.getNextCursor();
+            cursors.add(cursor);
+        } while (cursor != null);
+
+        assertThat(listed).containsExactly("txn-a", "txn-b", "txn-c", "txn-d", "txn-e", "txn-f");
+        assertThat(cursors).containsExactly(createdAt + ":txn-b", createdAt + ":txn-d", (createdAt + 1) + ":txn-f",
+                null);
+    }
+
+    @Test
+    void rejectsACursorItDidNotIssue() {
+        assertThatThrownBy(() -> service.listPayments("customer-1", "not-a-cursor", 10))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void leavesOutAndPrunesIndexEntriesOlderThanTheRecordTtl() {
+        String indexKey = "customer-payments:customer-1";
+        long now = System.currentTimeMillis();
+        router.forKey(indexKey).opsForZSet().add(indexKey, "txn-expired", now - Duration.ofHours(25).toMillis());
+        storeIndexed("txn-live", now - 60_000);
+        // Indexed, but its record has already expired
+        router.forKey(indexKey).opsForZSet().add(indexKey, "txn-gone", now - 30_000);
+
+        assertThat(service.listPayments("customer-1", null, 10).getPayments())
+                .extracting(PaymentResponse::getTransactionId).containsExactly("txn-live");
+
+        String accepted = service.acceptPayment(new PaymentRequest(10.0, "KRW", "customer-1")).getTransactionId();
+
+        assertThat(router.forKey(indexKey).opsForZSet().rangeByScore(indexKey, 0, Double.POSITIVE_INFINITY))
+                .containsExactlyInAnyOrder("txn-live", "txn-gone", accepted);
+        assertThat(service.listPayments("customer-1", null, 10).getPayments())
+                .extracting(PaymentResponse::getTransactionId).containsExactly("txn-live", accepted);
+    }
+
+    @Test
+    void exportsRecordsInsideTheHalfOpenWindowChunkByChunk() throws Exception {
+        LocalDateTime from = LocalDateTime.now().minusHours(3).withNano(0);
+        LocalDateTime to = from.plusHours(1);
+        Set<String> inside = new HashSet<>();
+        for (int i = 0; i < 300; i++) {
+            storePayment("txn-in-" + i, "SUCCESS", 10.0, from.plusSeconds(i));
+            inside.add("txn-in-" + i);
+        }
+        storePayment("txn-before", "SUCCESS", 10.0, from.minusNanos(1_000));
+        storePayment("txn-at-end", "SUCCESS", 10.0, to);
+        storeRefund("refund-in", from.plusMinutes(30));
+        storeRefund("refund-after", to.plusMinutes(1));
+
+        List<List<PaymentLookupResult>> chunks = new ArrayList<>();
+        service.export(from, to, chunks::add);
+
+        assertThat(chunks).hasSizeGreaterThan(1).allSatisfy(chunk -> assertThat(chunk).hasSizeLessThanOrEqualTo(256));
+        List<PaymentLookupResult> exported = chunks.stream().flatMap(List::stream).toList();
+        assertThat(exported).filteredOn(result -> result.getType().equals("payment"))
+                .extracting(PaymentLookupResult::getId).containsExactlyInAnyOrderElementsOf(inside);
+        assertThat(exported).filteredOn(result -> result.getType().equals("refund"))
+                .extracting(PaymentLookupResult::getId).containsExactly("refund-in");
+    }
+
+    /**
+     * Repository that only answers {@code findAllById}, from {@code records}, and records each query's ids.
+     */
+    @SuppressWarnings("unchecked")
+    private static <R> R archive(Class<R> repository, List<Collection<String>> queries, List<?> records) {
+        return (R) Proxy.newProxyInstance(repository.getClassLoader(), new Class<?>[]{repository},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("findAllById")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    Collection<String> ids = List.copyOf((Collection<String>) args[0]);
+                    queries.add(ids);
+                    return records.stream()
+                            .filter(record -> ids.contains(((PaymentArchive) record).getTransactionId()))
+                            .toList();
+                });
+    }
+
+    private List<PaymentLookupResult> lookup(List<String> transactionIds) {
+        List<PaymentLookupResult> results = new ArrayList<>();
+        service.lookup(transactionIds, List.of(), results::addAll);
+        return results;
+    }
+
+    /**
+     * Stores a settled payment created at {@code createdAt} together with its entry in the customer's index.
+     */
+    private void storeIndexed(String transactionId, long createdAt) {
+        LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(createdAt), ZoneId.systemDefault());
+        storePayment(transactionId, "SUCCESS", 100.0, timestamp);
+        String indexKey = "customer-payments:customer-1";
+        router.forKey(indexKey).opsForZSet().add(indexKey, transactionId, createdAt);
+    }
+
+    private void storeRefund(String refundId, LocalDateTime timestamp) throws JsonProcessingException {
+        RefundResponse refund = RefundResponse.builder()
+                .refundId(refundId)
+                .originalTransactionId("txn-in-0")
+                .amount(1.0)
+                .status("SUCCESS")
+                .timestamp(timestamp)
+                .build();
+        router.forKey("refund:" + refundId).opsForValue().set("refund:" + refundId,
+                JsonCodec.shared().refundWriter().writeValueAsString(refund), Duration.ofHours(1));
+    }
+
+    private void storePayment(String transactionId, String status, double amount) {
+        storePayment(transactionId, status, amount, LocalDateTime.now());
+    }
+
+    private void storePayment(String transactionId, String status, double amount, LocalDateTime timestamp) {
+        PaymentResponse payment = PaymentResponse.builder()
+                .transactionId(transactionId)
+                .customerId("customer-1")
+                .amount(amount)
+                .status(status)
+                .timestamp(timestamp)
+                .build();
+        try {
+            router.forKey("payment:" + transactionId).opsForValue().set("payment:" + transactionId,
+                    JsonCodec.shared().paymentWriter().writeValueAsString(payment), Duration.ofHours(1));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
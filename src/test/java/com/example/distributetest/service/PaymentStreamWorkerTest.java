@@ -0,0 +1,165 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.dto.PaymentRequest;
+import com.example.distributetest.redis.InProcessRedis;
+import com.example.distributetest.redis.RedisShardRouter;
+import com.example.distributetest.redis.RedisShards;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Drives the worker's read and reclaim passes by hand against an in-process Redis, with a gateway that
+ * accepts every payment and counts the calls.
+ */
+class PaymentStreamWorkerTest {
+
+    private static final Duration CLAIM_IDLE = Duration.ofMillis(50);
+    private static final int MAX_DELIVERIES = 2;
+
+    private final AtomicInteger gatewayCalls = new AtomicInteger();
+    private final CircuitBreakerRegistry circuitBreakers = CircuitBreakerRegistry.ofDefaults();
+    private InProcessRedis redis;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisShardRouter<String> router;
+    private PaymentGatewayBatcher batcher;
+    private PaymentQueue queue;
+    private PaymentService paymentService;
+    private PaymentStreamWorker worker;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        redis = InProcessRedis.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redis.port()));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        RedisShards shards = RedisShards.single(connectionFactory);
+        router = shards.router(RedisSerializer.string());
+        MeterRegistry registry = new SimpleMeterRegistry();
+        batcher = new PaymentGatewayBatcher(registry, true, 1, Duration.ofMillis(1), 1, batch -> {
+            gatewayCalls.addAndGet(batch.size());
+            boolean[] accepted = new boolean[batch.size()];
+            Arrays.fill(accepted, true);
+            return accepted;
+        });
+        queue = new PaymentQueue(router);
+        paymentService = new PaymentService(router, registry, queue, batcher,
+                new PaymentReadCache(shards, router, registry, false, 100, Duration.ZERO, Duration.ZERO),
+                new RefundLedger(router),
+                new PaymentArchiver(null, null, null, registry, false, 1, 1, Duration.ZERO, Duration.ZERO));
+        worker = new PaymentStreamWorker(queue, paymentService, circuitBreakers, 1, 16, Duration.ofMillis(10),
+                CLAIM_IDLE, MAX_DELIVERIES);
+        queue.ensureGroup();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        worker.destroy();
+        batcher.destroy();
+        connectionFactory.destroy();
+        redis.close();
+    }
+
+    @Test
+    void acknowledgesAnEntryOnceItsOutcomeIsStored() {
+        String transactionId = accept();
+
+        worker.poll();
+
+        assertThat(paymentService.queuedPaymentStatus(transactionId)).isEqualTo("SUCCESS");
+        assertThat(gatewayCalls).hasValue(1);
+        assertThat(pending()).isEmpty();
+        assertThat(router.primary().opsForStream().size(PaymentQueue.STREAM_KEY)).isZero();
+    }
+
+    @Test
+    void reclaimsAnEntryLeftIdleByAnotherConsumer() throws Exception {
+        String transactionId = accept();
+        List<MapRecord<String, Object, Object>> read = queue.read("crashed-node", 16, Duration.ofMillis(10));
+        assertThat(read).hasSize(1);
+
+        worker.poll();
+        worker.reclaim();
+        assertThat(paymentService.queuedPaymentStatus(transactionId)).isEqualTo("PENDING");
+
+        Thread.sleep(CLAIM_IDLE.toMillis() * 2);
+        worker.reclaim();
+
+        assertThat(paymentService.queuedPaymentStatus(transactionId)).isEqualTo("SUCCESS");
+        assertThat(gatewayCalls).hasValue(1);
+        assertThat(pending()).isEmpty();
+    }
+
+    @Test
+    void acknowledgesAnAlreadySettledPaymentWithoutCharging() {
+        String transactionId = accept();
+        paymentService.failQueuedPayment(transactionId, request(), "settled elsewhere");
+
+        worker.poll();
+
+        assertThat(paymentService.queuedPaymentStatus(transactionId)).isEqualTo("FAILED");
+        assertThat(gatewayCalls).hasValue(0);
+        assertThat(pending()).isEmpty();
+    }
+
+    @Test
+    void abandonsAnEntryAfterMaxDeliveries() throws Exception {
+        String transactionId = deliverTwiceToACrashedNode();
+
+        worker.reclaim();
+
+        assertThat(paymentService.queuedPaymentStatus(transactionId)).isEqualTo("FAILED");
+        assertThat(gatewayCalls).hasValue(0);
+        assertThat(pending()).isEmpty();
+    }
+
+    @Test
+    void neitherClaimsNorAbandonsWhileTheBreakerIsOpen() throws Exception {
+        String transactionId = deliverTwiceToACrashedNode();
+        circuitBreakers.circuitBreaker("payment").transitionToOpenState();
+
+        worker.reclaim();
+
+        assertThat(paymentService.queuedPaymentStatus(transactionId)).isEqualTo("PENDING");
+        assertThat(pending()).singleElement().satisfies(message -> {
+            assertThat(message.getConsumerName()).isEqualTo("crashed-node");
+            assertThat(message.getTotalDeliveryCount()).isEqualTo(MAX_DELIVERIES);
+        });
+    }
+
+    private String deliverTwiceToACrashedNode() throws InterruptedException {
+        String transactionId = accept();
+        MapRecord<String, Object, Object> record =
+                queue.read("crashed-node", 16, Duration.ofMillis(10)).getFirst();
+        queue.claim("crashed-node", Duration.ZERO, record.getId());
+        Thread.sleep(CLAIM_IDLE.toMillis() * 2);
+        return transactionId;
+    }
+
+    private String accept() {
+        return paymentService.acceptPayment(request()).getTransactionId();
+    }
+
+    private static PaymentRequest request() {
+        return new PaymentRequest(100.0, "KRW", "customer-1");
+    }
+
+    private List<PendingMessage> pending() {
+        return queue.pending(16).toList();
+    }
+}
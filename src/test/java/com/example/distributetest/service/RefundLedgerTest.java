@@ -0,0 +1,148 @@
+package com.example.distributetest.service;
+
+import com.example.distributetest.codec.JsonCodec;
+import com.example.distributetest.dto.PaymentResponse;
+import com.example.distributetest.redis.InProcessRedis;
+import com.example.distributetest.redis.RedisShardRouter;
+import com.example.distributetest.redis.RedisShards;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RefundLedgerTest {
+
+    private InProcessRedis redis;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisShardRouter<String> router;
+    private RefundLedger ledger;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        redis = InProcessRedis.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redis.port()));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        router = RedisShards.single(connectionFactory).router(RedisSerializer.string());
+        ledger = new RefundLedger(router);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        connectionFactory.destroy();
+        redis.close();
+    }
+
+    @Test
+    void rejectsRefundsBeyondTheAmountPaid() {
+        storePayment("txn-1", "SUCCESS", 500.0);
+
+        assertThat(ledger.debit("payment:txn-1", "refund-1", 30_000)).isEqualTo(20_000);
+
+        assertThatThrownBy(() -> ledger.debit("payment:txn-1", "refund-2", 25_000))
+                .isInstanceOfSatisfying(RefundRejectedException.class, rejected ->
+                        assertThat(rejected.getReason()).isEqualTo(RefundRejectedException.Reason.EXCEEDS_REMAINING));
+        RefundLedger.Snapshot snapshot = ledger.read("payment:txn-1");
+        assertThat(snapshot.remaining()).isEqualTo(20_000);
+        assertThat(snapshot.refundIds()).containsExactly("refund-1");
+    }
+
+    @Test
+    void rejectsUnknownAndUnsettledPayments() {
+        storePayment("txn-pending", "PENDING", 500.0);
+
+        assertThatThrownBy(() -> ledger.debit("payment:txn-missing", "refund-1", 1_000))
+                .isInstanceOfSatisfying(RefundRejectedException.class, rejected ->
+                        assertThat(rejected.getReason()).isEqualTo(RefundRejectedException.Reason.PAYMENT_NOT_FOUND));
+        assertThatThrownBy(() -> ledger.debit("payment:txn-pending", "refund-1", 1_000))
+                .isInstanceOfSatisfying(RefundRejectedException.class, rejected ->
+                        assertThat(rejected.getReason()).isEqualTo(RefundRejectedException.Reason.NOT_REFUNDABLE));
+        assertThat(ledger.read("payment:txn-missing")).isNull();
+    }
+
+    @Test
+    void concurrentDebitsNeverExceedThePayment() throws Exception {
+        storePayment("txn-2", "SUCCESS", 100.0);
+        List<Callable<Boolean>> refunds = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String refundId = "refund-" + i;
+            refunds.add(() -> {
+                try {
+                    ledger.debit("payment:txn-2", refundId, 1_000);
+                    return true;
+                } catch (RefundRejectedException e) {
+                    return false;
+                }
+            });
+        }
+
+        long charged = 0;
+        try (ExecutorService executor = Executors.newFixedThreadPool(16)) {
+            for (Future<Boolean> result : executor.invokeAll(refunds)) {
+                charged += result.get(5, TimeUnit.SECONDS) ? 1 : 0;
+            }
+        }
+
+        RefundLedger.Snapshot snapshot = ledger.read("payment:txn-2");
+        assertThat(charged).isEqualTo(10);
+        assertThat(snapshot.remaining()).isZero();
+        assertThat(snapshot.refundIds()).hasSize(10);
+    }
+
+    @Test
+    void releasesAChargedRefundOnlyOnce() {
+        storePayment("txn-3", "SUCCESS", 500.0);
+        ledger.debit("payment:txn-3", "refund-1", 10_000);
+        ledger.debit("payment:txn-3", "refund-2", 5_000);
+
+        ledger.release("payment:txn-3", "refund-1", 10_000);
+        ledger.release("payment:txn-3", "refund-1", 10_000);
+        ledger.release("payment:txn-3", "refund-unknown", 10_000);
+
+        RefundLedger.Snapshot snapshot = ledger.read("payment:txn-3");
+        assertThat(snapshot.remaining()).isEqualTo(45_000);
+        assertThat(snapshot.refundIds()).containsExactly("refund-2");
+    }
+
+    @Test
+    void ledgerExpiresWithThePayment() {
+        storePayment("txn-4", "SUCCESS", 500.0);
+
+        ledger.debit("payment:txn-4", "refund-1", 1_000);
+
+        Long ttl = router.forKey("payment:txn-4").getExpire("{payment:txn-4}:refund-ledger", TimeUnit.MINUTES);
+        assertThat(ttl).isBetween(50L, 60L);
+    }
+
+    private void storePayment(String transactionId, String status, double amount) {
+        PaymentResponse payment = PaymentResponse.builder()
+                .transactionId(transactionId)
+                .customerId("customer-1")
+                .amount(amount)
+                .status(status)
+                .timestamp(LocalDateTime.now())
+                .build();
+        try {
+            router.forKey("payment:" + transactionId).opsForValue().set("payment:" + transactionId,
+                    JsonCodec.shared().paymentWriter().writeValueAsString(payment), Duration.ofHours(1));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}